@@ -9,12 +9,19 @@
 #define redLED 3
 #define greenLED 4
 #define SYNC_INTERVAL 5000 // mills between calls to sync()
+// binary log: 2 bytes per beat instead of a text line (see org.jj.heart.data.BinaryLog)
+// uncomment for binary logs; the java side reads both
+//#define BINARY_LOG
+#define LOG_BOOT 0xFFFF // record tags, little endian like the periods
+#define LOG_GAP 0xFFFE // followed by the 32 bit millis() of a beat too far from the previous
+#define LOG_VERSION 1
 
 boolean debug = false;
 boolean state = LOW;
 boolean dataReady = false;
 long lightOff = 0;
 uint32_t ms; // uint32_t == unsigned long
+uint32_t lastBeat = 0; // millis() of the previous beat logged
 RTC_DS1307 RTC;
 char buffer[0x32];
 int readChar;
@@ -58,12 +65,19 @@ void setup() {
 	logName[7] = now.day()%10 + '0';
 	logFile.open(root, logName, O_CREAT | O_WRITE | O_APPEND);
 
+#ifdef BINARY_LOG
+	{
+		uint8_t boot[] = { LOG_BOOT & 0xFF, LOG_BOOT >> 8, now.hour(), now.minute(), now.second(), LOG_VERSION };
+		logFile.write(boot, sizeof(boot));
+	}
+#else
 	logFile.print("----");
 	logFile.print(now.hour(), DEC);
 	logFile.print(":");
 	logFile.print(now.minute(), DEC);
 	logFile.print(":");
 	logFile.println(now.second(), DEC);
+#endif
 	logFile.sync(); 
 
 	// leave green light on while waiting for input
@@ -71,6 +85,24 @@ void setup() {
 	digitalWrite(greenLED, HIGH);
 }
 
+// writes a beat to the log, as a period from the previous one in a binary log
+void logBeat(uint32_t time) {
+#ifdef BINARY_LOG
+	uint32_t periode = time - lastBeat;
+	if (periode < LOG_GAP) {
+		uint8_t record[] = { periode & 0xFF, periode >> 8 };
+		logFile.write(record, sizeof(record));
+	} else {
+		uint8_t record[] = { LOG_GAP & 0xFF, LOG_GAP >> 8,
+				time & 0xFF, (time >> 8) & 0xFF, (time >> 16) & 0xFF, time >> 24 };
+		logFile.write(record, sizeof(record));
+	}
+	lastBeat = time;
+#else
+	logFile.println(time, DEC);
+#endif
+}
+
 void loop(){
 	if(!state && digitalRead(beatIn)){
 		dataReady = true;
@@ -78,7 +110,7 @@ void loop(){
 		ms = millis();
 		lightOff = ms + 100;
 		digitalWrite(redLED, state); // show that a beat was detected
-		logFile.println(ms, DEC);
+		logBeat(ms);
 		if(debug){
 			Serial.print("beat: ");
 			Serial.println(ms);
@@ -110,14 +142,28 @@ void loop(){
 		case 'l':
 			logFile.close(); // doc says only one can be open at a time
 			root.ls(LS_SIZE);
+			Serial.println(); // empty line marks the end of the list
 			logFile.open(root, logName, O_CREAT | O_WRITE | O_APPEND);
 			break;
 		case 'o':
 			logFile.close(); // doc says only one can be open at a time
-			dataFile = SD.open(&buffer[2]);
+			{
+				// "o <file> <offset>" resumes an interrupted download
+				char *offset = strchr(&buffer[2], ' ');
+				if (offset) {
+					*offset++ = 0;
+				}
+				dataFile = SD.open(&buffer[2]);
+				if (dataFile && offset) {
+					dataFile.seek(atol(offset));
+				}
+			}
 			if (dataFile) { // if the file is available read it
-				while (dataFile.available()) {
-					Serial.write(dataFile.read());
+				// a block at a time rather than a call per byte
+				uint8_t block[64];
+				int read;
+				while ((read = dataFile.read(block, sizeof(block))) > 0) {
+					Serial.write(block, read);
 				}
 				dataFile.close();
 			} else { // if the file isn't open; out message
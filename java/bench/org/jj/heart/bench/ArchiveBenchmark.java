@@ -0,0 +1,191 @@
+package org.jj.heart.bench;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import org.jj.heart.DataAnalizer;
+import org.jj.heart.archive.BeatArchive;
+import org.jj.heart.archive.BeatArchiveReader;
+import org.jj.heart.data.BeatStore;
+import org.jj.heart.data.Workout;
+
+/**
+ * Compression and decoding speed of BeatArchive against the logs: bytes per beat, time to
+ * convert, to decode every beat, to decode random ten minute ranges, and to parse the log for
+ * comparison. Checks that the archive gives the same work-outs as the log.
+ * <pre>
+ * java org.jj.heart.bench.ArchiveBenchmark [-beats 1000000] [-time seconds] [log...]
+ * </pre>
+ * @author jjones
+ */
+public class ArchiveBenchmark {
+	static final int BEATS = 1000000;
+	/** length of the ranges read */
+	static final long RANGE = 600000;
+
+	/**
+	 * Runs an operation for about the given time after as long a warm-up
+	 * @return ms per operation
+	 */
+	static double time(Operation operation, double seconds) throws IOException {
+		long sink = 0;
+		for (int pass = 0; pass < 2; pass++) {
+			long start = System.nanoTime(), end = start + (long) (seconds * 1e9);
+			int runs = 0;
+			while (System.nanoTime() < end || runs < 3) {
+				sink += operation.run();
+				runs++;
+			}
+			if (pass == 1) {
+				if (sink == 42) {
+					System.out.print("");
+				}
+				return (System.nanoTime() - start) / 1e6 / runs;
+			}
+		}
+		return 0;
+	}
+
+	interface Operation {
+		long run() throws IOException;
+	}
+
+	public static void main(String[] args) throws IOException {
+		int beats = BEATS;
+		double seconds = 1;
+		List<File> logs = new ArrayList<File>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-beats")) {
+				beats = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-time")) {
+				seconds = Double.parseDouble(args[++i]);
+			} else {
+				logs.add(new File(args[i]));
+			}
+		}
+		File generated = null;
+		if (logs.isEmpty()) {
+			LogGenerator generator = new LogGenerator(beats).setSegments(4).setNoise(0.05).setDropout(0.02)
+					.setSpurious(0.02);
+			generated = File.createTempFile("archive", ".LOG");
+			FileWriter writer = new FileWriter(generated);
+			try {
+				writer.write(generator.generate(generator.durationFor(beats)));
+			} finally {
+				writer.close();
+			}
+			logs.add(generated);
+		}
+
+		System.out.println("# log                 beats   log B/beat  hra B/beat  convert ms   parse ms  decode ms"
+				+ "  Mbeats/s  range ms");
+		for (final File log : logs) {
+			final File archive = File.createTempFile("archive", "." + BeatArchive.EXTENSION);
+			try {
+				long count = BeatArchive.convert(log, archive);
+				check(log, archive);
+				double convert = time(new Operation() {
+					public long run() throws IOException {
+						return BeatArchive.convert(log, archive);
+					}
+				}, seconds);
+				double parse = time(new Operation() {
+					public long run() throws IOException {
+						return DataAnalizer.parseLog(log).size();
+					}
+				}, seconds);
+				final BeatArchiveReader reader = new BeatArchiveReader(archive);
+				try {
+					double decode = time(new Operation() {
+						public long run() throws IOException {
+							long sum = 0;
+							for (int s = 0; s < reader.size(); s++) {
+								sum += reader.readTimes(s).length;
+							}
+							return sum;
+						}
+					}, seconds);
+					final Random random = new Random(1);
+					double range = time(new Operation() {
+						public long run() throws IOException {
+							int s = random.nextInt(reader.size());
+							if (reader.getBlockCount(s) == 0) {
+								return 0;
+							}
+							long first = reader.getFirstTime(s, 0);
+							long last = reader.getFirstTime(s, reader.getBlockCount(s) - 1);
+							long from = first + (long) (random.nextDouble() * Math.max(1, last - first));
+							return reader.readTimes(s, from, from + RANGE).length;
+						}
+					}, seconds);
+					System.out.println(String.format(Locale.US, "%-18s %9d %12.2f %11.2f %11.1f %10.1f %10.2f %9.1f %9.3f",
+							log.getName().length() > 18 ? log.getName().substring(0, 18) : log.getName(), count,
+							log.length() / (double) count, archive.length() / (double) count, convert, parse, decode,
+							count / decode / 1e3, range));
+				} finally {
+					reader.close();
+				}
+			} finally {
+				archive.delete();
+			}
+		}
+		if (generated != null) {
+			generated.delete();
+		}
+	}
+
+	/**
+	 * Fails unless the archive gives the work-outs of the log, beat for beat, and every range
+	 * the beats of the range
+	 */
+	static void check(File log, File archive) throws IOException {
+		List<Workout> expected = DataAnalizer.parseLog(log);
+		BeatArchiveReader reader = new BeatArchiveReader(archive);
+		try {
+			List<Workout> actual = reader.readWorkouts();
+			if (expected.size() != actual.size()) {
+				throw new IllegalStateException(log + ": " + actual.size() + " work-outs instead of " + expected.size());
+			}
+			for (int w = 0; w < expected.size(); w++) {
+				BeatStore a = expected.get(w).getBeatStore(), b = actual.get(w).getBeatStore();
+				if (a.size() != b.size() || expected.get(w).getTotalBeats() != actual.get(w).getTotalBeats()) {
+					throw new IllegalStateException(log + ": work-out " + w + " differs");
+				}
+				for (int i = 0; i < a.size(); i++) {
+					if (a.getTime(i) != b.getTime(i) || a.isValid(i) != b.isValid(i)) {
+						throw new IllegalStateException(log + ": beat " + i + " of work-out " + w + " differs");
+					}
+				}
+			}
+			Random random = new Random(log.length());
+			for (int s = 0; s < reader.size(); s++) {
+				long[] all = reader.readTimes(s);
+				for (int r = 0; r < 20 && all.length > 0; r++) {
+					long from = all[random.nextInt(all.length)] + random.nextInt(3) - 1;
+					long to = from + random.nextInt((int) RANGE * 2);
+					long[] range = reader.readTimes(s, from, to);
+					int expectedCount = 0;
+					for (long time : all) {
+						if (time >= from && time <= to) {
+							if (range[expectedCount] != time) {
+								throw new IllegalStateException(log + ": range " + from + "-" + to + " differs");
+							}
+							expectedCount++;
+						}
+					}
+					if (range.length != expectedCount) {
+						throw new IllegalStateException(log + ": range " + from + "-" + to + " has " + range.length
+								+ " beats instead of " + expectedCount);
+					}
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+}
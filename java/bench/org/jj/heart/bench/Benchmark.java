@@ -0,0 +1,283 @@
+package org.jj.heart.bench;
+
+import java.awt.Dimension;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.jj.heart.DataAnalizer;
+import org.jj.heart.data.LogParser;
+import org.jj.heart.data.SessionMerger;
+import org.jj.heart.data.Workout;
+
+/**
+ * Times the stages of reading a log (parse, merge, validate, render) on generated logs<br/>
+ * Each stage runs untimed for the warm-up, then is timed one operation at a time
+ * (the preparation of an operation is not counted), reporting the throughput and
+ * the bytes allocated by the benchmark thread.
+ * "parse" is the whole of DataAnalizer.parseLog, which also merges and validates;
+ * the other stages time SessionMerger, Workout.validate and DataAnalizer.visualize alone.
+ * StageBenchmark runs the same stages under JMH, in a forked JVM: this one needs nothing but the JDK.
+ * <pre>
+ * java org.jj.heart.bench.Benchmark [-sizes 1000,100000,1000000] [-stages parse,merge,validate,render]
+ *      [-time seconds] [-out results.txt] [-baseline baseline.txt]
+ * </pre>
+ * @author jjones
+ */
+public class Benchmark {
+	static final int[] SIZES = { 1000, 100000, 1000000 };
+	static final String[] STAGES = { "parse", "merge", "validate", "render" };
+	/** power interruptions in the generated logs, so merge has something to do */
+	static final int SEGMENTS = 4;
+	static final Dimension IMAGE = new Dimension(1440, 1080);
+	static final int MIN_OPERATIONS = 5;
+
+	/**
+	 * One step of reading a log
+	 */
+	static abstract class Stage {
+		protected byte[] log;
+		protected List<Workout> raw, merged;
+
+		void setUp(byte[] log) throws IOException {
+			this.log = log;
+			raw = new ArrayList<Workout>();
+			LogParser parser = new LogParser(new ByteArrayInputStream(log));
+			Workout workout;
+			while (null != (workout = parser.next())) {
+				raw.add(workout);
+			}
+			merged = DataAnalizer.parseLog(new ByteArrayInputStream(log));
+		}
+
+		/** untimed preparation of the next operation */
+		void prepare() {
+		}
+
+		/** @return something depending on the work so it is not optimized away */
+		abstract long run() throws IOException;
+	}
+
+	static Stage stage(String name) {
+		if (name.equals("parse")) {
+			return new Stage() {
+				long run() throws IOException {
+					return DataAnalizer.parseLog(new ByteArrayInputStream(log)).size();
+				}
+			};
+		}
+		if (name.equals("merge")) {
+			return new Stage() {
+				private List<Workout> copies;
+
+				void prepare() {
+					// merging changes the segments: merge fresh copies each time
+					copies = new ArrayList<Workout>(raw.size());
+					for (Workout segment : raw) {
+						copies.add(copy(segment));
+					}
+				}
+
+				long run() {
+					SessionMerger session = new SessionMerger(copies.get(0));
+					for (int i = 1; i < copies.size(); i++) {
+						session.add(copies.get(i));
+					}
+					return session.merge().getBeatStore().size();
+				}
+			};
+		}
+		if (name.equals("validate")) {
+			return new Stage() {
+				long run() {
+					long beats = 0;
+					for (Workout workout : merged) {
+						workout.validate();
+						beats += workout.getTotalBeats();
+					}
+					return beats;
+				}
+			};
+		}
+		if (name.equals("render")) {
+			return new Stage() {
+				long run() {
+					return DataAnalizer.visualize(merged.get(0), IMAGE).getRGB(0, 0);
+				}
+			};
+		}
+		throw new IllegalArgumentException("unknown stage " + name);
+	}
+
+	static Workout copy(Workout workout) {
+		Workout copy = new Workout();
+		copy.setTimeStamp(workout.getTimeStamp());
+		copy.setBegin(workout.getBegin());
+		copy.getBeatStore().addAll(workout.getBeatStore(), 0);
+		return copy;
+	}
+
+	/**
+	 * Measured figures of a stage at a size
+	 */
+	static class Result {
+		final String stage;
+		final int beats;
+		final double opsPerSecond;
+		/** bytes allocated per operation, -1 when the JVM cannot tell */
+		final long allocated;
+
+		Result(String stage, int beats, double opsPerSecond, long allocated) {
+			this.stage = stage;
+			this.beats = beats;
+			this.opsPerSecond = opsPerSecond;
+			this.allocated = allocated;
+		}
+
+		String key() {
+			return stage + " " + beats;
+		}
+
+		String format() {
+			return String.format(Locale.US, "%-9s %8d %12.2f %10.2f %12d %10.1f", stage, beats, opsPerSecond,
+					opsPerSecond * beats / 1e6, allocated, allocated * opsPerSecond / 1e6);
+		}
+
+		static Result parse(String line) {
+			String[] fields = line.trim().split("\\s+");
+			return new Result(fields[0], Integer.parseInt(fields[1]), Double.parseDouble(fields[2]),
+					Long.parseLong(fields[4]));
+		}
+	}
+
+	static final String HEADER = "# stage      beats        ops/s   Mbeats/s  bytes/op   alloc MB/s";
+
+	/**
+	 * Times a stage: warm-up then timed operations for about the same time
+	 */
+	static Result measure(String name, Stage stage, int beats, long nanos) throws IOException {
+		long sink = 0;
+		long end = System.nanoTime() + nanos;
+		int warmups = 0;
+		while (System.nanoTime() < end || warmups < MIN_OPERATIONS) {
+			stage.prepare();
+			sink += stage.run();
+			warmups++;
+		}
+
+		long timed = 0, allocated = 0;
+		int operations = 0;
+		end = System.nanoTime() + nanos;
+		while (System.nanoTime() < end || operations < MIN_OPERATIONS) {
+			stage.prepare();
+			long bytes = allocatedBytes();
+			long start = System.nanoTime();
+			sink += stage.run();
+			timed += System.nanoTime() - start;
+			allocated += allocatedBytes() - bytes;
+			operations++;
+		}
+		if (sink == 42) {
+			System.out.print("");
+		}
+		return new Result(name, beats, operations * 1e9 / timed, allocated < 0 ? -1 : allocated / operations);
+	}
+
+	/**
+	 * @return bytes allocated so far by this thread or a negative number if unknown
+	 */
+	static long allocatedBytes() {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return Long.MIN_VALUE / 2;
+	}
+
+	static Map<String, Result> readResults(File file) throws IOException {
+		Map<String, Result> results = new HashMap<String, Result>();
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while (null != (line = in.readLine())) {
+				if (line.trim().length() > 0 && !line.startsWith("#")) {
+					Result result = Result.parse(line);
+					results.put(result.key(), result);
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return results;
+	}
+
+	public static void main(String[] args) throws IOException {
+		int[] sizes = SIZES;
+		String[] stages = STAGES;
+		double seconds = 2;
+		File out = null, baseline = null;
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			if (args[i].equals("-sizes")) {
+				String[] values = args[i + 1].split(",");
+				sizes = new int[values.length];
+				for (int s = 0; s < values.length; s++) {
+					sizes[s] = Integer.parseInt(values[s]);
+				}
+			} else if (args[i].equals("-stages")) {
+				stages = args[i + 1].split(",");
+			} else if (args[i].equals("-time")) {
+				seconds = Double.parseDouble(args[i + 1]);
+			} else if (args[i].equals("-out")) {
+				out = new File(args[i + 1]);
+			} else if (args[i].equals("-baseline")) {
+				baseline = new File(args[i + 1]);
+			} else {
+				throw new IllegalArgumentException("unknown option " + args[i]);
+			}
+		}
+		Map<String, Result> base = baseline == null ? null : readResults(baseline);
+
+		System.out.println(HEADER + (base == null ? "" : "   vs baseline"));
+		List<Result> results = new ArrayList<Result>();
+		for (int beats : sizes) {
+			LogGenerator generator = new LogGenerator(beats).setSegments(SEGMENTS);
+			byte[] log = generator.generate(generator.durationFor(beats)).getBytes("ISO-8859-1");
+			for (String name : stages) {
+				Stage stage = stage(name);
+				stage.setUp(log);
+				Result result = measure(name, stage, beats, (long) (seconds * 1e9));
+				results.add(result);
+				String line = result.format();
+				Result before = base == null ? null : base.get(result.key());
+				if (before != null) {
+					line += String.format(Locale.US, "   %+6.1f%%", (result.opsPerSecond / before.opsPerSecond - 1) * 100);
+				}
+				System.out.println(line);
+			}
+		}
+
+		if (out != null) {
+			PrintWriter writer = new PrintWriter(new FileWriter(out));
+			try {
+				writer.println("# " + System.getProperty("java.vm.name") + " " + System.getProperty("java.version")
+						+ ", " + Runtime.getRuntime().availableProcessors() + " cpu, " + seconds + " s per stage");
+				writer.println(HEADER);
+				for (Result result : results) {
+					writer.println(result.format());
+				}
+			} finally {
+				writer.close();
+			}
+		}
+	}
+}
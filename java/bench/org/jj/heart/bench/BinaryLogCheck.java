@@ -0,0 +1,158 @@
+package org.jj.heart.bench;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.jj.heart.DataAnalizer;
+import org.jj.heart.data.BeatStore;
+import org.jj.heart.data.BinaryLog;
+import org.jj.heart.data.LogIndex;
+import org.jj.heart.data.Workout;
+
+/**
+ * Checks that a log converted to the binary format of the firmware gives the same work-outs as
+ * the text log, through DataAnalizer.parseLog and LogIndex, also when binary segments follow
+ * text ones in the same log, and compares sizes, parsing times and transfer times at the baud
+ * rate of the monitor.
+ * <pre>
+ * java org.jj.heart.bench.BinaryLogCheck [-beats 200000] [log...]
+ * </pre>
+ * @author jjones
+ */
+public class BinaryLogCheck {
+	static final int BEATS = 200000;
+	/** the firmware serial speed, 8N1 */
+	static final int BAUD_RATE = 57600;
+
+	public static void main(String[] args) throws IOException {
+		int beats = BEATS;
+		File dir = null;
+		List<File> logs = new ArrayList<File>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-beats")) {
+				beats = Integer.parseInt(args[++i]);
+			} else {
+				logs.add(new File(args[i]));
+			}
+		}
+		if (logs.isEmpty()) {
+			dir = File.createTempFile("binary", "");
+			dir.delete();
+			dir.mkdir();
+			for (int seed = 1; seed <= 3; seed++) {
+				LogGenerator generator = new LogGenerator(seed).setSegments(seed).setDropout(0.02).setSpurious(0.02)
+						.setNoise(0.05);
+				File log = new File(dir, "2011050" + seed + ".LOG");
+				generator.write(log, generator.durationFor(beats));
+				logs.add(log);
+			}
+		}
+
+		System.out.println("# log                text KB  binary KB  ratio  text ms  binary ms  transfer s text/binary");
+		for (File log : logs) {
+			File binary = File.createTempFile("binary", ".LOG");
+			File mixed = File.createTempFile("mixed", ".LOG");
+			try {
+				BinaryLog.convert(log, binary);
+				List<Workout> expected = DataAnalizer.parseLog(log);
+				check(log + " binary", expected, DataAnalizer.parseLog(binary));
+				check(log + " binary index", expected, load(LogIndex.build(binary)));
+
+				// the text log followed by its binary conversion, as after a firmware update
+				append(mixed, log);
+				append(mixed, binary);
+				List<Workout> twice = DataAnalizer.parseLog(mixed);
+				List<Workout> textTwice = DataAnalizer.parseLog(concat(log, log));
+				check(log + " mixed", textTwice, twice);
+				check(log + " mixed index", textTwice, load(LogIndex.build(mixed)));
+
+				double textMs = time(log), binaryMs = time(binary);
+				System.out.println(String.format(Locale.US, "%-18s %9.1f %10.1f %6.2f %8.1f %10.1f %9.1f/%.1f",
+						log.getName(), log.length() / 1024.0, binary.length() / 1024.0,
+						log.length() / (double) binary.length(), textMs, binaryMs,
+						log.length() * 10.0 / BAUD_RATE, binary.length() * 10.0 / BAUD_RATE));
+			} finally {
+				binary.delete();
+				mixed.delete();
+			}
+		}
+		if (dir != null) {
+			for (File log : logs) {
+				log.delete();
+			}
+			dir.delete();
+		}
+		System.out.println("binary logs read as text logs: OK");
+	}
+
+	static List<Workout> load(LogIndex index) throws IOException {
+		List<Workout> workouts = new ArrayList<Workout>();
+		for (int i = 0; i < index.size(); i++) {
+			workouts.add(index.load(i));
+		}
+		return workouts;
+	}
+
+	static void check(String name, List<Workout> expected, List<Workout> actual) {
+		if (expected.size() != actual.size()) {
+			throw new IllegalStateException(name + ": " + actual.size() + " work-outs instead of " + expected.size());
+		}
+		for (int w = 0; w < expected.size(); w++) {
+			Workout a = expected.get(w), b = actual.get(w);
+			BeatStore x = a.getBeatStore(), y = b.getBeatStore();
+			if (!a.getTimeStamp().equals(b.getTimeStamp()) || x.size() != y.size()
+					|| a.getTotalBeats() != b.getTotalBeats() || a.getFirstValid() != b.getFirstValid()
+					|| a.getLastValid() != b.getLastValid()) {
+				throw new IllegalStateException(name + ": work-out " + w + " differs");
+			}
+			for (int i = 0; i < x.size(); i++) {
+				if (x.getTime(i) != y.getTime(i) || x.isValid(i) != y.isValid(i)) {
+					throw new IllegalStateException(name + ": beat " + i + " of work-out " + w + " differs");
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return ms to parse a log, best of a few runs
+	 */
+	static double time(File log) throws IOException {
+		long best = Long.MAX_VALUE;
+		for (int run = 0; run < 5; run++) {
+			long start = System.nanoTime();
+			DataAnalizer.parseLog(log);
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		return best / 1e6;
+	}
+
+	static File concat(File first, File second) throws IOException {
+		File both = File.createTempFile("both", ".LOG");
+		both.deleteOnExit();
+		append(both, first);
+		append(both, second);
+		return both;
+	}
+
+	static void append(File target, File source) throws IOException {
+		InputStream in = new FileInputStream(source);
+		OutputStream out = new FileOutputStream(target, true);
+		try {
+			byte[] buffer = new byte[65536];
+			int read;
+			while ((read = in.read(buffer)) > 0) {
+				out.write(buffer, 0, read);
+			}
+		} finally {
+			out.close();
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,144 @@
+package org.jj.heart.bench;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.jj.heart.DataAnalizer;
+import org.jj.heart.data.Workout;
+import org.jj.heart.serial.DownloadListener;
+import org.jj.heart.serial.RemoteFile;
+import org.jj.heart.serial.SdCardClient;
+import org.jj.heart.serial.SimulatedDevice;
+
+/**
+ * Checks SdCardClient against a SimulatedDevice: the logs downloaded in one go and those whose
+ * transfer was cut and resumed from their ".part" file are the same as on the card, byte for byte,
+ * and the work-outs parsed while downloading are those of the logs.
+ * <pre>
+ * java org.jj.heart.bench.DownloadCheck [-beats 100000]
+ * </pre>
+ * @author jjones
+ */
+public class DownloadCheck {
+	static final int BEATS = 100000;
+
+	public static void main(String[] args) throws IOException {
+		int beats = BEATS;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-beats")) {
+				beats = Integer.parseInt(args[++i]);
+			}
+		}
+		File card = directory("card");
+		File whole = directory("whole");
+		File resumed = directory("resumed");
+		try {
+			for (int seed = 1; seed <= 3; seed++) {
+				LogGenerator generator = new LogGenerator(seed).setDropout(0.02).setNoise(0.05);
+				generator.write(new File(card, "2011060" + seed + ".LOG"), generator.durationFor(beats));
+			}
+
+			Map<String, List<Workout>> parsed = download(card, whole, -1);
+			check(card, whole, parsed);
+			// the first transfer stops in the middle of the first log, the next attempt resumes it
+			long cut = new File(card, "20110601.LOG").length() * 2 / 3;
+			parsed = download(card, resumed, cut);
+			check(card, resumed, parsed);
+			System.out.println("resumed after " + cut + " bytes: OK");
+		} finally {
+			delete(card);
+			delete(whole);
+			delete(resumed);
+		}
+	}
+
+	/**
+	 * @param failAfter bytes sent by the first dump before the link goes quiet, -1 for none
+	 * @return the work-outs parsed while downloading by file name
+	 */
+	static Map<String, List<Workout>> download(File card, File dir, long failAfter) throws IOException {
+		final Map<String, List<Workout>> parsed = new HashMap<String, List<Workout>>();
+		SimulatedDevice device = new SimulatedDevice(card, 0);
+		try {
+			device.setFailAfter(failAfter);
+			long start = System.nanoTime();
+			int downloaded = new SdCardClient(device).downloadAll(dir, new DownloadListener() {
+				public void progress(RemoteFile file, long bytes) {
+				}
+
+				public void skipped(RemoteFile file) {
+				}
+
+				public void downloaded(File file, List<Workout> workouts) {
+					synchronized (parsed) {
+						parsed.put(file.getName(), workouts);
+					}
+				}
+
+				public void failed(RemoteFile file, Exception e) {
+					throw new IllegalStateException(file.name + " not downloaded", e);
+				}
+			});
+			System.out.println(String.format(Locale.US, "%d logs downloaded in %.0f ms", downloaded,
+					(System.nanoTime() - start) / 1e6));
+		} finally {
+			device.close();
+		}
+		return parsed;
+	}
+
+	/**
+	 * Fails unless each log of the card was downloaded as it is and parsed as DataAnalizer parses it
+	 */
+	static void check(File card, File dir, Map<String, List<Workout>> parsed) throws IOException {
+		for (File log : card.listFiles()) {
+			File copy = new File(dir, log.getName());
+			if (!Arrays.equals(read(log), read(copy))) {
+				throw new IllegalStateException(copy + " differs from the card");
+			}
+			if (new File(copy.getPath() + ".part").exists()) {
+				throw new IllegalStateException(copy + " left its part file");
+			}
+			List<Workout> workouts = parsed.get(log.getName());
+			if (workouts == null) {
+				throw new IllegalStateException(copy + " not parsed");
+			}
+			BinaryLogCheck.check(copy.getPath(), DataAnalizer.parseLog(log), workouts);
+		}
+	}
+
+	static byte[] read(File file) throws IOException {
+		byte[] bytes = new byte[(int) file.length()];
+		InputStream in = new FileInputStream(file);
+		try {
+			int read = 0, n;
+			while (read < bytes.length && (n = in.read(bytes, read, bytes.length - read)) > 0) {
+				read += n;
+			}
+		} finally {
+			in.close();
+		}
+		return bytes;
+	}
+
+	static File directory(String prefix) throws IOException {
+		File dir = File.createTempFile(prefix, "");
+		dir.delete();
+		dir.mkdir();
+		return dir;
+	}
+
+	static void delete(File dir) {
+		for (File file : dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
+	}
+}
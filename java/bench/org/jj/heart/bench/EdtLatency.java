@@ -0,0 +1,178 @@
+package org.jj.heart.bench;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
+
+import org.jj.heart.DataAnalizer;
+import org.jj.heart.EdtWatchdog;
+import org.jj.heart.ImagePanel;
+import org.jj.heart.WorkoutLoader;
+import org.jj.heart.data.Workout;
+
+/**
+ * Checks that opening large logs leaves the event dispatch thread free: opens generated logs
+ * through the WorkoutLoader the way the window does (cancelling a first open with a second one)
+ * and paints the work-out loaded, right away and again once its graph is drawn.<br/>
+ * Fails when the work done on the event dispatch thread (loader calls and paints) took longer
+ * than the limit, in CPU time so that the loader thread taking the core meanwhile does not count,
+ * or when a probe posted to it waited longer than the stall limit. The probes
+ * also wait for garbage collections and the scheduler, up to about 20 ms on a single core,
+ * hence the separate limit. Runs without a display.
+ * <pre>
+ * java org.jj.heart.bench.EdtLatency [beats [limit ms [stall limit ms]]]
+ * </pre>
+ * @author jjones
+ */
+public class EdtLatency {
+	static final int WIDTH = 800, HEIGHT = 600;
+	/** default longest work on the event dispatch thread, in ms */
+	static final long LIMIT = 5;
+	/** default longest wait of a probe, in ms */
+	static final long STALL_LIMIT = 50;
+
+	private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	/** longest work on the event dispatch thread, in ns (only changed there) */
+	private static long longest;
+
+	public static void main(String[] args) throws Exception {
+		int beats = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		long limit = args.length > 1 ? Long.parseLong(args[1]) : LIMIT;
+		long stallLimit = args.length > 2 ? Long.parseLong(args[2]) : STALL_LIMIT;
+
+		File dir = new File(System.getProperty("java.io.tmpdir"), "edt-latency");
+		dir.mkdirs();
+		File first = log(dir, "FIRST.LOG", beats, 1);
+		File second = log(dir, "SECOND.LOG", beats, 2);
+
+		final ImagePanel panel = new ImagePanel(new JPanel());
+		panel.setSize(WIDTH, HEIGHT);
+		final CountDownLatch loaded = new CountDownLatch(1);
+		final int[] opened = new int[1];
+		final WorkoutLoader[] loader = new WorkoutLoader[1];
+		SwingUtilities.invokeAndWait(new Runnable() {
+			public void run() {
+				loader[0] = new WorkoutLoader(new WorkoutLoader.Listener() {
+					public void opened(File file, int count) {
+						long start = now();
+						opened[0]++;
+						took(start);
+					}
+
+					public void loaded(int index, Workout w) {
+						// what the window does with a work-out: graph it and paint it
+						long start = now();
+						panel.setWorkout(w);
+						paint(panel);
+						took(start);
+						loaded.countDown();
+					}
+
+					public void progress(String message) {
+					}
+
+					public void failed(Exception e) {
+						e.printStackTrace();
+					}
+				});
+			}
+		});
+
+		// a window on screen has painted before: load the drawing classes first
+		final Workout small = DataAnalizer.parseLog(new LogGenerator(0).generate(600000)).get(0);
+		SwingUtilities.invokeAndWait(new Runnable() {
+			public void run() {
+				panel.setWorkout(small);
+				paint(panel);
+			}
+		});
+		Thread.sleep(500);
+		timedPaint(panel);
+		longest = 0;
+
+		EdtWatchdog watchdog = new EdtWatchdog(stallLimit, System.out);
+		watchdog.start();
+		final File[] logs = { first, second };
+		long start = System.nanoTime();
+		SwingUtilities.invokeAndWait(new Runnable() {
+			public void run() {
+				// the second request cancels the first
+				loader[0].open(logs[0]);
+				loader[0].open(logs[1]);
+			}
+		});
+		if (!loaded.await(5, TimeUnit.MINUTES)) {
+			throw new IllegalStateException("nothing loaded");
+		}
+		long time = (System.nanoTime() - start) / 1000000;
+		// the graph is drawn in the background, then painted as is
+		Thread.sleep(500);
+		timedPaint(panel);
+		Thread.sleep(100);
+		watchdog.stop();
+
+		System.out.println(beats + " beats opened in " + time + " ms, files opened: " + opened[0]
+				+ ", longest work on the event dispatch thread " + longest / 1000 / 1000.0 + " ms, "
+				+ watchdog.getProbes() + " probes waited at most " + watchdog.getMaxLatency() / 1000.0 + " ms");
+		if (opened[0] != 1) {
+			fail("the first request was not cancelled");
+		}
+		if (longest > limit * 1000000) {
+			fail("work on the event dispatch thread took over " + limit + " ms");
+		}
+		if (watchdog.getMaxLatency() > stallLimit * 1000) {
+			fail("the event dispatch thread was blocked over " + stallLimit + " ms");
+		}
+		System.out.println("OK");
+	}
+
+	private static void fail(String message) {
+		System.out.println("FAILED: " + message);
+		System.exit(1);
+	}
+
+	private static void took(long start) {
+		longest = Math.max(longest, now() - start);
+	}
+
+	/**
+	 * @return the CPU time of the current thread in ns, where the JVM measures it
+	 */
+	private static long now() {
+		return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+	}
+
+	private static void paint(ImagePanel panel) {
+		BufferedImage screen = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = screen.createGraphics();
+		panel.paint(g);
+		g.dispose();
+	}
+
+	private static void timedPaint(final ImagePanel panel) throws Exception {
+		SwingUtilities.invokeAndWait(new Runnable() {
+			public void run() {
+				long start = now();
+				paint(panel);
+				took(start);
+			}
+		});
+	}
+
+	private static File log(File dir, String name, int beats, long seed) throws IOException {
+		File log = new File(dir, name);
+		LogGenerator generator = new LogGenerator(seed).setSegments(3);
+		generator.write(log, generator.durationFor(beats));
+		// no binary copy: the log is parsed
+		new File(dir, name.replace(".LOG", ".hrb")).delete();
+		return log;
+	}
+}
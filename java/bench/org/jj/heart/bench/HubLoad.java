@@ -0,0 +1,215 @@
+package org.jj.heart.bench;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jj.heart.data.BeatStore;
+import org.jj.heart.data.LogParser;
+import org.jj.heart.data.Workout;
+import org.jj.heart.serial.IngestionHub;
+
+/**
+ * Load generator for IngestionHub: replays logs as many simulated monitors, each streaming
+ * "beat: ms" lines over its own TCP connection to a hub running in the same JVM, and reports the
+ * sustained beats per second and the latency from the time a beat is due to its validation<br/>
+ * Every device starts at the same instant and sends its beats when they are due at the replay
+ * speed (work-outs after the first continue from the end of the previous one, like ReplayLink).
+ * The latency of a batch is that of its oldest beat. Without logs, each device replays a
+ * generated log of its own.
+ * <pre>
+ * java org.jj.heart.bench.HubLoad [-devices 12] [-speed 100] [-time seconds] [-threads n] [log...]
+ * </pre>
+ * @author jjones
+ */
+public class HubLoad {
+	static final int DEVICES = 12;
+	static final double SPEED = 100;
+	/** latencies kept for the percentiles */
+	static final int SAMPLES = 1 << 20;
+
+	/**
+	 * A monitor: sends the beats of a log when they are due
+	 */
+	static class Sender implements Runnable {
+		final File log;
+		final int port;
+		final double speed;
+		final long start;
+		final CountDownLatch done;
+		volatile IOException error;
+
+		Sender(File log, int port, double speed, long start, CountDownLatch done) {
+			this.log = log;
+			this.port = port;
+			this.speed = speed;
+			this.start = start;
+			this.done = done;
+		}
+
+		public void run() {
+			try {
+				Socket socket = new Socket("localhost", port);
+				InputStream in = new FileInputStream(log);
+				try {
+					OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+					LogParser parser = new LogParser(in);
+					Workout workout;
+					long offset = 0, last = 0, first = -1;
+					while (null != (workout = parser.next())) {
+						offset = last;
+						BeatStore beats = workout.getBeatStore();
+						for (int i = 0; i < beats.size(); i++) {
+							long time = beats.getTime(i) + offset;
+							if (first < 0) {
+								first = time;
+							}
+							long wait = due(start, first, time, speed) - System.nanoTime();
+							if (wait > 0) {
+								// everything due so far goes out before sleeping
+								out.flush();
+								Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+							}
+							out.write(("beat: " + time + "\r\n").getBytes("US-ASCII"));
+							last = time;
+						}
+					}
+					out.flush();
+				} finally {
+					in.close();
+					socket.close();
+				}
+			} catch (IOException e) {
+				error = e;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				done.countDown();
+			}
+		}
+	}
+
+	/**
+	 * @return when a beat is due, in System.nanoTime
+	 */
+	static long due(long start, long first, long time, double speed) {
+		return start + (long) ((time - first) * 1e6 / speed);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int devices = DEVICES;
+		double speed = SPEED, seconds = 0;
+		int threads = Runtime.getRuntime().availableProcessors();
+		List<File> logs = new ArrayList<File>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-devices")) {
+				devices = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-speed")) {
+				speed = Double.parseDouble(args[++i]);
+			} else if (args[i].equals("-time")) {
+				seconds = Double.parseDouble(args[++i]);
+			} else if (args[i].equals("-threads")) {
+				threads = Integer.parseInt(args[++i]);
+			} else {
+				logs.add(new File(args[i]));
+			}
+		}
+		List<File> generated = new ArrayList<File>();
+		if (logs.isEmpty()) {
+			// long enough to last the run, ten seconds without a time limit
+			long duration = (long) ((seconds > 0 ? seconds : 10) * speed * 1000);
+			for (int d = 0; d < devices; d++) {
+				File log = File.createTempFile("hub", ".LOG");
+				FileWriter writer = new FileWriter(log);
+				try {
+					writer.write(new LogGenerator(d).setNoise(0.05).setDropout(0.02).generate(duration));
+				} finally {
+					writer.close();
+				}
+				generated.add(log);
+			}
+			logs = generated;
+		}
+
+		final long[] latencies = new long[SAMPLES];
+		final AtomicInteger samples = new AtomicInteger();
+		final long start = System.nanoTime() + 500000000L;
+		final double replaySpeed = speed;
+		IngestionHub hub = new IngestionHub(threads, new IngestionHub.Listener() {
+			public void updated(IngestionHub.Device device, int from, int to) {
+				BeatStore beats = device.getWorkout().getBeatStore();
+				long latency = System.nanoTime() - due(start, beats.getTime(0), beats.getTime(from), replaySpeed);
+				int sample = samples.getAndIncrement();
+				if (sample < SAMPLES) {
+					latencies[sample] = latency;
+				}
+			}
+
+			public void ended(IngestionHub.Device device) {
+			}
+		});
+		hub.listen(0);
+
+		CountDownLatch done = new CountDownLatch(devices);
+		List<Sender> senders = new ArrayList<Sender>();
+		for (int d = 0; d < devices; d++) {
+			Sender sender = new Sender(logs.get(d % logs.size()), hub.getPort(), speed, start, done);
+			senders.add(sender);
+			Thread thread = new Thread(sender, "device " + (d + 1));
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		System.out.println(devices + " devices at " + speed + "x, " + threads + " dispatchers");
+		long end = seconds > 0 ? start + (long) (seconds * 1e9) : Long.MAX_VALUE;
+		long previous = 0, previousTime = start;
+		while (System.nanoTime() < start) {
+			Thread.sleep(10);
+		}
+		while (done.getCount() > 0 && System.nanoTime() < end) {
+			Thread.sleep(1000);
+			long beats = hub.getBeats(), now = System.nanoTime();
+			System.out.println(String.format(Locale.US, "%8.0f beats/s  %d devices", (beats - previous) * 1e9
+					/ (now - previousTime), hub.getDevices().size()));
+			previous = beats;
+			previousTime = now;
+		}
+		// the last beats still being validated
+		long settle = System.nanoTime() + 2000000000L;
+		while (!hub.getDevices().isEmpty() && done.getCount() == 0 && System.nanoTime() < settle) {
+			Thread.sleep(10);
+		}
+		long elapsed = System.nanoTime() - start;
+		long beats = hub.getBeats();
+		hub.stop();
+		for (Sender sender : senders) {
+			if (sender.error != null) {
+				System.out.println(sender.log + ": " + sender.error);
+			}
+		}
+		for (File log : generated) {
+			log.delete();
+		}
+
+		int count = Math.min(samples.get(), SAMPLES);
+		long[] sorted = Arrays.copyOf(latencies, count);
+		Arrays.sort(sorted);
+		System.out.println(String.format(Locale.US, "%d beats in %.1f s: %.0f beats/s sustained", beats, elapsed / 1e9,
+				beats * 1e9 / elapsed));
+		if (count > 0) {
+			System.out.println(String.format(Locale.US, "latency over %d batches: p50 %.2f ms  p99 %.2f ms  max %.2f ms",
+					count, sorted[count / 2] / 1e6, sorted[(int) (count * 0.99)] / 1e6, sorted[count - 1] / 1e6));
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package org.jj.heart.bench;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+
+import javax.imageio.ImageIO;
+
+import org.jj.heart.DataAnalizer;
+import org.jj.heart.ImageOutput;
+import org.jj.heart.data.Workout;
+
+/**
+ * Compares the image outputs on a generated work-out: time to draw, time to encode and size of
+ * the files written, per format<br/>
+ * "gif rgb" encodes like the historical output (full color image quantized by ImageIO) for
+ * reference, its drawing time includes the copy of the graph into an RGB image;
+ * the others draw in the indexed image of ImageOutput and encode with a reused encoder.
+ * Tiled outputs are timed over all their tiles, drawing counted in the encode time.
+ * <pre>
+ * java org.jj.heart.bench.ImageBenchmark [beats [time per output in s]]
+ * </pre>
+ * @author jjones
+ */
+public class ImageBenchmark {
+	static final int BEATS = 100000;
+	/** pixels per minute of the tiled outputs */
+	static final double TILE_SCALE = 60;
+
+	/**
+	 * One way of writing the graph of a work-out
+	 */
+	static abstract class Output {
+		final String name;
+		long drawn, encoded, bytes;
+		int files;
+
+		Output(String name) {
+			this.name = name;
+		}
+
+		/** draws and writes the work-out, adding to the times and sizes */
+		abstract void run(Workout workout, File target) throws IOException;
+	}
+
+	/**
+	 * The historical output: RGB image written by ImageIO.write
+	 */
+	static class RgbOutput extends Output {
+		RgbOutput() {
+			super("gif rgb");
+		}
+
+		void run(Workout workout, File target) throws IOException {
+			long start = System.nanoTime();
+			BufferedImage indexed = DataAnalizer.visualize(workout, ImageOutput.IMAGE);
+			BufferedImage image = new BufferedImage(indexed.getWidth(), indexed.getHeight(), BufferedImage.TYPE_INT_RGB);
+			Graphics2D graphics = image.createGraphics();
+			graphics.drawImage(indexed, 0, 0, null);
+			graphics.dispose();
+			long drawnAt = System.nanoTime();
+			ImageIO.write(image, "gif", target);
+			encoded += System.nanoTime() - drawnAt;
+			drawn += drawnAt - start;
+			bytes += target.length();
+			files++;
+		}
+	}
+
+	/**
+	 * An ImageOutput, drawn and encoded separately when it writes a single image
+	 */
+	static class IndexedOutput extends Output {
+		final ImageOutput output;
+
+		IndexedOutput(String name, ImageOutput output) {
+			super(name);
+			this.output = output;
+		}
+
+		void run(Workout workout, File target) throws IOException {
+			long start = System.nanoTime();
+			if (output.isTiled()) {
+				List<File> written = output.write(workout, target);
+				encoded += System.nanoTime() - start;
+				for (File file : written) {
+					bytes += file.length();
+					file.delete();
+				}
+				files += written.size();
+				return;
+			}
+			BufferedImage image = DataAnalizer.visualize(workout, ImageOutput.IMAGE);
+			long drawnAt = System.nanoTime();
+			output.write(image, target);
+			encoded += System.nanoTime() - drawnAt;
+			drawn += drawnAt - start;
+			bytes += target.length();
+			files++;
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		int beats = args.length > 0 ? Integer.parseInt(args[0]) : BEATS;
+		double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 3;
+		LogGenerator generator = new LogGenerator(beats);
+		byte[] log = generator.generate(generator.durationFor(beats)).getBytes("ISO-8859-1");
+		Workout workout = DataAnalizer.parseLog(new ByteArrayInputStream(log)).get(0);
+
+		Output[] outputs = { new RgbOutput(),
+				new IndexedOutput("gif", new ImageOutput(ImageOutput.Format.GIF, -1, 0)),
+				new IndexedOutput("png", new ImageOutput(ImageOutput.Format.PNG, -1, 0)),
+				new IndexedOutput("png 0", new ImageOutput(ImageOutput.Format.PNG, 0, 0)),
+				new IndexedOutput("png 0.5", new ImageOutput(ImageOutput.Format.PNG, 0.5f, 0)),
+				new IndexedOutput("png 1", new ImageOutput(ImageOutput.Format.PNG, 1, 0)),
+				new IndexedOutput("png tiled", new ImageOutput(ImageOutput.Format.PNG, -1, TILE_SCALE)) };
+		File target = File.createTempFile("image", ".img");
+		try {
+			System.out.println(workout.getBeatStore().size() + " beats, " + workout.getDuration() / 60000 + " min");
+			System.out.println("# output      draw ms  encode ms     KB/file  files/op");
+			for (Output output : outputs) {
+				// warm-up, then as many runs as fit in the time
+				long end = System.nanoTime() + (long) (seconds * 1e9 / 2);
+				while (System.nanoTime() < end) {
+					output.run(workout, target);
+				}
+				output.drawn = output.encoded = output.bytes = output.files = 0;
+				int runs = 0;
+				end = System.nanoTime() + (long) (seconds * 1e9 / 2);
+				while (System.nanoTime() < end || runs < 3) {
+					output.run(workout, target);
+					runs++;
+				}
+				System.out.println(String.format(Locale.US, "%-12s %8.2f %10.2f %11.1f %9d", output.name,
+						output.drawn / 1e6 / runs, output.encoded / 1e6 / runs, output.bytes / 1024.0 / output.files,
+						output.files / runs));
+			}
+		} finally {
+			target.delete();
+		}
+	}
+}
@@ -0,0 +1,150 @@
+package org.jj.heart.bench;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Random;
+
+/**
+ * Writes made up arduino logs: "----H:m:s" headers followed by the time of each beat in ms
+ * since boot<br/>
+ * The heart rate warms up from rest, goes through intervals and cools down; each beat moves
+ * with some noise, some beats are missed by the receiver (dropout) and some spurious beats are
+ * picked up from interference. A log can be cut in several segments like power interruptions.
+ * @author jjones
+ */
+public class LogGenerator {
+	private final Random random;
+	/** heart rates in bpm */
+	private int restRate = 70, peakRate = 165;
+	/** standard deviation of a period, relative to the period */
+	private double noise = 0.03;
+	/** probability of a beat not being received */
+	private double dropout = 0.01;
+	/** probability of an extra beat from interference */
+	private double spurious = 0.005;
+	/** power interruptions cutting the log */
+	private int segments = 1;
+
+	public LogGenerator(long seed) {
+		random = new Random(seed);
+	}
+
+	public LogGenerator setRates(int restRate, int peakRate) {
+		this.restRate = restRate;
+		this.peakRate = peakRate;
+		return this;
+	}
+
+	public LogGenerator setNoise(double noise) {
+		this.noise = noise;
+		return this;
+	}
+
+	public LogGenerator setDropout(double dropout) {
+		this.dropout = dropout;
+		return this;
+	}
+
+	public LogGenerator setSpurious(double spurious) {
+		this.spurious = spurious;
+		return this;
+	}
+
+	public LogGenerator setSegments(int segments) {
+		this.segments = segments;
+		return this;
+	}
+
+	/**
+	 * @param beats number of beats wanted
+	 * @return the duration of a work-out with about that many beats, in ms
+	 */
+	public long durationFor(int beats) {
+		// the profile averages about the middle of rest and peak
+		return beats * 120000L / (restRate + peakRate);
+	}
+
+	/**
+	 * @param duration length of the work-out in ms
+	 * @return the log contents
+	 */
+	public String generate(long duration) {
+		StringBuilder log = new StringBuilder((int) Math.min(Integer.MAX_VALUE, duration / 50));
+		try {
+			generate(duration, log);
+		} catch (IOException e) {
+			// not possible with a StringBuilder
+		}
+		return log.toString();
+	}
+
+	/**
+	 * Writes a log file
+	 * @param file where to write
+	 * @param duration length of the work-out in ms
+	 * @throws IOException
+	 */
+	public void write(File file, long duration) throws IOException {
+		Writer out = new BufferedWriter(new FileWriter(file), 65536);
+		try {
+			generate(duration, out);
+		} finally {
+			out.close();
+		}
+	}
+
+	private void generate(long duration, Appendable out) throws IOException {
+		int hour = 6 + random.nextInt(14), minute = random.nextInt(60), second = random.nextInt(60);
+		long segment = duration / segments;
+		long elapsed = 0;
+		for (int s = 0; s < segments; s++) {
+			// the clock keeps running during a short interruption
+			long clock = ((hour * 60 + minute) * 60 + second) * 1000L + elapsed;
+			out.append("----").append(clock(clock)).append("\r\n");
+			// the arduino boots a second or two before the first beat
+			long time = 1000 + random.nextInt(2000);
+			long end = s == segments - 1 ? duration : elapsed + segment;
+			while (elapsed < end) {
+				int periode = periode(elapsed, duration);
+				time += periode;
+				elapsed += periode;
+				if (random.nextDouble() < dropout) {
+					continue;
+				}
+				if (random.nextDouble() < spurious) {
+					out.append(Long.toString(time - 1 - random.nextInt(periode / 2))).append("\r\n");
+				}
+				out.append(Long.toString(time)).append("\r\n");
+			}
+			// a few seconds lost while the monitor reboots
+			elapsed += 2000 + random.nextInt(5000);
+		}
+	}
+
+	/**
+	 * @return a period around the rate of the profile at that moment
+	 */
+	private int periode(long elapsed, long duration) {
+		double progress = elapsed / (double) duration;
+		double effort;
+		if (progress < 0.15) {
+			effort = progress / 0.15 * 0.6; // warm-up
+		} else if (progress < 0.85) {
+			// intervals of a few minutes
+			effort = 0.6 + 0.4 * Math.max(0, Math.sin(elapsed / 90000.0));
+		} else {
+			effort = (1 - progress) / 0.15 * 0.6; // cool down
+		}
+		double rate = restRate + (peakRate - restRate) * effort;
+		double periode = 60000 / rate * (1 + noise * random.nextGaussian());
+		return (int) Math.max(250, Math.round(periode));
+	}
+
+	private static String clock(long ms) {
+		long seconds = ms / 1000 % 86400;
+		return seconds / 3600 + ":" + seconds / 60 % 60 + ":" + seconds % 60;
+	}
+}
@@ -0,0 +1,165 @@
+package org.jj.heart.bench;
+
+import java.awt.Dimension;
+import java.io.File;
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import org.jj.heart.ImageOutput;
+import org.jj.heart.TrendView;
+import org.jj.heart.catalog.RollupCell;
+import org.jj.heart.catalog.RollupLevel;
+import org.jj.heart.catalog.WorkoutRollup;
+
+/**
+ * Checks WorkoutRollup on a generated tree of daily logs: the week and month cells are the
+ * merge of their days, a rescan after adding and removing logs reads only those and gives the
+ * same cells as summing up everything again; then times the scans and the trend drawn per level.
+ * <pre>
+ * java org.jj.heart.bench.RollupCheck [days of logs (730)]
+ * </pre>
+ * @author jjones
+ */
+public class RollupCheck {
+	static final int DAYS = 730;
+
+	public static void main(String[] args) throws IOException {
+		int days = args.length > 0 ? Integer.parseInt(args[0]) : DAYS;
+		File dir = File.createTempFile("rollup", "");
+		dir.delete();
+		dir.mkdir();
+		try {
+			Random random = new Random(1);
+			Calendar day = new GregorianCalendar(2011, Calendar.JANUARY, 1);
+			int logs = 0;
+			for (int d = 0; d < days; d++, day.add(Calendar.DAY_OF_MONTH, 1)) {
+				// a work-out every other day or so, the resting rate slowly rising
+				if (random.nextInt(3) != 0) {
+					write(dir, day, random, 60 + d / 50);
+					logs++;
+				}
+			}
+
+			long start = System.nanoTime();
+			WorkoutRollup rollup = WorkoutRollup.open(dir);
+			int read = rollup.rescan();
+			rollup.save();
+			System.out.println(String.format(Locale.US, "%d logs summed up in %.0f ms", read,
+					(System.nanoTime() - start) / 1e6));
+			if (read != logs) {
+				throw new IllegalStateException(read + " logs read instead of " + logs);
+			}
+			checkLevels(rollup);
+
+			start = System.nanoTime();
+			rollup = WorkoutRollup.open(dir);
+			read = rollup.rescan();
+			System.out.println(String.format(Locale.US, "reopened and rescanned in %.1f ms, %d logs read",
+					(System.nanoTime() - start) / 1e6, read));
+
+			// one log more, one less
+			day = new GregorianCalendar(2011, Calendar.JANUARY, 1);
+			day.add(Calendar.DAY_OF_MONTH, days);
+			write(dir, day, random, 70);
+			File[] files = dir.listFiles();
+			for (File file : files) {
+				if (file.getName().endsWith(".LOG")) {
+					file.delete();
+					break;
+				}
+			}
+			start = System.nanoTime();
+			read = rollup.rescan();
+			rollup.save();
+			System.out.println(String.format(Locale.US, "rescanned in %.1f ms after a change, %d logs read",
+					(System.nanoTime() - start) / 1e6, read));
+			new File(dir, WorkoutRollup.FILE_NAME).delete();
+			WorkoutRollup rebuilt = WorkoutRollup.open(dir);
+			rebuilt.rescan();
+			for (RollupLevel level : RollupLevel.values()) {
+				if (!dump(rollup, level).equals(dump(rebuilt, level))) {
+					throw new IllegalStateException(level + " cells differ from a full rebuild");
+				}
+			}
+			checkLevels(rollup);
+
+			for (RollupLevel level : RollupLevel.values()) {
+				TrendView.visualize(rollup.getCells(level), level, ImageOutput.IMAGE);
+				int runs = 20;
+				start = System.nanoTime();
+				for (int i = 0; i < runs; i++) {
+					TrendView.visualize(rollup.getCells(level), level, ImageOutput.IMAGE);
+				}
+				System.out.println(String.format(Locale.US, "%-6s %5d cells drawn in %.1f ms", level.name()
+						.toLowerCase(), rollup.getCells(level).size(), (System.nanoTime() - start) / 1e6 / runs));
+			}
+			System.out.println("OK");
+		} finally {
+			for (File file : dir.listFiles()) {
+				file.delete();
+			}
+			dir.delete();
+		}
+	}
+
+	static void write(File dir, Calendar day, Random random, int restRate) throws IOException {
+		String name = String.format("%04d%02d%02d.LOG", day.get(Calendar.YEAR), day.get(Calendar.MONTH) + 1,
+				day.get(Calendar.DAY_OF_MONTH));
+		LogGenerator generator = new LogGenerator(random.nextLong()).setRates(restRate, 150 + random.nextInt(30))
+				.setNoise(0.03);
+		generator.write(new File(dir, name), generator.durationFor(2000 + random.nextInt(4000)));
+	}
+
+	/**
+	 * Fails unless every week and month cell is the merge of its day cells
+	 */
+	static void checkLevels(WorkoutRollup rollup) {
+		for (RollupLevel level : RollupLevel.values()) {
+			if (level == RollupLevel.DAY) {
+				continue;
+			}
+			int cells = 0;
+			for (Map.Entry<Integer, RollupCell> cell : rollup.getCells(level).entrySet()) {
+				int workouts = 0, min = Integer.MAX_VALUE, max = 0;
+				long duration = 0, beats = 0;
+				for (RollupCell day : rollup.getCells(RollupLevel.DAY).subMap(cell.getKey(),
+						level.next(cell.getKey())).values()) {
+					workouts += day.getWorkouts();
+					duration += day.getDuration();
+					beats += day.getTotalBeats();
+					min = Math.min(min, day.getMin());
+					max = Math.max(max, day.getMax());
+				}
+				RollupCell c = cell.getValue();
+				if (c.getWorkouts() != workouts || c.getDuration() != duration || c.getTotalBeats() != beats
+						|| c.getMin() != min || c.getMax() != max) {
+					throw new IllegalStateException(level + " " + cell.getKey() + " is not the merge of its days");
+				}
+				cells += workouts;
+			}
+			if (cells != count(rollup)) {
+				throw new IllegalStateException(level + " cells miss work-outs");
+			}
+		}
+	}
+
+	static int count(WorkoutRollup rollup) {
+		int workouts = 0;
+		for (RollupCell day : rollup.getCells(RollupLevel.DAY).values()) {
+			workouts += day.getWorkouts();
+		}
+		return workouts;
+	}
+
+	static String dump(WorkoutRollup rollup, RollupLevel level) {
+		StringBuilder cells = new StringBuilder();
+		for (Map.Entry<Integer, RollupCell> cell : rollup.getCells(level).entrySet()) {
+			cells.append(cell.getKey()).append(' ').append(cell.getValue()).append('\n');
+		}
+		return cells.toString();
+	}
+}
@@ -0,0 +1,136 @@
+package org.jj.heart.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.jj.heart.data.BeatStore;
+import org.jj.heart.data.BeatValidator;
+import org.jj.heart.data.LogParser;
+import org.jj.heart.data.ParallelValidator;
+import org.jj.heart.data.Workout;
+
+/**
+ * Checks that ParallelValidator gives exactly what Workout.validate gives: periods, validity
+ * bits, first and last valid beat, total beats, min and max<br/>
+ * Each case is a random work-out validated both ways with random settings and a random chunk
+ * size, small enough to put many chunk boundaries in a short work-out. The work-outs are either
+ * generated logs (noise, dropouts, spurious beats) or made up beat times with long stretches
+ * of invalid beats, crossing several chunks, or with no valid beat at all. Prints the seed of
+ * the first case that differs.
+ * <pre>
+ * java org.jj.heart.bench.ValidationCheck [cases [seed]]
+ * </pre>
+ * @author jjones
+ */
+public class ValidationCheck {
+	public static void main(String[] args) throws IOException {
+		int cases = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+		long seed = args.length > 1 ? Long.parseLong(args[1]) : System.nanoTime();
+		ForkJoinPool pool = new ForkJoinPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+		long beats = 0;
+		for (int c = 0; c < cases; c++) {
+			Random random = new Random(seed + c);
+			long[] times = random.nextInt(3) == 0 ? madeUp(random) : generated(random);
+			int sampleSize = 1 + random.nextInt(12);
+			double tolerance = 0.05 + 0.3 * random.nextDouble();
+			int chunk = 64 << random.nextInt(7);
+
+			Workout sequential = workout(times), parallel = workout(times);
+			sequential.validate(new BeatValidator(sampleSize, tolerance));
+			new ParallelValidator(pool, chunk).validate(parallel, new BeatValidator(sampleSize, tolerance));
+			String difference = compare(sequential, parallel);
+			if (difference != null) {
+				System.out.println("FAILED: seed " + (seed + c) + ", " + times.length + " beats, sample "
+						+ sampleSize + ", tolerance " + tolerance + ", chunk " + chunk + ": " + difference);
+				System.exit(1);
+			}
+			beats += times.length;
+		}
+		pool.shutdown();
+		System.out.println(cases + " work-outs (" + beats + " beats) validated the same way, seed " + seed);
+		System.out.println("OK");
+	}
+
+	/**
+	 * @return the beat times of a generated log of up to an hour, segments merged
+	 */
+	static long[] generated(Random random) throws IOException {
+		LogGenerator generator = new LogGenerator(random.nextLong()).setNoise(random.nextDouble() * 0.2)
+				.setDropout(random.nextDouble() * 0.1).setSpurious(random.nextDouble() * 0.1)
+				.setSegments(1 + random.nextInt(3));
+		String log = generator.generate(60000 + random.nextInt(3600000));
+		LogParser parser = new LogParser(new ByteArrayInputStream(log.getBytes("ISO-8859-1")));
+		Workout first = parser.next(), next;
+		while (null != (next = parser.next())) {
+			first = first.merge(next);
+		}
+		BeatStore beats = first.getBeatStore();
+		long[] times = new long[beats.size()];
+		System.arraycopy(beats.getTimes(), 0, times, 0, times.length);
+		return times;
+	}
+
+	/**
+	 * @return beats alternating steady stretches and stretches of interference (or only those)
+	 */
+	static long[] madeUp(Random random) {
+		int size = random.nextInt(20000);
+		long[] times = new long[size];
+		boolean steady = random.nextInt(4) != 0;
+		long time = random.nextInt(2000);
+		int left = 0, periode = 500;
+		for (int i = 0; i < size; i++) {
+			if (left-- == 0) {
+				steady = random.nextInt(5) != 0 && random.nextBoolean() != steady;
+				left = random.nextInt(random.nextBoolean() ? 50 : 5000);
+				periode = 300 + random.nextInt(1000);
+			}
+			time += steady ? periode + random.nextInt(20) - 10 : 1 + random.nextInt(200);
+			times[i] = time;
+		}
+		return times;
+	}
+
+	static Workout workout(long[] times) {
+		Workout w = new Workout();
+		BeatStore beats = w.getBeatStore();
+		for (long time : times) {
+			beats.add(time);
+		}
+		return w;
+	}
+
+	/**
+	 * @return what differs between the two validations, null if nothing
+	 */
+	static String compare(Workout a, Workout b) {
+		BeatStore x = a.getBeatStore(), y = b.getBeatStore();
+		for (int i = 0; i < x.size(); i++) {
+			if (x.getPeriode(i) != y.getPeriode(i)) {
+				return "period of beat " + i;
+			}
+			if (x.isValid(i) != y.isValid(i)) {
+				return "validity of beat " + i;
+			}
+		}
+		long[] words = x.getValidWords(), other = y.getValidWords();
+		for (int w = 0; w < (x.size() + 63) >>> 6; w++) {
+			if (words[w] != other[w]) {
+				return "validity word " + w;
+			}
+		}
+		if (a.getFirstValid() != b.getFirstValid() || a.getLastValid() != b.getLastValid()) {
+			return "valid beats " + a.getFirstValid() + "-" + a.getLastValid() + " instead of "
+					+ b.getFirstValid() + "-" + b.getLastValid();
+		}
+		if (a.getTotalBeats() != b.getTotalBeats()) {
+			return "total beats " + a.getTotalBeats() + " instead of " + b.getTotalBeats();
+		}
+		if (a.getMin() != b.getMin() || a.getMax() != b.getMax()) {
+			return "periods " + a.getMin() + "-" + a.getMax() + " instead of " + b.getMin() + "-" + b.getMax();
+		}
+		return null;
+	}
+}
@@ -0,0 +1,111 @@
+package org.jj.heart.bench;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.jj.heart.DataAnalizer;
+import org.jj.heart.data.LogParser;
+import org.jj.heart.data.SessionMerger;
+import org.jj.heart.data.Workout;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The stages of Benchmark under JMH, on the same generated logs: parse (the whole of
+ * DataAnalizer.parseLog), merge (SessionMerger), validate (Workout.validate) and render
+ * (DataAnalizer.visualize), at 1k, 100k and 1M beats<br/>
+ * Run with "-prof gc" for the allocation rate (gc.alloc.rate.norm is the bytes per operation).
+ * jmh-baseline.txt in bench holds a run to compare with.
+ * <pre>
+ * mvn -Pjmh verify [-Djmh.args="-prof gc -p beats=1000 StageBenchmark.parse"]
+ * </pre>
+ * @author jjones
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class StageBenchmark {
+	@Param({ "1000", "100000", "1000000" })
+	int beats;
+
+	byte[] log;
+	/** the segments as read from the log, before merging */
+	List<Workout> raw;
+	/** the work-outs as DataAnalizer gives them */
+	List<Workout> merged;
+
+	@Setup(Level.Trial)
+	public void generate() throws IOException {
+		LogGenerator generator = new LogGenerator(beats).setSegments(Benchmark.SEGMENTS);
+		log = generator.generate(generator.durationFor(beats)).getBytes("ISO-8859-1");
+		raw = new ArrayList<Workout>();
+		LogParser parser = new LogParser(new ByteArrayInputStream(log));
+		Workout workout;
+		while (null != (workout = parser.next())) {
+			raw.add(workout);
+		}
+		merged = DataAnalizer.parseLog(new ByteArrayInputStream(log));
+	}
+
+	/**
+	 * Fresh copies of the segments for each merge, which changes them
+	 */
+	@State(Scope.Thread)
+	public static class Segments {
+		List<Workout> copies;
+
+		@Setup(Level.Invocation)
+		public void copy(StageBenchmark benchmark) {
+			copies = new ArrayList<Workout>(benchmark.raw.size());
+			for (Workout segment : benchmark.raw) {
+				copies.add(Benchmark.copy(segment));
+			}
+		}
+	}
+
+	@org.openjdk.jmh.annotations.Benchmark
+	public List<Workout> parse() throws IOException {
+		return DataAnalizer.parseLog(new ByteArrayInputStream(log));
+	}
+
+	@org.openjdk.jmh.annotations.Benchmark
+	public Workout merge(Segments segments) {
+		List<Workout> copies = segments.copies;
+		SessionMerger session = new SessionMerger(copies.get(0));
+		for (int i = 1; i < copies.size(); i++) {
+			session.add(copies.get(i));
+		}
+		return session.merge();
+	}
+
+	@org.openjdk.jmh.annotations.Benchmark
+	public long validate() {
+		long beats = 0;
+		for (Workout workout : merged) {
+			workout.validate();
+			beats += workout.getTotalBeats();
+		}
+		return beats;
+	}
+
+	@org.openjdk.jmh.annotations.Benchmark
+	public BufferedImage render() {
+		return DataAnalizer.visualize(merged.get(0), Benchmark.IMAGE);
+	}
+}
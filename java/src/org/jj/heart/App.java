@@ -1,22 +1,193 @@
 package org.jj.heart;
 
+import java.awt.image.BufferedImage;
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+import org.jj.heart.analysis.HrvAnalyzer;
+import org.jj.heart.analysis.HrvResult;
+import org.jj.heart.archive.BeatArchive;
+import org.jj.heart.catalog.CatalogEntry;
+import org.jj.heart.catalog.CatalogQuery;
+import org.jj.heart.catalog.RollupCell;
+import org.jj.heart.catalog.RollupLevel;
+import org.jj.heart.catalog.WorkoutCatalog;
+import org.jj.heart.catalog.WorkoutRollup;
+import org.jj.heart.data.Workout;
+import org.jj.heart.export.WorkoutExporter;
+import org.jj.heart.metrics.PipelineMetrics;
+import org.jj.heart.serial.IngestionHub;
 
 /**
  * 
  * @author jjones
  */
 public class App {
-	public static void main(String[] args) throws IOException{
+	/** rolling heart rate variability: 5 min windows every minute */
+	static final long HRV_WINDOW = 300000, HRV_STEP = 60000;
+	/** how often the hub prints its devices, in ms */
+	static final long HUB_REPORT = 5000;
+
+	/**
+	 * Opens the graph window, or with "-batch dir [threads]" graphs every log of a directory tree,
+	 * or with "-catalog dir [condition...]" lists the work-outs of a directory tree
+	 * meeting conditions like "year=2011 duration>45 average>150" (see CatalogQuery.parse),
+	 * or with "-hrv log [window minutes]" prints the heart rate variability of each work-out of a log,
+	 * whole and over a rolling window, and draws its Poincare plot,
+	 * or with "-export csv|tcx|gpx|hrz path [target dir]" exports a log or every log of a directory tree,
+	 * or with "-hub port [threads]" receives the beats of every serial port and of TCP connections,
+	 * or with "-archive path [target dir]" compresses a log or every log of a directory tree (see BeatArchive),
+	 * or with "-trend dir [day|week|month] [image]" prints the rollups of a directory tree and draws their trend<br/>
+	 * -Dheart.edt.watchdog=ms reports when the window is blocked for longer than that,
+	 * -Dheart.metrics.summary=true prints where the time went at the end of a batch (see PipelineMetrics)
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException{
+		if (args.length > 1 && args[0].equals("-batch")) {
+			int threads = Runtime.getRuntime().availableProcessors();
+			if (args.length > 2) {
+				threads = Integer.parseInt(args[2]);
+			}
+			DataAnalizer.processDirectory(new File(args[1]), threads).print(System.out);
+			if (Boolean.getBoolean("heart.metrics.summary")) {
+				System.out.println();
+				PipelineMetrics.get().print(System.out);
+			}
+			return;
+		}
+		if (args.length > 1 && args[0].equals("-catalog")) {
+			WorkoutCatalog catalog = WorkoutCatalog.open(new File(args[1]));
+			int read = catalog.rescan();
+			catalog.save();
+			long start = System.nanoTime();
+			List<CatalogEntry> found = catalog.query(CatalogQuery.parse(Arrays.copyOfRange(args, 2, args.length)));
+			long time = (System.nanoTime() - start) / 1000;
+			for (CatalogEntry entry : found) {
+				System.out.println(entry);
+			}
+			System.out.println(found.size() + " of " + catalog.size() + " work-outs in " + time + "us ("
+					+ read + " logs read)");
+			return;
+		}
+		if (args.length > 1 && args[0].equals("-hrv")) {
+			long window = args.length > 2 ? Long.parseLong(args[2]) * 60000 : HRV_WINDOW;
+			File log = new File(args[1]);
+			List<Workout> workouts = DataAnalizer.loadLog(log);
+			for (int i = 0; i < workouts.size(); i++) {
+				HrvAnalyzer hrv = new HrvAnalyzer(workouts.get(i));
+				System.out.println(workouts.get(i).getTimeStamp() + "  " + hrv.analyze());
+				for (HrvResult result : hrv.rolling(window, HRV_STEP)) {
+					System.out.println("  " + (result.getBegin() - hrv.getTime(0)) / 60000 + " min  " + result);
+				}
+				ImageIO.write(DataAnalizer.visualizePoincare(hrv, null), "gif",
+						new File(log.getPath().replaceAll("\\.(LOG|log)$", "") + "-poincare" + (i + 1) + ".gif"));
+			}
+			return;
+		}
+		if (args.length > 2 && args[0].equals("-export")) {
+			WorkoutExporter.Format format = WorkoutExporter.Format.of(args[1]);
+			if (format == null) {
+				System.err.println("unknown export format: " + args[1]);
+				return;
+			}
+			File target = args.length > 3 ? new File(args[3]) : null;
+			if (target != null) {
+				target.mkdirs();
+			}
+			long start = System.nanoTime();
+			List<File> written = WorkoutExporter.export(new File(args[2]), target, format);
+			long bytes = 0;
+			for (File file : written) {
+				bytes += file.length();
+			}
+			System.out.println(written.size() + " logs exported, " + bytes / 1024 + " KB in "
+					+ (System.nanoTime() - start) / 1000000 + "ms");
+			return;
+		}
+		if (args.length > 1 && args[0].equals("-archive")) {
+			File source = new File(args[1]);
+			File target = args.length > 2 ? new File(args[2]) : null;
+			if (target != null) {
+				target.mkdirs();
+			}
+			List<File> logs = new ArrayList<File>();
+			if (source.isDirectory()) {
+				BatchProcessor.listLogs(source, logs);
+			} else {
+				logs.add(source);
+			}
+			long logBytes = 0, archiveBytes = 0, beats = 0;
+			for (File log : logs) {
+				File archive = new File(target != null ? target : log.getParentFile(),
+						log.getName().replaceAll("\\.(LOG|log)$", "") + "." + BeatArchive.EXTENSION);
+				beats += BeatArchive.convert(log, archive);
+				logBytes += log.length();
+				archiveBytes += archive.length();
+			}
+			System.out.println(logs.size() + " logs archived: " + beats + " beats, " + logBytes / 1024 + " KB -> "
+					+ archiveBytes / 1024 + " KB (" + String.format("%.2f", archiveBytes / (double) Math.max(beats, 1))
+					+ " bytes per beat)");
+			return;
+		}
+		if (args.length > 1 && args[0].equals("-trend")) {
+			RollupLevel level = args.length > 2 ? RollupLevel.of(args[2]) : RollupLevel.WEEK;
+			if (level == null) {
+				System.err.println("unknown rollup level: " + args[2]);
+				return;
+			}
+			WorkoutRollup rollup = WorkoutRollup.open(new File(args[1]));
+			int read = rollup.rescan();
+			rollup.save();
+			for (Map.Entry<Integer, RollupCell> cell : rollup.getCells(level).entrySet()) {
+				System.out.println(cell.getKey() + "  " + cell.getValue());
+			}
+			System.out.println(rollup.getCells(level).size() + " " + level.name().toLowerCase() + "s of "
+					+ rollup.size() + " logs (" + read + " logs read)");
+			if (args.length > 3) {
+				File image = new File(args[3]);
+				long start = System.nanoTime();
+				BufferedImage trend = TrendView.visualize(rollup.getCells(level), level, ImageOutput.IMAGE);
+				System.out.println("drawn in " + (System.nanoTime() - start) / 1000 + "us");
+				DataAnalizer.imageOutput.forFile(image).write(trend, image);
+			}
+			return;
+		}
+		if (args.length > 1 && args[0].equals("-hub")) {
+			int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+			IngestionHub hub = new IngestionHub(threads, new IngestionHub.Listener() {
+				public void updated(IngestionHub.Device device, int from, int to) {
+				}
+
+				public void ended(IngestionHub.Device device) {
+					Workout w = device.getWorkout();
+					System.out.println(device.getName() + " ended: " + w.getBeatStore().size() + " beats"
+							+ (w.hasValidBeat() ? ", " + Math.round(60000 / w.getAverage()) + " bpm" : ""));
+				}
+			});
+			for (String failure : hub.addPorts()) {
+				System.out.println(failure);
+			}
+			hub.listen(Integer.parseInt(args[1]));
+			System.out.println("listening on port " + hub.getPort());
+			while (true) {
+				Thread.sleep(HUB_REPORT);
+				System.out.println(hub.getBeats() + " beats, " + hub.getDevices().size() + " devices");
+				for (IngestionHub.Device device : hub.getDevices()) {
+					System.out.println("  " + device);
+				}
+			}
+		}
+		String watchdog = System.getProperty("heart.edt.watchdog");
+		if (watchdog != null) {
+			new EdtWatchdog(Long.parseLong(watchdog), System.err).start();
+		}
 		GraphorWindow window = new GraphorWindow();
 		window.setVisible(true);
 //		window.graphFile(new File("c:/temp/logs/20110507.LOG"));
-
-//		File dir = new File("d:/jjo/logs");
-//		for(File f:dir.listFiles()){
-//			if(f.isFile() && f.getName().matches(".*LOG")){
-//				processFile(f);
-//			}
-//		}
 	}
 }
@@ -0,0 +1,207 @@
+package org.jj.heart;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.jj.heart.data.Workout;
+import org.jj.heart.metrics.PipelineMetrics;
+
+/**
+ * Processes a whole directory tree of logs in parallel (see DataAnalizer.processFile)<br/>
+ * Only a few files per thread are queued at any time so memory stays bounded
+ * however large the archive is.
+ * @author jjones
+ */
+public class BatchProcessor {
+	/** logs written by the arduino */
+	static final String LOG_PATTERN = ".*LOG";
+
+	private final int threads;
+
+	/**
+	 * @param threads how many files are processed at once
+	 */
+	public BatchProcessor(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * One processor per available core
+	 */
+	public BatchProcessor() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Processes every log found under a directory
+	 * @param dir the root of the log directory tree
+	 * @return the timing of each file
+	 * @throws InterruptedException
+	 */
+	public Report process(File dir) throws InterruptedException {
+		final Report report = new Report();
+		final Semaphore queue = new Semaphore(threads * 2);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		long start = System.nanoTime();
+		try {
+			for (final File logFile : listLogs(dir, new ArrayList<File>())) {
+				queue.acquire();
+				executor.execute(new Runnable() {
+					public void run() {
+						try {
+							report.add(processFile(logFile));
+						} finally {
+							queue.release();
+						}
+					}
+				});
+			}
+		} finally {
+			executor.shutdown();
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+		report.wallTime = (System.nanoTime() - start) / 1000000;
+		return report;
+	}
+
+	/**
+	 * Processes one log unless its image is newer
+	 */
+	FileResult processFile(File logFile) {
+		FileResult result = new FileResult(logFile);
+		long start = System.nanoTime();
+		PipelineMetrics.setFile(logFile);
+		try {
+			File image = DataAnalizer.imageOutput.firstFile(DataAnalizer.imageFile(logFile));
+			if (image.exists() && image.lastModified() > logFile.lastModified()) {
+				result.status = Status.SKIPPED;
+				return result;
+			}
+			List<Workout> workouts = DataAnalizer.processFile(logFile);
+			for (Workout workout : workouts) {
+				result.beats += workout.getBeatStore().size();
+			}
+			result.status = Status.DONE;
+		} catch (IOException e) {
+			result.error = e.toString();
+		} catch (RuntimeException e) {
+			// logs without any valid work-out cannot be graphed
+			result.error = e.toString();
+		} finally {
+			result.time = (System.nanoTime() - start) / 1000000;
+			PipelineMetrics.setFile(null);
+		}
+		return result;
+	}
+
+	/**
+	 * Recursively finds the logs of a directory
+	 * @param dir the root of the log directory tree
+	 * @param logs where the logs found are added
+	 * @return the logs
+	 */
+	public static List<File> listLogs(File dir, List<File> logs) {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return logs;
+		}
+		for (File f : files) {
+			if (f.isDirectory()) {
+				listLogs(f, logs);
+			} else if (f.isFile() && f.getName().matches(LOG_PATTERN)) {
+				logs.add(f);
+			}
+		}
+		return logs;
+	}
+
+	public enum Status {
+		DONE, SKIPPED, FAILED
+	}
+
+	/**
+	 * Outcome and timing of one log
+	 */
+	public static class FileResult {
+		public final File file;
+		public final long size;
+		public Status status = Status.FAILED;
+		public String error;
+		/** beats parsed */
+		public long beats;
+		/** processing time in ms */
+		public long time;
+
+		FileResult(File file) {
+			this.file = file;
+			this.size = file.length();
+		}
+	}
+
+	/**
+	 * Results of a batch run
+	 */
+	public static class Report {
+		private final List<FileResult> results = new ArrayList<FileResult>();
+		/** elapsed time of the whole run in ms */
+		long wallTime;
+
+		synchronized void add(FileResult result) {
+			results.add(result);
+		}
+
+		public synchronized List<FileResult> getResults() {
+			return new ArrayList<FileResult>(results);
+		}
+
+		public long getWallTime() {
+			return wallTime;
+		}
+
+		/**
+		 * Prints one line per file followed by the totals
+		 * @param out where to print
+		 */
+		public void print(PrintStream out) {
+			List<FileResult> sorted = getResults();
+			Collections.sort(sorted, new Comparator<FileResult>() {
+				public int compare(FileResult a, FileResult b) {
+					return a.file.getPath().compareTo(b.file.getPath());
+				}
+			});
+			long bytes = 0, beats = 0, busy = 0;
+			int done = 0, skipped = 0, failed = 0;
+			for (FileResult r : sorted) {
+				out.println(String.format("%-40s %-7s %8dKB %8d beats %6dms %s", r.file.getPath(), r.status,
+						r.size / 1024, r.beats, r.time, r.error == null ? "" : r.error));
+				switch (r.status) {
+				case DONE:
+					done++;
+					bytes += r.size;
+					beats += r.beats;
+					busy += r.time;
+					break;
+				case SKIPPED:
+					skipped++;
+					break;
+				default:
+					failed++;
+				}
+			}
+			double seconds = Math.max(wallTime, 1) / 1000.0;
+			out.println(String.format("files:%d  done:%d  skipped:%d  failed:%d  time:%dms  busy:%dms",
+					sorted.size(), done, skipped, failed, wallTime, busy));
+			out.println(String.format("throughput: %.1f files/s  %.2f MB/s  %.0f beats/s", done / seconds,
+					bytes / seconds / (1024 * 1024), beats / seconds));
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package org.jj.heart;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+
+/**
+ * Draws the heart rate line one pixel column at a time<br/>
+ * Consecutive valid points falling on the same column are reduced to their first, last,
+ * min and max (like an oscilloscope envelope) and drawn with two lines, which covers
+ * exactly the pixels the point to point lines would have. The number of lines drawn
+ * depends on the image width instead of the number of beats.
+ * @author jjones
+ */
+class ColumnPlotter {
+	private final Graphics2D graphics;
+	/** last point of the line already drawn */
+	private int prevX, prevY;
+	private boolean started;
+	/** the run of points on the current column, not drawn yet */
+	private boolean open;
+	private int x, firstY, lastY, minY, maxY;
+	/** column of the last invalid beat mark, while nothing was drawn over it */
+	private int markX = Integer.MIN_VALUE;
+
+	/**
+	 * @param graphics where to draw
+	 * @param startX start of the line
+	 * @param startY start of the line
+	 */
+	ColumnPlotter(Graphics2D graphics, int startX, int startY) {
+		this.graphics = graphics;
+		this.prevX = startX;
+		this.prevY = startY;
+		started = true;
+	}
+
+	/**
+	 * Line starting at its first point
+	 * @param graphics where to draw
+	 */
+	ColumnPlotter(Graphics2D graphics) {
+		this.graphics = graphics;
+	}
+
+	/**
+	 * Adds the next point of the line
+	 */
+	void valid(int px, int py) {
+		if (open && px == x) {
+			lastY = py;
+			minY = Math.min(minY, py);
+			maxY = Math.max(maxY, py);
+			return;
+		}
+		flush();
+		open = true;
+		x = px;
+		firstY = lastY = minY = maxY = py;
+	}
+
+	/**
+	 * Marks an invalid beat at the top of the graph
+	 */
+	void invalid(int px) {
+		// the mark must land over what was drawn before it
+		flush();
+		if (px != markX) {
+			graphics.setColor(Color.red);
+			graphics.drawRect(px, 0, 1, 1);
+			markX = px;
+		}
+	}
+
+	/**
+	 * Draws what is left of the line
+	 */
+	void finish() {
+		flush();
+	}
+
+	private void flush() {
+		if (!open) {
+			return;
+		}
+		if (!started) {
+			prevX = x;
+			prevY = firstY;
+			started = true;
+		}
+		graphics.setColor(Color.green);
+		graphics.drawLine(prevX, prevY, x, firstY);
+		graphics.drawLine(x, minY, x, maxY);
+		prevX = x;
+		prevY = lastY;
+		open = false;
+		markX = Integer.MIN_VALUE;
+	}
+}
@@ -3,23 +3,37 @@ package org.jj.heart;
 import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics2D;
-import java.awt.Point;
+import java.awt.geom.Ellipse2D;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.List;
 
-import javax.imageio.ImageIO;
 
-import org.jj.heart.data.Beat;
+import org.jj.heart.analysis.HrvAnalyzer;
+import org.jj.heart.analysis.HrvResult;
+import org.jj.heart.data.BeatPyramid;
+import org.jj.heart.data.BeatStore;
+import org.jj.heart.data.LogParser;
+import org.jj.heart.data.SessionMerger;
 import org.jj.heart.data.Workout;
+import org.jj.heart.data.WorkoutFile;
+import org.jj.heart.metrics.PipelineMetrics;
+import org.jj.heart.metrics.Stage;
 
 /**
  * Helper/service class for work-outs
  * @author jjones
  */
 public class DataAnalizer {
+	/** how batch mode and downloads write the graphs (see ImageOutput for the settings) */
+	static final ImageOutput imageOutput = ImageOutput.fromProperties();
 
 	/**
 	 * Parses log contents to create work-outs
@@ -33,32 +47,102 @@ public class DataAnalizer {
 	 * @return a list of work-outs found in string
 	 */
 	public static List<Workout> parseLog(String log) {
-		List<Workout> workouts = new ArrayList<Workout>();
-		// this delimiter is always added to file on arduino boot
-		for (String workout : log.split("----")) {
-			if (workout.length() == 0) {
-				continue;
+		try {
+			// log files are plain ascii; latin-1 maps every char back to its byte
+			return parseLog(new ByteArrayInputStream(log.getBytes("ISO-8859-1")));
+		} catch (IOException e) {
+			// not possible with an in-memory stream
+			return new ArrayList<Workout>();
+		}
+	}
+
+	/**
+	 * Parses a log file without loading it in memory first
+	 * @param logFile  the log file handler
+	 * @return a list of work-outs found in file
+	 * @throws IOException
+	 */
+	public static List<Workout> parseLog(File logFile) throws IOException {
+		InputStream in = new FileInputStream(logFile);
+		PipelineMetrics.countBytesRead(logFile.length());
+		try {
+			return parseLog(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Loads the work-outs of a log from its binary copy, or parses the log and saves
+	 * the copy so the next load skips parsing and validating
+	 * @param logFile  the log file handler
+	 * @return a list of validated work-outs found in file
+	 * @throws IOException
+	 */
+	public static List<Workout> loadLog(File logFile) throws IOException {
+		PipelineMetrics.Timer timer = PipelineMetrics.start(Stage.LOAD);
+		List<Workout> workouts = WorkoutFile.read(logFile);
+		if (workouts == null) {
+			workouts = parseLog(logFile);
+			try {
+				WorkoutFile.write(logFile, workouts);
+			} catch (IOException e) {
+				// read-only directory: the log will simply be parsed again next time
 			}
-			workouts.add(new Workout(workout));
 		}
+		timer.stop();
+		return workouts;
+	}
+
+	/**
+	 * Parses a log stream, merges power interruptions and validates the resulting work-outs
+	 * @param in  the log contents, read once
+	 * @return a list of work-outs found in stream
+	 * @throws IOException
+	 */
+	public static List<Workout> parseLog(InputStream in) throws IOException {
+		PipelineMetrics.Timer timer = PipelineMetrics.start(Stage.PARSE);
+		List<Workout> workouts = new ArrayList<Workout>();
+		LogParser parser = new LogParser(in);
+		Workout parsed;
+		long beats = 0;
+		while (null != (parsed = parser.next())) {
+			workouts.add(parsed);
+			beats += parsed.getBeatStore().size();
+		}
+		timer.stop(beats);
+		PipelineMetrics.countBeatsParsed(beats);
+		return mergeSessions(workouts);
+	}
 
-		List<Workout> merged = new ArrayList<Workout>();
-		Workout prev = null;
+	/**
+	 * Merges power interruptions and validates the resulting work-outs
+	 * @param workouts  the segments of a log in order, as LogParser reads them
+	 * @return the work-outs of the log
+	 */
+	public static List<Workout> mergeSessions(List<Workout> workouts) {
+		List<SessionMerger> sessions = new ArrayList<SessionMerger>();
+		SessionMerger prev = null;
 		for (Workout workout : workouts) {
 			// if first element or more than 10min have elapse since last workout 
-			if (prev == null || (!workout.getBegin().equals(prev.getBegin())
-					&& (workout.getBegin().getTime() - prev.getBegin().getTime() - prev.getBeats()
-							.get(prev.getBeats().size() - 1).getTime()) > 600000)) {
-				merged.add(workout);
-				prev = workout;
+			if (prev == null || (!workout.getBegin().equals(prev.getFirst().getBegin())
+					&& (workout.getBegin().getTime() - prev.getFirst().getBegin().getTime()
+							- prev.getLastTime()) > 600000)) {
+				prev = new SessionMerger(workout);
+				sessions.add(prev);
 			} else {
-				// merge power interruption where gap < 10min  
-				prev.merge(workout);
+				// merge power interruption where gap < 10min: the beats are copied once all are known
+				prev.add(workout);
 			}
 		}
 		
-		workouts = merged;
+		workouts = new ArrayList<Workout>(sessions.size());
+		for (SessionMerger session : sessions) {
+			workouts.add(session.merge());
+		}
 		for (Workout workout : workouts) {
+			// parsing is done: drop the spare capacity before keeping the work-out around
+			workout.getBeatStore().trimToSize();
 			workout.validate();
 		}
 		
@@ -81,9 +165,10 @@ public class DataAnalizer {
 			displayY = (int)Math.round(dimension.getHeight());
 		}
 //		int displayX = 1440, displayY = 1080;
-		ArrayList<Beat> beats = workout.getBeats();
+		PipelineMetrics.Timer timer = PipelineMetrics.start(Stage.RENDER);
+		BeatStore beats = workout.getBeatStore();
 		int rate, time;
-		BufferedImage image = new BufferedImage(displayX, displayY, BufferedImage.TYPE_INT_RGB);
+		BufferedImage image = ImageOutput.createImage(displayX, displayY);
 		Graphics2D graphics = image.createGraphics();
 		graphics.setBackground(Color.black);
 		graphics.clearRect(0, 0, displayX, displayY);
@@ -93,31 +178,152 @@ public class DataAnalizer {
 		graphics.drawLine(0, (int)(relativeRate(workout, Math.round(workout.getAverage()))*displayY), 
 				displayX, (int)(relativeRate(workout, Math.round(workout.getAverage()))*displayY));
 		
-		long startTime = beats.get(workout.getFirstValid()).getTime();
-		float timeScale = 1f / (beats.get(workout.getLastValid()).getTime() - startTime);
-		Point prev;
-		prev = new Point(0, (int) (1F - relativeRate(workout, beats.get(workout.getFirstValid()).getPeriode())) * displayY);
+		long startTime = beats.getTime(workout.getFirstValid());
+		float timeScale = 1f / (beats.getTime(workout.getLastValid()) - startTime);
+		// consecutive beats on the same pixel column are reduced before drawing
+		ColumnPlotter plotter = new ColumnPlotter(graphics, 0,
+				(int) (1F - relativeRate(workout, beats.getPeriode(workout.getFirstValid()))) * displayY);
 		
-		for (Beat beat : beats.subList(workout.getFirstValid(), workout.getLastValid() + 1)) {
-			Point curr;
-			if (beat.isValid()) {
-				graphics.setColor(Color.green);
-				rate = (int) (relativeRate(workout, beat.getPeriode()) * displayY);
-				time = Math.round((beat.getTime() - startTime) * timeScale * displayX);
-				curr = new Point(time, rate);
-				graphics.drawLine(prev.x, prev.y, curr.x, curr.y);
-				prev = curr;
+		for (int i = workout.getFirstValid(); i <= workout.getLastValid(); i++) {
+			time = Math.round((beats.getTime(i) - startTime) * timeScale * displayX);
+			if (beats.isValid(i)) {
+				rate = (int) (relativeRate(workout, beats.getPeriode(i)) * displayY);
+				plotter.valid(time, rate);
 			}else{
-				graphics.setColor(Color.red);
-				graphics.drawRect(Math.round((beat.getTime() - startTime) * timeScale * displayX), 0, 1, 1);
+				plotter.invalid(time);
 				// evol this could be put at the bottom if I knew why I can only see displayY-18 pixels high
 			}
 		}
+		plotter.finish();
 		graphics.dispose();
+		timer.stop(workout.getLastValid() - workout.getFirstValid() + 1);
 
 		return image;
 	}
 	
+	/**
+	 * Draws part of a work-out from its level of detail summary; the time taken depends
+	 * on the width drawn and not on the number of beats in the time range
+	 * @param graphics  where to draw
+	 * @param workout  a validated work-out
+	 * @param from  time of the left edge (time since boot in ms)
+	 * @param to  time of the right edge
+	 * @param displayX  width in pixels
+	 * @param displayY  height in pixels
+	 */
+	public static void visualize(Graphics2D graphics, Workout workout, long from, long to, int displayX, int displayY) {
+		graphics.setBackground(Color.black);
+		graphics.clearRect(0, 0, displayX, displayY);
+		if (!workout.hasValidBeat() || to <= from) {
+			return;
+		}
+
+		graphics.setColor(Color.pink);
+		int average = (int)(relativeRate(workout, Math.round(workout.getAverage()))*displayY);
+		graphics.drawLine(0, average, displayX, average);
+
+		PipelineMetrics.Timer timer = PipelineMetrics.start(Stage.RENDER);
+		BeatStore beats = workout.getBeatStore();
+		// one beat past each edge so the line runs to the borders
+		int first = Math.max(workout.getFirstValid(), beats.search(from) - 1);
+		int last = Math.min(workout.getLastValid(), beats.search(to));
+		double timeScale = displayX / (double) (to - from);
+		ColumnPlotter plotter = new ColumnPlotter(graphics);
+
+		// short ranges (like live data) are drawn beat by beat without building the summary
+		BeatPyramid pyramid = null;
+		int level = -1;
+		if (last - first + 1 >= BeatPyramid.BASE * displayX) {
+			pyramid = workout.getPyramid();
+			level = pyramid.chooseLevel(last - first + 1, displayX);
+		}
+		if (level < 0) {
+			for (int i = first; i <= last; i++) {
+				int time = (int) Math.round((beats.getTime(i) - from) * timeScale);
+				if (beats.isValid(i)) {
+					plotter.valid(time, (int) (relativeRate(workout, beats.getPeriode(i)) * displayY));
+				} else {
+					plotter.invalid(time);
+				}
+			}
+		} else {
+			int size = pyramid.getBucketSize(level);
+			for (int b = first / size; b <= last / size; b++) {
+				int invalid = pyramid.getInvalid(level, b);
+				if (invalid >= 0) {
+					plotter.invalid((int) Math.round((beats.getTime(invalid) - from) * timeScale));
+				}
+				int f = pyramid.getFirst(level, b);
+				if (f < 0) {
+					continue;
+				}
+				int l = pyramid.getLast(level, b);
+				int fx = (int) Math.round((beats.getTime(f) - from) * timeScale);
+				plotter.valid(fx, (int) (relativeRate(workout, beats.getPeriode(f)) * displayY));
+				plotter.valid(fx, (int) (relativeRate(workout, pyramid.getMin(level, b)) * displayY));
+				plotter.valid(fx, (int) (relativeRate(workout, pyramid.getMax(level, b)) * displayY));
+				plotter.valid((int) Math.round((beats.getTime(l) - from) * timeScale),
+						(int) (relativeRate(workout, beats.getPeriode(l)) * displayY));
+			}
+		}
+		plotter.finish();
+		timer.stop(last - first + 1);
+	}
+
+	/**
+	 * Draws the Poincare plot of a work-out: each valid period against the one before, with the
+	 * ellipse of its SD1 (across the identity line) and SD2 (along it) around the mean period
+	 * @param hrv the intervals of the work-out
+	 * @param dimension size of the image, 600x600 if null
+	 */
+	public static BufferedImage visualizePoincare(HrvAnalyzer hrv, Dimension dimension) {
+		int displayX = 600, displayY = 600;
+		if (dimension != null) {
+			displayX = (int)Math.round(dimension.getWidth());
+			displayY = (int)Math.round(dimension.getHeight());
+		}
+		BufferedImage image = ImageOutput.createImage(displayX, displayY);
+		Graphics2D graphics = image.createGraphics();
+		graphics.setBackground(Color.black);
+		graphics.clearRect(0, 0, displayX, displayY);
+
+		int low = Integer.MAX_VALUE, high = Integer.MIN_VALUE;
+		for (int i = 0; i < hrv.size(); i++) {
+			low = Math.min(low, hrv.getInterval(i));
+			high = Math.max(high, hrv.getInterval(i));
+		}
+		if (low >= high) {
+			graphics.dispose();
+			return image;
+		}
+		// same scale on both axes, longer periods up and right
+		double scale = (Math.min(displayX, displayY) - 1) / (double) (high - low);
+		graphics.setColor(Color.darkGray);
+		graphics.drawLine(0, displayY - 1, (int) ((high - low) * scale), displayY - 1 - (int) ((high - low) * scale));
+		graphics.setColor(Color.green);
+		for (int i = 1; i < hrv.size(); i++) {
+			if (hrv.isSuccessive(i)) {
+				int x = (int) ((hrv.getInterval(i - 1) - low) * scale);
+				int y = displayY - 1 - (int) ((hrv.getInterval(i) - low) * scale);
+				graphics.fillRect(x, y, 1, 1);
+			}
+		}
+
+		HrvResult result = hrv.analyze();
+		if (!Double.isNaN(result.getSd1())) {
+			double center = (result.getMeanNN() - low) * scale;
+			Graphics2D ellipse = (Graphics2D) graphics.create();
+			ellipse.translate(center, displayY - 1 - center);
+			ellipse.rotate(-Math.PI / 4);
+			ellipse.setColor(Color.pink);
+			double sd1 = result.getSd1() * scale, sd2 = result.getSd2() * scale;
+			ellipse.draw(new Ellipse2D.Double(-sd2, -sd1, 2 * sd2, 2 * sd1));
+			ellipse.dispose();
+		}
+		graphics.dispose();
+		return image;
+	}
+
 	/**
 	 * Converts a period into the percent of max heart rate and inverts value for graphing
 	 * (1/period - 1/max) / (1/min - 1/max) -> min*(max-period) / period*(max-min)
@@ -132,13 +338,61 @@ public class DataAnalizer {
 	/**
 	 * Processes a work-out file in batch mode
 	 * @param logFile  the log file handler
+	 * @return the work-outs found in file
 	 */
-	public static void processFile(File logFile) throws IOException {
-		List<Workout> workouts = DataAnalizer.parseLog(GraphorWindow.loadFile(logFile));
+	public static List<Workout> processFile(File logFile) throws IOException {
+		List<Workout> workouts = DataAnalizer.parseLog(logFile);
+		writeImage(logFile, workouts);
+		return workouts;
+	}
+
+	/**
+	 * Writes the image of the first work-out of a log, as processFile does
+	 * @param logFile  the log file handler
+	 * @param workouts  the validated work-outs of the log
+	 */
+	public static void writeImage(File logFile, List<Workout> workouts) throws IOException {
 		Workout first = workouts.get(0);
 		int duration = Math.round(first.getDuration() / 60000);
 		System.out.println("file:" + logFile.getName() + "  workouts:" + workouts.size() + "  time1:" + duration);
-		ImageIO.write(DataAnalizer.visualize(first, new Dimension(1440, 1080)), "gif",
-				new File(logFile.getCanonicalPath().replaceAll("LOG$", "gif")));
+		File image = imageFile(logFile);
+		imageOutput.write(first, image);
+		writeStatistics(first, image);
+	}
+
+	/**
+	 * Writes the statistics of a work-out next to its image, as text
+	 * @param workout  a validated work-out
+	 * @param image  the image file, the statistics go in the same file with the txt extension
+	 */
+	public static void writeStatistics(Workout workout, File image) throws IOException {
+		File text = new File(image.getPath().replaceAll("\\.[^.\\\\/]*$", "") + ".txt");
+		PrintWriter out = new PrintWriter(new FileWriter(text));
+		try {
+			out.println(workout.getTimeStamp() + "  " + Math.round(workout.getDuration() / 60000) + " min  "
+					+ Math.round(60000 / workout.getAverage()) + " bpm");
+			out.println();
+			workout.getStatistics().write(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @param logFile  the log file handler
+	 * @return the image file written for a log by processFile, or the name of its tiles
+	 */
+	public static File imageFile(File logFile) throws IOException {
+		return new File(logFile.getCanonicalPath().replaceAll("LOG$", imageOutput.getFormat().getExtension()));
+	}
+
+	/**
+	 * Processes every log of a directory tree in parallel, skipping logs with an up to date image
+	 * @param dir  the root of the log directory tree
+	 * @param threads  how many files are processed at once
+	 * @return timing for each file found
+	 */
+	public static BatchProcessor.Report processDirectory(File dir, int threads) throws InterruptedException {
+		return new BatchProcessor(threads).process(dir);
 	}
 }
@@ -0,0 +1,130 @@
+package org.jj.heart;
+
+import java.io.PrintStream;
+
+import javax.swing.SwingUtilities;
+
+/**
+ * Measures how long the event dispatch thread takes to run a task posted to it,
+ * to catch work that blocks the window<br/>
+ * Enabled in the application with -Dheart.edt.watchdog=ms, which reports every stall
+ * longer than that many milliseconds.
+ * @author jjones
+ */
+public class EdtWatchdog {
+	/** time between two probes, in ms */
+	static final long INTERVAL = 10;
+
+	private final long threshold;
+	private final PrintStream out;
+	private volatile boolean running;
+	private volatile long maxLatency;
+	private volatile int probes, stalls;
+	private Thread thread;
+
+	/**
+	 * @param threshold stalls over this many ms are reported
+	 * @param out where stalls are reported, or null
+	 */
+	public EdtWatchdog(long threshold, PrintStream out) {
+		this.threshold = threshold;
+		this.out = out;
+	}
+
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		running = true;
+		thread = new Thread("edt watchdog") {
+			@Override
+			public void run() {
+				while (running) {
+					probe();
+					try {
+						Thread.sleep(INTERVAL);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public synchronized void stop() {
+		running = false;
+		if (thread != null) {
+			thread.interrupt();
+			thread = null;
+		}
+	}
+
+	/**
+	 * Posts a task and waits for the event dispatch thread to run it
+	 */
+	private void probe() {
+		final long posted = System.nanoTime();
+		final Object done = new Object();
+		final boolean[] ran = new boolean[1];
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				long latency = (System.nanoTime() - posted) / 1000;
+				synchronized (done) {
+					ran[0] = true;
+					done.notify();
+				}
+				record(latency);
+			}
+		});
+		synchronized (done) {
+			while (!ran[0] && running) {
+				try {
+					done.wait(1000);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+
+	private void record(long micros) {
+		probes++;
+		if (micros > maxLatency) {
+			maxLatency = micros;
+		}
+		if (micros > threshold * 1000) {
+			stalls++;
+			if (out != null) {
+				out.println("event dispatch thread blocked for " + micros / 1000 + " ms");
+			}
+		}
+	}
+
+	/**
+	 * @return the longest wait of a probe so far, in microseconds
+	 */
+	public long getMaxLatency() {
+		return maxLatency;
+	}
+
+	public int getProbes() {
+		return probes;
+	}
+
+	/**
+	 * @return probes that waited longer than the threshold
+	 */
+	public int getStalls() {
+		return stalls;
+	}
+
+	/**
+	 * Forgets the measures so far
+	 */
+	public void reset() {
+		maxLatency = 0;
+		probes = stalls = 0;
+	}
+}
@@ -8,16 +8,17 @@ import java.awt.Rectangle;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
-import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Enumeration;
 import java.util.List;
 
 import javax.imageio.ImageIO;
+import javax.swing.ButtonGroup;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
@@ -25,9 +26,23 @@ import javax.swing.JMenu;
 import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
 import javax.swing.JPanel;
+import javax.swing.JRadioButtonMenuItem;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
+import org.jj.heart.catalog.RollupLevel;
+import org.jj.heart.catalog.WorkoutRollup;
 import org.jj.heart.data.Workout;
+import org.jj.heart.data.WorkoutFile;
+import org.jj.heart.serial.DownloadListener;
+import org.jj.heart.serial.LiveSession;
+import org.jj.heart.serial.PortLink;
+import org.jj.heart.serial.RemoteFile;
+import org.jj.heart.serial.ReplayLink;
+import org.jj.heart.serial.SdCardClient;
+import org.jj.heart.serial.SerialLink;
+import org.jj.heart.serial.SimulatedDevice;
 
 /**
  * A custom JFrame for displaying heart rate data
@@ -41,6 +56,16 @@ public class GraphorWindow extends JFrame {
 	private Workout workout;
 	private JFileChooser logChooser;
 	private JMenu serialMenu;
+	private JMenu workoutMenu;
+	/** parses and prepares the work-outs in the background */
+	private WorkoutLoader loader;
+	/** frames per second of the live view */
+	static final int FRAME_RATE = 10;
+	private LiveSession live;
+	private Timer liveTimer;
+	/** the rollups of the log directory of the trend view, null until one is picked */
+	private WorkoutRollup rollup;
+	private RollupLevel trendLevel = RollupLevel.WEEK;
 
 	public GraphorWindow() {
 		super("Heart rate data");
@@ -97,19 +122,15 @@ public class GraphorWindow extends JFrame {
 				// TODO the source could be null if data comes from serial port
 				imgChooser.setCurrentDirectory(logChooser.getCurrentDirectory());
 //				imgChooser.setCurrentDirectory(source.getParentFile());
-				imgChooser.setFileFilter(new FileNameExtensionFilter("gif image","gif"));
+				imgChooser.setFileFilter(new FileNameExtensionFilter("gif or png image","gif","png"));
 				int returnVal = imgChooser.showSaveDialog(getContentPane());
 			    if(returnVal == JFileChooser.APPROVE_OPTION) {
 			    	File f = imgChooser.getSelectedFile();
-			    	BufferedImage img = DataAnalizer.visualize(workout, new Dimension(1440, 1080));
-					try {
-						// seems logical to automatically add the gif extension when missing
-						if(!f.getName().toLowerCase().matches(".*gif")){
-							f = new File(f.getParent(),f.getName()+".gif");
-						}
-						ImageIO.write(img, "gif",f);
-					} catch (IOException e1) {
+					// seems logical to automatically add the image extension when missing
+					if(!f.getName().toLowerCase().matches(".*(gif|png)")){
+						f = new File(f.getParent(),f.getName()+"."+DataAnalizer.imageOutput.getFormat().getExtension());
 					}
+					loader.save(workout, f);
 			    }
 				
 			}
@@ -120,14 +141,118 @@ public class GraphorWindow extends JFrame {
 		serialMenu.setMnemonic(KeyEvent.VK_P);
 		fileMenu.addSeparator();
 		fileMenu.add(serialMenu);
-        for(CommPortIdentifier port : discoverPorts()){
-        	serialMenu.add(new JMenuItem(port.getName()));
-        	// TODO add action: communicate with port
-        	// open chooser for fake files on CD card
-        	// once a file chosen, read file + pass contents to parse
+        for(final CommPortIdentifier port : discoverPorts()){
+        	JMenu portMenu = new JMenu(port.getName());
+        	JMenuItem liveItem = new JMenuItem("Live beats");
+        	liveItem.addActionListener(new ActionListener() {
+        		public void actionPerformed(ActionEvent e) {
+        			try {
+        				startLive(new PortLink(port));
+        			} catch (IOException e1) {
+        				summary.setText("  " + e1.getMessage());
+        			}
+        		}
+        	});
+        	portMenu.add(liveItem);
+        	JMenuItem downloadItem = new JMenuItem("Download logs...");
+        	downloadItem.addActionListener(new ActionListener() {
+        		public void actionPerformed(ActionEvent e) {
+        			downloadLogs(port.getName());
+        		}
+        	});
+        	portMenu.add(downloadItem);
+        	serialMenu.add(portMenu);
         }
-		
-		// TODO work-out menu for switching between work-outs
+        // a directory standing in for the SD card, to try the download without the monitor
+        JMenuItem simulatedItem = new JMenuItem("Download from simulated card...");
+        simulatedItem.addActionListener(new ActionListener() {
+        	public void actionPerformed(ActionEvent e) {
+        		downloadLogs(null);
+        	}
+        });
+        serialMenu.add(simulatedItem);
+        // a log replayed as if it came from the monitor, to try the live view without one
+        for (final int speed : new int[] { 1, 10 }) {
+        	JMenuItem replayItem = new JMenuItem("Replay log" + (speed == 1 ? "..." : " x" + speed + "..."));
+        	replayItem.addActionListener(new ActionListener() {
+        		public void actionPerformed(ActionEvent e) {
+        			if (logChooser.showOpenDialog(getContentPane()) == JFileChooser.APPROVE_OPTION) {
+        				try {
+        					startLive(new ReplayLink(logChooser.getSelectedFile(), speed));
+        				} catch (IOException e1) {
+        					summary.setText("  " + e1.getMessage());
+        				}
+        			}
+        		}
+        	});
+        	serialMenu.add(replayItem);
+        }
+        JMenuItem stopItem = new JMenuItem("Stop live");
+        stopItem.addActionListener(new ActionListener() {
+        	public void actionPerformed(ActionEvent e) {
+        		stopLive();
+        	}
+        });
+        serialMenu.add(stopItem);
+
+		liveTimer = new Timer(1000 / FRAME_RATE, new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				updateLive();
+			}
+		});
+
+		loader = new WorkoutLoader(new WorkoutLoader.Listener() {
+			public void opened(File file, int count) {
+				fileOpened(file, count);
+			}
+
+			public void loaded(int index, Workout w) {
+				graphWorkout(w);
+			}
+
+			public void progress(String message) {
+				summary.setText(message);
+			}
+
+			public void failed(Exception e) {
+				summary.setText("  " + e.getMessage()); // evol add some sort of error msg system
+			}
+		});
+
+		workoutMenu = new JMenu("Work-outs");
+		workoutMenu.setMnemonic(KeyEvent.VK_W);
+		workoutMenu.setEnabled(false);
+		menuBar.add(workoutMenu);
+
+		JMenu trendMenu = new JMenu("Trends");
+		trendMenu.setMnemonic(KeyEvent.VK_T);
+		JMenuItem trendItem = new JMenuItem("Log directory...");
+		trendItem.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				JFileChooser dirChooser = new JFileChooser();
+				dirChooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+				dirChooser.setCurrentDirectory(logChooser.getCurrentDirectory());
+				if (dirChooser.showOpenDialog(getContentPane()) == JFileChooser.APPROVE_OPTION) {
+					openTrend(dirChooser.getSelectedFile());
+				}
+			}
+		});
+		trendMenu.add(trendItem);
+		trendMenu.addSeparator();
+		ButtonGroup levels = new ButtonGroup();
+		for (final RollupLevel level : RollupLevel.values()) {
+			String name = level.name().charAt(0) + level.name().substring(1).toLowerCase();
+			JRadioButtonMenuItem levelItem = new JRadioButtonMenuItem("By " + name, level == trendLevel);
+			levelItem.addActionListener(new ActionListener() {
+				public void actionPerformed(ActionEvent e) {
+					trendLevel = level;
+					showTrend();
+				}
+			});
+			levels.add(levelItem);
+			trendMenu.add(levelItem);
+		}
+		menuBar.add(trendMenu);
 
 		imagePanel = new ImagePanel(getContentPane());
 		getContentPane().add(imagePanel, BorderLayout.CENTER);
@@ -152,21 +277,48 @@ public class GraphorWindow extends JFrame {
 		System.out.print(f.getAbsoluteFile());
 		setTitle(f.getAbsolutePath());
 		
-		String contents = null;
-		try {
-			contents = loadFile(f);
-		} catch (IOException e) {
-			return; // evol add some sort of error msg system
-		}
-		
-		List<Workout> workouts = DataAnalizer.parseLog(contents);
-		System.out.print("  workouts:" + workouts.size());
-		if (workouts.size() == 0) {
-			return; // evol add some sort of error msg system
-		}
+		// the live view would keep drawing over the file
+		stopLive();
+		// parsed in the background: see fileOpened and workoutLoaded
+		loader.open(f);
+	}
 
-		graphWorkout(workouts.get(0));
+	/**
+	 * Lists the work-outs of a file once it is opened
+	 */
+	private void fileOpened(File f, int count) {
+		System.out.println("  workouts:" + count);
 		source = f;
+		buildWorkoutMenu(count);
+	}
+
+	/**
+	 * Lists the work-outs of the file shown
+	 */
+	private void buildWorkoutMenu(int count) {
+		workoutMenu.removeAll();
+		ButtonGroup group = new ButtonGroup();
+		for (int i = 0; i < count; i++) {
+			String label = loader.getTimeStamp(i) + "  (" + loader.getBeatCount(i) + " beats)";
+			JRadioButtonMenuItem item = new JRadioButtonMenuItem((i + 1) + ".  " + label, i == 0);
+			final int index = i;
+			item.addActionListener(new ActionListener() {
+				public void actionPerformed(ActionEvent e) {
+					showWorkout(index);
+				}
+			});
+			group.add(item);
+			workoutMenu.add(item);
+		}
+		workoutMenu.setEnabled(count > 1);
+	}
+
+	/**
+	 * Graphs one work-out of the file shown, parsing it in the background unless it was viewed lately
+	 * @param i position of the work-out in the file
+	 */
+	protected void showWorkout(int i) {
+		loader.show(i);
 	}
 	
 	/**
@@ -180,14 +332,214 @@ public class GraphorWindow extends JFrame {
 		}
 		
 		workout = w;
-		imagePanel.setImage(DataAnalizer.visualize(w));
+		imagePanel.setWorkout(w);
+		String label = summarize(w) + w.getStatistics().summarize();
+//		System.out.println(label);// debug info
+		summary.setText(label);
+	}
+
+	/**
+	 * @param w a work-out with valid beats
+	 * @return the work-out statistics in a line
+	 */
+	protected String summarize(Workout w){
 		int time = Math.round(w.getDuration() / 60000); // in minutes
 		int ave = Math.round(60000 / w.getAverage()); // in bpm
 		int max = 60000 / w.getMin(); // in bpm
 		int min = 60000 / w.getMax(); // in bpm
-		String label = "  time:" + time + "  ave:" + ave + "  min:" + min + "  max:" + max;
-//		System.out.println(label);// debug info
-		summary.setText(label);
+		return "  time:" + time + "  ave:" + ave + "  min:" + min + "  max:" + max;
+	}
+
+	/**
+	 * Shows the beats of a link as they arrive
+	 * @param link the monitor or a stand-in
+	 * @throws IOException
+	 */
+	protected void startLive(SerialLink link) throws IOException {
+		stopLive();
+		live = new LiveSession(link);
+		live.start();
+		workout = live.getWorkout();
+		source = null;
+		loader.clear();
+		buildWorkoutMenu(0);
+		setTitle(link.getName());
+		summary.setText("  waiting for beats");
+		imagePanel.setLive(workout);
+		liveTimer.start();
+	}
+
+	/**
+	 * Validates the beats received since the last frame and redraws
+	 */
+	protected void updateLive() {
+		if (live == null) {
+			return;
+		}
+		live.update();
+		Workout w = live.getWorkout();
+		if (w.hasValidBeat() && w.getTotalBeats() > 0) {
+			summary.setText(summarize(w) + "  beats:" + w.getBeatStore().size());
+		}
+		imagePanel.repaint();
+		if (live.isFinished()) {
+			stopLive();
+		}
+	}
+
+	/**
+	 * Stops the live view and shows the whole work-out received
+	 */
+	protected void stopLive() {
+		if (live == null) {
+			return;
+		}
+		liveTimer.stop();
+		LiveSession session = live;
+		live = null;
+		session.stop();
+		session.update();
+		if (session.getError() != null) {
+			summary.setText("  " + session.getError().getMessage());
+		}
+		graphWorkout(session.getWorkout());
+	}
+
+	/**
+	 * Downloads the logs of the SD card in the background, saving each one with its
+	 * binary copy and image as soon as it is parsed
+	 * @param portName the port of the monitor or null to pick a directory standing in for the card
+	 */
+	protected void downloadLogs(final String portName) {
+		JFileChooser dirChooser = new JFileChooser();
+		dirChooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+		File card = null;
+		if (portName == null) {
+			dirChooser.setDialogTitle("Simulated SD card");
+			if (dirChooser.showOpenDialog(getContentPane()) != JFileChooser.APPROVE_OPTION) {
+				return;
+			}
+			card = dirChooser.getSelectedFile();
+		}
+		dirChooser.setDialogTitle("Save the logs in");
+		dirChooser.setCurrentDirectory(logChooser.getCurrentDirectory());
+		if (dirChooser.showSaveDialog(getContentPane()) != JFileChooser.APPROVE_OPTION) {
+			return;
+		}
+		final File dir = dirChooser.getSelectedFile();
+		final File simulated = card;
+		// the port cannot be shared with the live view
+		stopLive();
+		summary.setText("  listing the card");
+		new Thread("download") {
+			@Override
+			public void run() {
+				SerialLink link = null;
+				String result;
+				// told from parser threads too
+				final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+				try {
+					link = simulated != null ? new SimulatedDevice(simulated, 0)
+							: new PortLink(CommPortIdentifier.getPortIdentifier(portName));
+					int count = new SdCardClient(link).downloadAll(dir, new DownloadListener() {
+						public void progress(RemoteFile file, long received) {
+							status("  " + file.name + "  " + received * 100 / Math.max(file.size, 1) + "%");
+						}
+
+						public void skipped(RemoteFile file) {
+						}
+
+						public void downloaded(File file, List<Workout> workouts) {
+							try {
+								WorkoutFile.write(file, workouts);
+								DataAnalizer.writeImage(file, workouts);
+							} catch (IOException e) {
+								status("  " + file.getName() + ": " + e.getMessage());
+							}
+						}
+
+						public void failed(RemoteFile file, Exception e) {
+							failures.add(file.name);
+							status("  " + file.name + ": " + e.getMessage());
+						}
+					});
+					result = "  downloaded " + count + " logs to " + dir
+							+ (failures.isEmpty() ? "" : ", failed: " + failures);
+				} catch (Exception e) {
+					result = "  " + e.getMessage();
+				} finally {
+					if (link != null) {
+						link.close();
+					}
+				}
+				status(result);
+			}
+		}.start();
+	}
+
+	/**
+	 * Brings the rollups of a log directory up to date in the background, reading only the
+	 * logs that changed since the last time, then shows their trend
+	 * @param dir the root of a log directory tree
+	 */
+	protected void openTrend(final File dir) {
+		stopLive();
+		summary.setText("  summing up " + dir);
+		new Thread("rollup") {
+			@Override
+			public void run() {
+				try {
+					final WorkoutRollup opened = WorkoutRollup.open(dir);
+					int read = opened.rescan();
+					opened.save();
+					final String message = "  " + dir + ": " + opened.size() + " logs, " + read + " read";
+					SwingUtilities.invokeLater(new Runnable() {
+						public void run() {
+							rollup = opened;
+							setTitle(dir.getAbsolutePath());
+							showTrend();
+							summary.setText(summary.getText() + message);
+						}
+					});
+				} catch (IOException e) {
+					status("  " + e.getMessage());
+				}
+			}
+		}.start();
+	}
+
+	/**
+	 * Draws the trend of the rollups at the level picked, straight from their cells
+	 */
+	protected void showTrend() {
+		if (rollup == null) {
+			return;
+		}
+		long start = System.nanoTime();
+		Dimension size = imagePanel.getSize();
+		imagePanel.setImage(TrendView.visualize(rollup.getCells(trendLevel), trendLevel,
+				new Dimension(Math.max(size.width, 1), Math.max(size.height, 1))));
+		workout = null;
+		summary.setText("  " + rollup.getCells(trendLevel).size() + " " + trendLevel.name().toLowerCase()
+				+ "s drawn in " + (System.nanoTime() - start) / 1000000 + " ms");
+	}
+
+	/**
+	 * Shows a message from any thread
+	 */
+	private void status(final String message) {
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				summary.setText(message);
+			}
+		});
+	}
+
+	@Override
+	public void dispose() {
+		loader.cancel();
+		stopLive();
+		super.dispose();
 	}
 
 	/**
@@ -195,17 +547,7 @@ public class GraphorWindow extends JFrame {
 	 * @return collection of port identifiers
 	 */
 	protected List<CommPortIdentifier> discoverPorts(){
-        List<CommPortIdentifier> serialPorts = new ArrayList<CommPortIdentifier>();
-        @SuppressWarnings("unchecked")
-		Enumeration<CommPortIdentifier> allPorts = CommPortIdentifier.getPortIdentifiers();
-        for (CommPortIdentifier port : Collections.list(allPorts)) {
-        	// filter for serial ports
-			if (port.getPortType() == CommPortIdentifier.PORT_SERIAL) {
-				serialPorts.add(port);
-            }
-        }
-		
-		return serialPorts;
+		return PortLink.discover();
 	}
 
 	/**
@@ -215,11 +557,16 @@ public class GraphorWindow extends JFrame {
 	 * @throws IOException
 	 */
 	public static String loadFile(File f) throws IOException{
-		StringBuffer buffer = new StringBuffer();
-		FileReader in = new FileReader(f);
-		int letter;
-		while(-1<(letter=in.read())){
-			buffer.append((char)letter);
+		StringBuilder buffer = new StringBuilder((int) f.length());
+		Reader in = new BufferedReader(new FileReader(f));
+		try {
+			char[] letters = new char[8192];
+			int read;
+			while (-1 < (read = in.read(letters))) {
+				buffer.append(letters, 0, read);
+			}
+		} finally {
+			in.close();
 		}
 		return buffer.toString();
 	}
@@ -0,0 +1,211 @@
+package org.jj.heart;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.FileImageOutputStream;
+
+import org.jj.heart.data.BeatStore;
+import org.jj.heart.data.Workout;
+import org.jj.heart.metrics.PipelineMetrics;
+import org.jj.heart.metrics.Stage;
+
+/**
+ * Writes work-out graphs to image files<br/>
+ * The graphs only use a handful of colors, so they are drawn in an indexed image with exactly
+ * those colors: GIF encodes it without quantizing and PNG writes one byte per pixel.
+ * Each thread keeps its encoder and reuses it from one file to the next (batch mode).
+ * Long work-outs can be drawn at a fixed scale instead of fitting the image width: the graph is
+ * then cut in tiles of the image size, name-1.png, name-2.png..., drawn one at a time in the
+ * same image. Settings come from system properties:
+ * <pre>
+ * -Dheart.image.format=gif|png       (gif)
+ * -Dheart.image.compression=0..1     PNG compression level, from none to the smallest file
+ * -Dheart.image.scale=pixels/minute  tiles at that scale, 0 fits the work-out in one image (0)
+ * </pre>
+ * @author jjones
+ */
+public class ImageOutput {
+	/** size of the graphs written */
+	public static final Dimension IMAGE = new Dimension(1440, 1080);
+	/** every color drawn (DataAnalizer, ColumnPlotter), background first */
+	static final Color[] COLORS = { Color.black, Color.pink, Color.green, Color.red, Color.darkGray };
+	static final IndexColorModel PALETTE = palette(COLORS);
+
+	public enum Format {
+		GIF, PNG;
+
+		public String getExtension() {
+			return name().toLowerCase();
+		}
+
+		/**
+		 * @return the format of a file or format name, null if none matches
+		 */
+		public static Format of(String name) {
+			String extension = name.substring(name.lastIndexOf('.') + 1);
+			for (Format format : values()) {
+				if (format.name().equalsIgnoreCase(extension)) {
+					return format;
+				}
+			}
+			return null;
+		}
+	}
+
+	private final Format format;
+	/** compression level from 0 to 1, negative for the encoder default */
+	private final float compression;
+	/** pixels per minute, 0 to fit the work-out in one image */
+	private final double scale;
+	private final ThreadLocal<ImageWriter> writers = new ThreadLocal<ImageWriter>();
+
+	public ImageOutput(Format format, float compression, double scale) {
+		this.format = format;
+		this.compression = compression;
+		this.scale = scale;
+	}
+
+	/**
+	 * @return the output set by the heart.image system properties
+	 */
+	public static ImageOutput fromProperties() {
+		Format format = Format.of(System.getProperty("heart.image.format", "gif"));
+		if (format == null) {
+			throw new IllegalArgumentException("unknown image format: " + System.getProperty("heart.image.format"));
+		}
+		return new ImageOutput(format, Float.parseFloat(System.getProperty("heart.image.compression", "-1")),
+				Double.parseDouble(System.getProperty("heart.image.scale", "0")));
+	}
+
+	/**
+	 * @return an output with the same settings writing in the format of a file name (or this format)
+	 */
+	public ImageOutput forFile(File file) {
+		Format other = Format.of(file.getName());
+		if (other == null || other == format) {
+			return this;
+		}
+		return new ImageOutput(other, compression, scale);
+	}
+
+	public Format getFormat() {
+		return format;
+	}
+
+	public boolean isTiled() {
+		return scale > 0;
+	}
+
+	/**
+	 * @return an image that can be drawn in with the graph colors and encoded as it is
+	 */
+	public static BufferedImage createImage(int width, int height) {
+		return new BufferedImage(width, height, BufferedImage.TYPE_BYTE_INDEXED, PALETTE);
+	}
+
+	private static IndexColorModel palette(Color[] colors) {
+		byte[] r = new byte[colors.length], g = new byte[colors.length], b = new byte[colors.length];
+		for (int i = 0; i < colors.length; i++) {
+			r[i] = (byte) colors[i].getRed();
+			g[i] = (byte) colors[i].getGreen();
+			b[i] = (byte) colors[i].getBlue();
+		}
+		return new IndexColorModel(8, colors.length, r, g, b);
+	}
+
+	/**
+	 * @param image the image file of a work-out
+	 * @param tile its number from 1
+	 * @return the file of a tile
+	 */
+	public static File tile(File image, int tile) {
+		return new File(image.getPath().replaceFirst("(\\.[^.\\\\/]*)?$", "-" + tile + "$1"));
+	}
+
+	/**
+	 * @return the first file written for an image file: itself or its first tile
+	 */
+	public File firstFile(File image) {
+		return isTiled() ? tile(image, 1) : image;
+	}
+
+	/**
+	 * Draws a work-out and writes it
+	 * @param workout a validated work-out
+	 * @param image the file written, or the name of the tiles
+	 * @return the files written
+	 */
+	public List<File> write(Workout workout, File image) throws IOException {
+		List<File> files = new ArrayList<File>();
+		if (!isTiled()) {
+			write(DataAnalizer.visualize(workout, IMAGE), image);
+			files.add(image);
+			return files;
+		}
+		BeatStore beats = workout.getBeatStore();
+		long from = beats.getTime(workout.getFirstValid()), to = beats.getTime(workout.getLastValid());
+		int width = IMAGE.width, height = IMAGE.height;
+		long span = Math.max(1, Math.round(width * 60000 / scale));
+		BufferedImage tile = createImage(width, height);
+		for (long start = from; start == from || start < to; start += span) {
+			Graphics2D graphics = tile.createGraphics();
+			try {
+				DataAnalizer.visualize(graphics, workout, start, start + span, width, height);
+			} finally {
+				graphics.dispose();
+			}
+			File file = tile(image, files.size() + 1);
+			write(tile, file);
+			files.add(file);
+		}
+		return files;
+	}
+
+	/**
+	 * Encodes an image with the encoder of this thread
+	 */
+	public void write(BufferedImage image, File file) throws IOException {
+		ImageWriter writer = writers.get();
+		if (writer == null) {
+			Iterator<ImageWriter> found = ImageIO.getImageWritersByFormatName(format.getExtension());
+			if (!found.hasNext()) {
+				throw new IOException("no encoder for " + format);
+			}
+			writer = found.next();
+			writers.set(writer);
+		}
+		ImageWriteParam param = writer.getDefaultWriteParam();
+		if (compression >= 0 && param.canWriteCompressed()) {
+			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			if (param.getCompressionTypes() != null) {
+				param.setCompressionType(param.getCompressionTypes()[0]);
+			}
+			// quality runs the other way: 1 is the fastest and largest
+			param.setCompressionQuality(1 - compression);
+		}
+		PipelineMetrics.Timer timer = PipelineMetrics.start(Stage.ENCODE);
+		file.delete();
+		FileImageOutputStream out = new FileImageOutputStream(file);
+		try {
+			writer.setOutput(out);
+			writer.write(null, new IIOImage(image, null, null), param);
+		} finally {
+			writer.setOutput(null);
+			out.close();
+		}
+		timer.stop();
+	}
+}
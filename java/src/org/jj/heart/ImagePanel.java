@@ -1,32 +1,330 @@
 package org.jj.heart;
 
+import java.awt.Color;
 import java.awt.Container;
 import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
 import java.awt.Image;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.awt.image.BufferedImage;
+import java.awt.image.VolatileImage;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 
+import org.jj.heart.data.BeatStore;
+import org.jj.heart.data.Workout;
+
+/**
+ * Panel showing either an image or a work-out graph that can be zoomed with the mouse
+ * wheel, panned by dragging and reset with a double click<br/>
+ * The graph is drawn in the background at the size of the panel, then copied as is on each
+ * paint; while the panel is being resized the last graph is shown until the size settles.
+ */
 public class ImagePanel extends JPanel {
 	private static final long serialVersionUID = 1L;
+	/** wait after the last resize before drawing at the new size, in ms */
+	static final int RESIZE_DELAY = 150;
+	/** graphs kept, one per size and range viewed lately */
+	static final int FRAME_CACHE = 4;
+	/** each wheel notch zooms by this factor */
+	static final double ZOOM_STEP = 1.25;
+	/** narrowest time range shown, in ms */
+	static final long MIN_SPAN = 5000;
+	/** time range shown for live data, in ms */
+	static final long LIVE_SPAN = 120000;
+
 	private Image bi;
 	private Container parent;
+	private Workout workout;
+	/** time range of the work-out and the part of it that is shown */
+	private long start, end, from, to;
+	/** show the last moments of a work-out still receiving beats */
+	private boolean live;
+
+	/** graphs of the work-out by size and range */
+	private final Map<String, BufferedImage> frames = new LinkedHashMap<String, BufferedImage>(8, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, BufferedImage> eldest) {
+			return size() > FRAME_CACHE;
+		}
+	};
+	/** the graph painted last, shown while the next one is drawn */
+	private BufferedImage shown;
+	/** the graph being drawn */
+	private String pending;
+	private Future<?> rendering;
+	private final ExecutorService renderer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "graph renderer");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	/** copy of the graph shown in video memory */
+	private VolatileImage screen;
+	private BufferedImage onScreen;
+	private final Timer resizeTimer;
+
 	public ImagePanel(Container parent){
 		super();
 		this.parent = parent;
+		MouseAdapter mouse = new MouseAdapter() {
+			private int pressX;
+			private long pressFrom;
+
+			@Override
+			public void mousePressed(MouseEvent e) {
+				pressX = e.getX();
+				pressFrom = from;
+			}
+
+			@Override
+			public void mouseDragged(MouseEvent e) {
+				if (workout != null && !live && getWidth() > 0) {
+					long span = to - from;
+					pan(pressFrom - Math.round((e.getX() - pressX) * span / (double) getWidth()), span);
+				}
+			}
+
+			@Override
+			public void mouseClicked(MouseEvent e) {
+				if (workout != null && !live && e.getClickCount() == 2) {
+					pan(start, end - start);
+				}
+			}
+
+			@Override
+			public void mouseWheelMoved(MouseWheelEvent e) {
+				if (workout != null && !live && getWidth() > 0) {
+					zoom(Math.pow(ZOOM_STEP, e.getWheelRotation()), e.getX() / (double) getWidth());
+				}
+			}
+		};
+		addMouseListener(mouse);
+		addMouseMotionListener(mouse);
+		addMouseWheelListener(mouse);
+
+		resizeTimer = new Timer(RESIZE_DELAY, new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				repaint();
+			}
+		});
+		resizeTimer.setRepeats(false);
+		addComponentListener(new ComponentAdapter() {
+			@Override
+			public void componentResized(ComponentEvent e) {
+				resizeTimer.restart();
+			}
+		});
 	}
-	
+
 	public void setImage(Image image){
 		this.bi = image;
+		this.workout = null;
+		this.live = false;
+		forget();
+		invalidate();
+		repaint();
+	}
+
+	/**
+	 * Shows the whole graph of a validated work-out
+	 * @param w the work-out to graph
+	 */
+	public void setWorkout(Workout w){
+		BeatStore beats = w.getBeatStore();
+		// build the summary now rather than on the first paint
+		w.getPyramid();
+		this.bi = null;
+		this.workout = w;
+		this.live = false;
+		forget();
+		start = from = beats.getTime(w.getFirstValid());
+		end = to = Math.max(beats.getTime(w.getLastValid()), start + 1);
 		invalidate();
 		repaint();
 	}
-	
+
+	/**
+	 * Follows a work-out receiving live beats, showing its last LIVE_SPAN ms on each repaint
+	 * @param w the work-out being filled
+	 */
+	public void setLive(Workout w){
+		this.bi = null;
+		this.workout = w;
+		this.live = true;
+		forget();
+		repaint();
+	}
+
+	/**
+	 * Scales the time range shown
+	 * @param factor new span / old span
+	 * @param anchor position of the fixed point (0 left to 1 right)
+	 */
+	void zoom(double factor, double anchor) {
+		long span = to - from;
+		long zoomed = Math.round(span * factor);
+		zoomed = Math.max(Math.min(zoomed, end - start), Math.min(MIN_SPAN, end - start));
+		long fixed = from + Math.round(span * anchor);
+		pan(fixed - Math.round(zoomed * anchor), zoomed);
+	}
+
+	/**
+	 * Moves the time range shown, keeping it inside the work-out
+	 */
+	void pan(long left, long span) {
+		from = Math.max(start, Math.min(left, end - span));
+		to = from + span;
+		repaint();
+	}
+
 	public void paint(Graphics g){
 		Graphics2D g2 = (Graphics2D) g;
+		if (live) {
+			BeatStore beats = workout.getBeatStore();
+			to = beats.isEmpty() ? 0 : beats.getTime(beats.size() - 1);
+			from = to - LIVE_SPAN;
+			// a few hundred beats drawn straight away at each frame
+			DataAnalizer.visualize(g2, workout, from, to, getWidth(), getHeight());
+			return;
+		}
+		if (workout != null) {
+			paintGraph(g2);
+			return;
+		}
 		Dimension d = parent.getSize();
 		g2.drawImage(bi, 0, 0, (int)d.getWidth(), (int)d.getHeight(), null);
 	}
 
+	/**
+	 * Copies the graph for the current size and range, asking for it when it is not drawn yet
+	 */
+	private void paintGraph(Graphics2D g) {
+		int width = getWidth(), height = getHeight();
+		String key = width + "x" + height + " " + from + "-" + to;
+		BufferedImage image = frames.get(key);
+		if (image == null && !resizeTimer.isRunning()) {
+			render(key, width, height);
+		}
+		if (image == null) {
+			image = shown;
+		}
+		if (image == null || image.getWidth() != width || image.getHeight() != height) {
+			// an older graph while the new size settles: no stretching, the rest is left black
+			g.setBackground(Color.black);
+			g.clearRect(0, 0, width, height);
+		}
+		if (image != null) {
+			shown = image;
+			blit(g, image);
+		}
+	}
+
+	/**
+	 * Draws the graph in the background; a newer request replaces one not drawn yet
+	 */
+	private void render(final String key, final int width, final int height) {
+		if (key.equals(pending) || width <= 0 || height <= 0) {
+			return;
+		}
+		if (rendering != null) {
+			rendering.cancel(false);
+		}
+		pending = key;
+		final Workout w = workout;
+		final long left = from, right = to;
+		final GraphicsConfiguration gc = getGraphicsConfiguration();
+		rendering = renderer.submit(new Runnable() {
+			public void run() {
+				BufferedImage image = gc != null ? gc.createCompatibleImage(width, height)
+						: new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+				Graphics2D g = image.createGraphics();
+				try {
+					DataAnalizer.visualize(g, w, left, right, width, height);
+				} finally {
+					g.dispose();
+				}
+				final BufferedImage frame = image;
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						if (key.equals(pending)) {
+							pending = null;
+						}
+						if (workout == w && !live) {
+							frames.put(key, frame);
+							repaint();
+						}
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Paints a graph through a copy kept in video memory, when the screen offers one
+	 */
+	private void blit(Graphics2D g, BufferedImage image) {
+		if (screen == null || screen.getWidth() != image.getWidth() || screen.getHeight() != image.getHeight()) {
+			screen = createVolatileImage(image.getWidth(), image.getHeight());
+			onScreen = null;
+		}
+		if (screen == null) {
+			// not on screen (or headless): straight from the graph
+			g.drawImage(image, 0, 0, null);
+			return;
+		}
+		do {
+			int status = screen.validate(getGraphicsConfiguration());
+			if (status == VolatileImage.IMAGE_INCOMPATIBLE) {
+				screen = createVolatileImage(image.getWidth(), image.getHeight());
+				if (screen == null) {
+					// moved off every screen meanwhile
+					onScreen = null;
+					g.drawImage(image, 0, 0, null);
+					return;
+				}
+				status = VolatileImage.IMAGE_RESTORED;
+			}
+			if (status == VolatileImage.IMAGE_RESTORED || onScreen != image) {
+				Graphics2D copy = screen.createGraphics();
+				copy.drawImage(image, 0, 0, null);
+				copy.dispose();
+				onScreen = image;
+			}
+			g.drawImage(screen, 0, 0, null);
+		} while (screen.contentsLost());
+	}
+
+	/**
+	 * Drops the graphs of the work-out shown before
+	 */
+	private void forget() {
+		frames.clear();
+		shown = onScreen = null;
+		pending = null;
+		if (rendering != null) {
+			rendering.cancel(false);
+			rendering = null;
+		}
+	}
+
 }
@@ -0,0 +1,144 @@
+package org.jj.heart;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.Map;
+import java.util.SortedMap;
+
+import org.jj.heart.catalog.RollupCell;
+import org.jj.heart.catalog.RollupLevel;
+
+/**
+ * Draws years of work-outs from their rollup cells (see WorkoutRollup), one column per cell:
+ * the range of rates from the lowest to the highest in pink, the average rate in green and the
+ * lowest rate in red (resting rate drift), over the training load as the time spent in each
+ * heart rate zone, stacked from the easiest zone to the hardest<br/>
+ * The work is proportional to the number of cells, not to the beats behind them.
+ * @author jjones
+ */
+public class TrendView {
+	/** share of the height given to the training load */
+	static final double LOAD_HEIGHT = 0.3;
+	/** rates shown at least, in bpm */
+	static final int LOW_RATE = 60, HIGH_RATE = 180;
+	static final int RATE_STEP = 20;
+	static final int MARGIN = 30;
+	static final Color GRID = Color.darkGray;
+	/** the zones from the easiest to the hardest */
+	static final Color[] ZONE_COLORS = { new Color(0x404080), new Color(0x4060c0), new Color(0x40a040),
+			new Color(0xc0c040), new Color(0xe08030), Color.red };
+
+	/**
+	 * @return the trend of the cells of a level in a new image
+	 */
+	public static BufferedImage visualize(SortedMap<Integer, RollupCell> cells, RollupLevel level, Dimension dimension) {
+		BufferedImage image = new BufferedImage(dimension.width, dimension.height, BufferedImage.TYPE_INT_RGB);
+		Graphics2D graphics = image.createGraphics();
+		try {
+			visualize(graphics, cells, level, dimension.width, dimension.height);
+		} finally {
+			graphics.dispose();
+		}
+		return image;
+	}
+
+	/**
+	 * Draws the trend of the cells of a level
+	 * @param cells the cells by key, see WorkoutRollup.getCells
+	 */
+	public static void visualize(Graphics2D graphics, SortedMap<Integer, RollupCell> cells, RollupLevel level,
+			int width, int height) {
+		graphics.setBackground(Color.black);
+		graphics.clearRect(0, 0, width, height);
+		if (cells.isEmpty()) {
+			graphics.setColor(Color.pink);
+			graphics.drawString("no work-out", MARGIN, height / 2);
+			return;
+		}
+		long start = RollupLevel.time(cells.firstKey());
+		long end = RollupLevel.time(level.next(cells.lastKey()));
+		int left = MARGIN, right = width - 1;
+		int loadTop = (int) (height * (1 - LOAD_HEIGHT)), bottom = height - 1;
+		int rateTop = MARGIN / 2, rateBottom = loadTop - MARGIN / 2;
+		double xScale = (right - left) / (double) (end - start);
+
+		int low = LOW_RATE, high = HIGH_RATE;
+		long load = 1;
+		for (RollupCell cell : cells.values()) {
+			low = Math.min(low, 60000 / cell.getMax());
+			high = Math.max(high, 60000 / cell.getMin());
+			load = Math.max(load, cell.getDuration());
+		}
+		low = low / RATE_STEP * RATE_STEP;
+		high = (high + RATE_STEP - 1) / RATE_STEP * RATE_STEP;
+		double yScale = (rateBottom - rateTop) / (double) (high - low);
+		double loadScale = (bottom - loadTop) / (double) load;
+
+		// a line and a label at every rate step and every year (every month under two years)
+		graphics.setColor(GRID);
+		for (int rate = low; rate <= high; rate += RATE_STEP) {
+			int y = rateY(rate, low, rateBottom, yScale);
+			graphics.drawLine(left, y, right, y);
+			graphics.drawString(Integer.toString(rate), 2, y + 4);
+		}
+		graphics.drawLine(left, loadTop, right, loadTop);
+		boolean months = end - start < 2 * 365 * 86400000L;
+		for (int date = RollupLevel.MONTH.key(cells.firstKey()); RollupLevel.time(date) < end; date = RollupLevel.MONTH
+				.next(date)) {
+			if (!months && date / 100 % 100 != 1) {
+				continue;
+			}
+			int x = left + (int) ((RollupLevel.time(date) - start) * xScale);
+			if (x >= left) {
+				graphics.drawLine(x, rateTop, x, bottom);
+				// in the margin above the training load
+				graphics.drawString(months ? date / 10000 + "-" + date / 100 % 100 : Integer.toString(date / 10000),
+						x + 2, loadTop - 3);
+			}
+		}
+
+		int previousX = -1, previousAverage = 0, previousLow = 0;
+		for (Map.Entry<Integer, RollupCell> entry : cells.entrySet()) {
+			RollupCell cell = entry.getValue();
+			int x = left + (int) ((RollupLevel.time(entry.getKey()) - start) * xScale);
+			int nextX = left + (int) ((RollupLevel.time(level.next(entry.getKey())) - start) * xScale);
+			int x2 = Math.max(x, nextX - 2);
+			int middle = (x + x2) / 2;
+
+			// training load by zone
+			int y = bottom;
+			for (int z = 0; z < cell.getZoneCount(); z++) {
+				int h = (int) Math.round(cell.getZoneTime(z) * loadScale);
+				if (h > 0) {
+					graphics.setColor(ZONE_COLORS[Math.min(z, ZONE_COLORS.length - 1)]);
+					graphics.fillRect(x, y - h + 1, x2 - x + 1, h);
+					y -= h;
+				}
+			}
+
+			int highY = rateY(60000f / cell.getMin(), low, rateBottom, yScale);
+			int lowY = rateY(60000f / cell.getMax(), low, rateBottom, yScale);
+			int averageY = rateY(60000f / cell.getAverage(), low, rateBottom, yScale);
+			graphics.setColor(Color.pink);
+			graphics.drawLine(middle, highY, middle, lowY);
+			if (previousX >= 0) {
+				graphics.setColor(Color.red);
+				graphics.drawLine(previousX, previousLow, middle, lowY);
+				graphics.setColor(Color.green);
+				graphics.drawLine(previousX, previousAverage, middle, averageY);
+			} else {
+				graphics.setColor(Color.green);
+				graphics.drawLine(middle, averageY, middle, averageY);
+			}
+			previousX = middle;
+			previousAverage = averageY;
+			previousLow = lowY;
+		}
+	}
+
+	private static int rateY(float rate, int low, int rateBottom, double yScale) {
+		return rateBottom - (int) Math.round((rate - low) * yScale);
+	}
+}
@@ -0,0 +1,355 @@
+package org.jj.heart;
+
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.swing.SwingWorker;
+
+import org.jj.heart.data.LogIndex;
+import org.jj.heart.data.Workout;
+import org.jj.heart.data.WorkoutFile;
+import org.jj.heart.metrics.PipelineMetrics;
+import org.jj.heart.metrics.Stage;
+
+/**
+ * Opens logs and prepares their work-outs for graphing on a background thread,
+ * handing the results to the event dispatch thread<br/>
+ * Only the latest request matters: opening a file or choosing a work-out cancels the
+ * one still running, whose result is then dropped. Every listener call is made on the
+ * event dispatch thread, and the state of the loader only changes there.
+ * A log without an up to date binary copy (see WorkoutFile) is indexed to show it quickly,
+ * then its copy is written in the background.
+ * @author jjones
+ */
+public class WorkoutLoader {
+	/** work-outs of the file viewed lately, ready to graph */
+	static final int WORKOUT_CACHE = 8;
+
+	/**
+	 * Told about the requests, always on the event dispatch thread
+	 */
+	public interface Listener {
+		/** a file was opened, its work-outs are listed by the loader */
+		void opened(File file, int count);
+
+		/** a work-out is ready to graph */
+		void loaded(int index, Workout workout);
+
+		/** what the loader is doing */
+		void progress(String message);
+
+		void failed(Exception e);
+	}
+
+	/**
+	 * What opening a file gives
+	 */
+	static class Opened {
+		List<Workout> workouts;
+		LogIndex index;
+		Workout first;
+	}
+
+	private final Listener listener;
+	/** one thread: a new request starts once the cancelled one lets go */
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "workout loader");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	/** writes the binary copies of the logs opened through their index, one at a time */
+	private final ExecutorService writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "workout file writer");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		}
+	});
+	private SwingWorker<?, ?> current;
+
+	// the file shown: all of its work-outs from the binary copy, or its index
+	private File file;
+	private List<Workout> workouts;
+	private LogIndex logIndex;
+	private final Map<Integer, Workout> recent = new LinkedHashMap<Integer, Workout>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, Workout> eldest) {
+			return size() > WORKOUT_CACHE;
+		}
+	};
+
+	public WorkoutLoader(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Opens a log and loads its first work-out
+	 * @param f the log file
+	 */
+	public void open(final File f) {
+		submit(new SwingWorker<Opened, Object>() {
+			@Override
+			protected Opened doInBackground() throws Exception {
+				PipelineMetrics.setFile(f);
+				PipelineMetrics.Timer timer = PipelineMetrics.start(Stage.LOAD);
+				try {
+					Opened opened = new Opened();
+					opened.workouts = WorkoutFile.read(f);
+					if (opened.workouts == null) {
+						InputStream in = new ProgressStream(f, this);
+						try {
+							opened.index = LogIndex.build(f, in);
+						} finally {
+							in.close();
+						}
+					}
+					int count = opened.workouts != null ? opened.workouts.size() : opened.index.size();
+					if (count > 0) {
+						opened.first = prepare(opened.workouts != null ? opened.workouts.get(0) : opened.index.load(0));
+					}
+					return opened;
+				} finally {
+					timer.stop();
+					PipelineMetrics.setFile(null);
+				}
+			}
+
+			@Override
+			protected void done() {
+				Opened opened = result(this);
+				if (opened == null) {
+					return;
+				}
+				file = f;
+				workouts = opened.workouts;
+				logIndex = opened.index;
+				recent.clear();
+				if (logIndex != null) {
+					writeCopy(f);
+				}
+				listener.opened(f, size());
+				if (opened.first != null) {
+					recent.put(0, opened.first);
+					listener.loaded(0, opened.first);
+				}
+			}
+		}, "opening " + f.getName());
+	}
+
+	/**
+	 * Loads a work-out of the file opened, right away when it was viewed lately
+	 * @param i position of the work-out in the file
+	 */
+	public void show(final int i) {
+		Workout cached = recent.get(i);
+		if (cached != null) {
+			cancel();
+			listener.loaded(i, cached);
+			return;
+		}
+		final List<Workout> all = workouts;
+		final LogIndex index = logIndex;
+		submit(new SwingWorker<Workout, Object>() {
+			@Override
+			protected Workout doInBackground() throws Exception {
+				return prepare(all != null ? all.get(i) : index.load(i));
+			}
+
+			@Override
+			protected void done() {
+				Workout w = result(this);
+				if (w != null && logIndex == index && workouts == all) {
+					recent.put(i, w);
+					listener.loaded(i, w);
+				}
+			}
+		}, "loading work-out " + (i + 1));
+	}
+
+	/**
+	 * Saves the image of a work-out and its statistics in the background; saving is not
+	 * cancelled by other requests
+	 * @param w the work-out to draw
+	 * @param gif the image file, gif or png
+	 */
+	public void save(final Workout w, final File gif) {
+		listener.progress("  saving " + gif.getName());
+		new SwingWorker<File, Object>() {
+			@Override
+			protected File doInBackground() throws Exception {
+				DataAnalizer.imageOutput.forFile(gif).write(w, gif);
+				DataAnalizer.writeStatistics(w, gif);
+				return gif;
+			}
+
+			@Override
+			protected void done() {
+				if (result(this) != null) {
+					listener.progress("  saved " + gif.getName());
+				}
+			}
+		}.execute();
+	}
+
+	/**
+	 * Drops the request running, if any
+	 */
+	public void cancel() {
+		if (current != null) {
+			current.cancel(true);
+			current = null;
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return how many work-outs the file opened holds
+	 */
+	public int size() {
+		return workouts != null ? workouts.size() : logIndex != null ? logIndex.size() : 0;
+	}
+
+	/**
+	 * @return the header of a work-out of the file opened
+	 */
+	public String getTimeStamp(int i) {
+		return workouts != null ? workouts.get(i).getTimeStamp() : logIndex.getTimeStamp(i);
+	}
+
+	/**
+	 * @return the beats of a work-out of the file opened
+	 */
+	public int getBeatCount(int i) {
+		return workouts != null ? workouts.get(i).getBeatStore().size() : logIndex.getBeatCount(i);
+	}
+
+	/**
+	 * Forgets the file opened (the window shows something else)
+	 */
+	public void clear() {
+		cancel();
+		file = null;
+		workouts = null;
+		logIndex = null;
+		recent.clear();
+	}
+
+	/**
+	 * Parses a whole log in the background and saves its binary copy, so that it opens at once
+	 * next time; a log opened again before is simply indexed again
+	 */
+	private void writeCopy(final File f) {
+		writer.execute(new Runnable() {
+			public void run() {
+				try {
+					if (WorkoutFile.read(f) == null) {
+						WorkoutFile.write(f, DataAnalizer.parseLog(f));
+					}
+				} catch (IOException e) {
+					// read-only directory: the log is indexed again next time
+				} catch (RuntimeException e) {
+					// a log the parser cannot make sense of: same
+				}
+			}
+		});
+	}
+
+	private void submit(SwingWorker<?, ?> worker, final String message) {
+		cancel();
+		current = worker;
+		listener.progress("  " + message);
+		worker.addPropertyChangeListener(new PropertyChangeListener() {
+			public void propertyChange(PropertyChangeEvent e) {
+				if ("progress".equals(e.getPropertyName())) {
+					listener.progress("  " + message + "  " + e.getNewValue() + "%");
+				}
+			}
+		});
+		executor.execute(worker);
+	}
+
+	/**
+	 * @return the result of a finished request, or null when it was cancelled or failed
+	 */
+	private <T> T result(SwingWorker<T, ?> worker) {
+		if (worker.isCancelled()) {
+			return null;
+		}
+		if (worker == current) {
+			current = null;
+		}
+		try {
+			return worker.get();
+		} catch (Exception e) {
+			Throwable cause = e.getCause() != null ? e.getCause() : e;
+			listener.failed(cause instanceof Exception ? (Exception) cause : e);
+			return null;
+		}
+	}
+
+	/**
+	 * Builds what graphing needs now rather than on the first paint
+	 */
+	static Workout prepare(Workout w) {
+		if (w.hasValidBeat()) {
+			w.getPyramid();
+			w.getStatistics();
+		}
+		return w;
+	}
+
+	/**
+	 * Reads a file giving the share read as the progress of a request, and stops
+	 * when the request is cancelled
+	 */
+	static class ProgressStream extends FilterInputStream {
+		private final SwingWorker<?, ?> worker;
+		private final long length;
+		private long read;
+		private int percent;
+
+		ProgressStream(File f, SwingWorker<?, ?> worker) throws IOException {
+			super(new FileInputStream(f));
+			this.worker = worker;
+			this.length = Math.max(1, f.length());
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (Thread.currentThread().isInterrupted() || worker.isCancelled()) {
+				throw new InterruptedIOException("cancelled");
+			}
+			int count = super.read(b, off, len);
+			if (count > 0) {
+				read += count;
+				int done = (int) Math.min(100, read * 100 / length);
+				if (done != percent) {
+					// delivered on the event dispatch thread like SwingWorker.setProgress
+					worker.firePropertyChange("progress", percent, done);
+					percent = done;
+				}
+			}
+			return count;
+		}
+	}
+}
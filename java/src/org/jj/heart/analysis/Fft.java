@@ -0,0 +1,70 @@
+package org.jj.heart.analysis;
+
+/**
+ * Radix-2 fast Fourier transform done in place over primitive arrays,
+ * with the twiddle factors of its size computed once
+ * @author jjones
+ */
+class Fft {
+	private final int size;
+	private final double[] cos, sin;
+
+	/**
+	 * @param size number of points, a power of two
+	 */
+	Fft(int size) {
+		if (size < 2 || Integer.bitCount(size) != 1) {
+			throw new IllegalArgumentException("not a power of two: " + size);
+		}
+		this.size = size;
+		cos = new double[size / 2];
+		sin = new double[size / 2];
+		for (int i = 0; i < size / 2; i++) {
+			cos[i] = Math.cos(-2 * Math.PI * i / size);
+			sin[i] = Math.sin(-2 * Math.PI * i / size);
+		}
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Replaces a signal by its discrete Fourier transform
+	 * @param re real parts, size() of them
+	 * @param im imaginary parts, size() of them
+	 */
+	void transform(double[] re, double[] im) {
+		// bit reversed order first
+		for (int i = 1, j = 0; i < size; i++) {
+			int bit = size >> 1;
+			for (; (j & bit) != 0; bit >>= 1) {
+				j ^= bit;
+			}
+			j ^= bit;
+			if (i < j) {
+				double t = re[i];
+				re[i] = re[j];
+				re[j] = t;
+				t = im[i];
+				im[i] = im[j];
+				im[j] = t;
+			}
+		}
+		for (int length = 2; length <= size; length <<= 1) {
+			int half = length >> 1, stride = size / length;
+			for (int start = 0; start < size; start += length) {
+				for (int k = 0; k < half; k++) {
+					double c = cos[k * stride], s = sin[k * stride];
+					int a = start + k, b = a + half;
+					double re2 = re[b] * c - im[b] * s;
+					double im2 = re[b] * s + im[b] * c;
+					re[b] = re[a] - re2;
+					im[b] = im[a] - im2;
+					re[a] += re2;
+					im[a] += im2;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,297 @@
+package org.jj.heart.analysis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jj.heart.data.BeatStore;
+import org.jj.heart.data.Workout;
+
+/**
+ * Heart rate variability of a validated work-out, over the periods of its valid beats
+ * (the NN intervals) copied once into primitive arrays<br/>
+ * The time domain figures come from running integer sums, so the whole work-out takes
+ * one pass and a rolling window only adds the beats entering it and removes the beats
+ * leaving it. The spectrum is estimated with Welch's method over the intervals resampled
+ * at 4 Hz, which is done once for the work-out and shared by every window.
+ * @author jjones
+ */
+public class HrvAnalyzer {
+	/** resampling rate of the interval series, in Hz */
+	static final int RATE = 4;
+	static final long SAMPLE_TIME = 1000 / RATE;
+	/** Welch segment: 256 s, each one overlapping the next by half or more */
+	static final int SEGMENT = 1024;
+	/** shortest series worth a spectrum: 2 min, so 0.04 Hz fits almost 5 times */
+	static final int MIN_SPECTRUM = 120 * RATE;
+	static final double LF_LOW = 0.04, LF_HIGH = 0.15, HF_HIGH = 0.4;
+	/** successive differences over this count for pNN50, in ms */
+	static final int NN50 = 50;
+
+	/**
+	 * Running sums of intervals and successive differences, exact in integers
+	 */
+	static class Sums {
+		int count;
+		long sum, squares;
+		int differences;
+		long differenceSum, differenceSquares;
+		int nn50;
+
+		void add(int nn) {
+			count++;
+			sum += nn;
+			squares += (long) nn * nn;
+		}
+
+		void remove(int nn) {
+			count--;
+			sum -= nn;
+			squares -= (long) nn * nn;
+		}
+
+		void addDifference(int d) {
+			differences++;
+			differenceSum += d;
+			differenceSquares += (long) d * d;
+			if (Math.abs(d) > NN50) {
+				nn50++;
+			}
+		}
+
+		void removeDifference(int d) {
+			differences--;
+			differenceSum -= d;
+			differenceSquares -= (long) d * d;
+			if (Math.abs(d) > NN50) {
+				nn50--;
+			}
+		}
+
+		HrvResult result(long begin, long end, double[] bands) {
+			double mean = count > 0 ? (double) sum / count : Double.NaN;
+			double variance = count > 1 ? (squares - mean * sum) / (count - 1) : Double.NaN;
+			double rmssd = Double.NaN, pnn50 = Double.NaN, sd1 = Double.NaN, sd2 = Double.NaN;
+			if (differences > 0) {
+				rmssd = Math.sqrt((double) differenceSquares / differences);
+				pnn50 = 100.0 * nn50 / differences;
+			}
+			if (differences > 1) {
+				double differenceMean = (double) differenceSum / differences;
+				double sd1Squared = (differenceSquares - differenceMean * differenceSum) / (differences - 1) / 2;
+				sd1 = Math.sqrt(sd1Squared);
+				sd2 = Math.sqrt(Math.max(0, 2 * variance - sd1Squared));
+			}
+			return new HrvResult(begin, end, count, mean, Math.sqrt(variance), differences, rmssd, pnn50, sd1, sd2,
+					bands[0], bands[1]);
+		}
+	}
+
+	/** time of each valid beat */
+	private final long[] times;
+	/** period of each valid beat */
+	private final int[] intervals;
+	/** whether the beat before is valid too, so the difference of the periods counts */
+	private final boolean[] successive;
+	private final int size;
+	/** intervals resampled at RATE from the first valid beat, built when first needed */
+	private double[] series;
+	private Fft fft;
+
+	/**
+	 * @param w a validated work-out
+	 */
+	public HrvAnalyzer(Workout w) {
+		BeatStore beats = w.getBeatStore();
+		int from = Math.max(w.getFirstValid(), 1), to = w.getLastValid();
+		int capacity = w.hasValidBeat() ? Math.max(to - from + 1, 0) : 0;
+		times = new long[capacity];
+		intervals = new int[capacity];
+		successive = new boolean[capacity];
+		long[] beatTimes = beats.getTimes();
+		int[] periodes = beats.getPeriodes();
+		int count = 0;
+		// the first beat has no period: its "period" is the time since boot
+		for (int i = from; i <= to && capacity > 0; i++) {
+			if (beats.isValid(i)) {
+				times[count] = beatTimes[i];
+				intervals[count] = periodes[i];
+				successive[count] = count > 0 && times[count - 1] == beatTimes[i - 1];
+				count++;
+			}
+		}
+		size = count;
+	}
+
+	/**
+	 * @return how many NN intervals the work-out holds
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return time of the i-th valid beat
+	 */
+	public long getTime(int i) {
+		return times[i];
+	}
+
+	/**
+	 * @return period of the i-th valid beat
+	 */
+	public int getInterval(int i) {
+		return intervals[i];
+	}
+
+	/**
+	 * @return whether the beat before the i-th valid beat is valid too: the intervals i-1
+	 *         and i are then a point of the Poincare plot
+	 */
+	public boolean isSuccessive(int i) {
+		return successive[i];
+	}
+
+	/**
+	 * @return the variability of the whole work-out
+	 */
+	public HrvResult analyze() {
+		Sums sums = new Sums();
+		for (int i = 0; i < size; i++) {
+			sums.add(intervals[i]);
+			if (successive[i]) {
+				sums.addDifference(intervals[i] - intervals[i - 1]);
+			}
+		}
+		if (size == 0) {
+			return sums.result(0, 0, new double[] { Double.NaN, Double.NaN });
+		}
+		return sums.result(times[0], times[size - 1], spectrum(0, series().length));
+	}
+
+	/**
+	 * The variability over a window sliding along the work-out; each step only adds and
+	 * removes the beats crossing the window edges
+	 * @param window length of the window in ms, 5 min is the usual one
+	 * @param step time between the starts of two windows in ms
+	 * @return one result per window, none if the work-out is shorter than the window
+	 */
+	public List<HrvResult> rolling(long window, long step) {
+		if (window <= 0 || step <= 0) {
+			throw new IllegalArgumentException("window " + window + " step " + step);
+		}
+		List<HrvResult> results = new ArrayList<HrvResult>();
+		if (size == 0) {
+			return results;
+		}
+		Sums sums = new Sums();
+		int lo = 0, hi = 0; // the window holds the beats lo to hi-1
+		for (long start = times[0]; start + window <= times[size - 1] + 1; start += step) {
+			long end = start + window;
+			while (lo < hi && times[lo] < start) {
+				sums.remove(intervals[lo]);
+				if (lo + 1 < hi && successive[lo + 1]) {
+					sums.removeDifference(intervals[lo + 1] - intervals[lo]);
+				}
+				lo++;
+			}
+			if (lo == hi) {
+				// steps longer than the window skip beats
+				while (hi < size && times[hi] < start) {
+					hi++;
+				}
+				lo = hi;
+			}
+			while (hi < size && times[hi] < end) {
+				sums.add(intervals[hi]);
+				if (hi > lo && successive[hi]) {
+					sums.addDifference(intervals[hi] - intervals[hi - 1]);
+				}
+				hi++;
+			}
+			int first = (int) ((start - times[0]) / SAMPLE_TIME);
+			results.add(sums.result(lo < hi ? times[lo] : start, lo < hi ? times[hi - 1] : start,
+					spectrum(first, (int) (window / SAMPLE_TIME))));
+		}
+		return results;
+	}
+
+	/**
+	 * The intervals sampled every SAMPLE_TIME from the first valid beat, linearly
+	 * interpolated between the valid beats
+	 */
+	double[] series() {
+		if (series == null) {
+			int count = size == 0 ? 0 : (int) ((times[size - 1] - times[0]) / SAMPLE_TIME) + 1;
+			series = new double[count];
+			int i = 0;
+			for (int k = 0; k < count; k++) {
+				long t = times[0] + k * SAMPLE_TIME;
+				while (i + 1 < size && times[i + 1] < t) {
+					i++;
+				}
+				if (i + 1 >= size || times[i] >= t) {
+					series[k] = intervals[i];
+				} else {
+					double share = (double) (t - times[i]) / (times[i + 1] - times[i]);
+					series[k] = intervals[i] + share * (intervals[i + 1] - intervals[i]);
+				}
+			}
+		}
+		return series;
+	}
+
+	/**
+	 * Welch's estimate of the power in the LF and HF bands of part of the series: Hann windowed
+	 * segments, each one detrended to its mean, overlapping by half or more
+	 * @return LF and HF power, NaN if the part is too short
+	 */
+	double[] spectrum(int first, int count) {
+		double[] samples = series();
+		count = Math.min(count, samples.length - first);
+		if (count < MIN_SPECTRUM) {
+			return new double[] { Double.NaN, Double.NaN };
+		}
+		int length = Math.min(count, SEGMENT);
+		int n = Integer.highestOneBit(length) == length ? length : Integer.highestOneBit(length) << 1;
+		if (fft == null || fft.size() != n) {
+			fft = new Fft(n);
+		}
+		double[] window = new double[length];
+		double weight = 0;
+		for (int i = 0; i < length; i++) {
+			window[i] = 0.5 - 0.5 * Math.cos(2 * Math.PI * i / (length - 1));
+			weight += window[i] * window[i];
+		}
+		double[] re = new double[n], im = new double[n];
+		double resolution = (double) RATE / n;
+		double lf = 0, hf = 0;
+		// overlapping by half or more so that the last segment ends with the part
+		int segments = count == length ? 1 : (count - length + length / 2 - 1) / (length / 2) + 1;
+		for (int s = 0; s < segments; s++) {
+			int start = first + (segments == 1 ? 0 : (int) ((long) s * (count - length) / (segments - 1)));
+			double mean = 0;
+			for (int i = 0; i < length; i++) {
+				mean += samples[start + i];
+			}
+			mean /= length;
+			for (int i = 0; i < length; i++) {
+				re[i] = (samples[start + i] - mean) * window[i];
+			}
+			Arrays.fill(re, length, n, 0);
+			Arrays.fill(im, 0);
+			fft.transform(re, im);
+			// one sided density: the bands stay clear of 0 and of the Nyquist frequency
+			for (int k = 1; k < n / 2; k++) {
+				double f = k * resolution;
+				double power = 2 * (re[k] * re[k] + im[k] * im[k]) / (RATE * weight) * resolution;
+				if (f >= LF_LOW && f < LF_HIGH) {
+					lf += power;
+				} else if (f >= LF_HIGH && f < HF_HIGH) {
+					hf += power;
+				}
+			}
+		}
+		return new double[] { lf / segments, hf / segments };
+	}
+}
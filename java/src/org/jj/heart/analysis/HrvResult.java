@@ -0,0 +1,120 @@
+package org.jj.heart.analysis;
+
+import java.util.Locale;
+
+/**
+ * Heart rate variability of a stretch of normal to normal (NN) intervals: the time of a
+ * beat validated by Workout.validate and its period<br/>
+ * Times are in ms since the Arduino booted, intervals and deviations in ms, powers in ms2.
+ * A figure that cannot be estimated from the stretch is NaN.
+ * @author jjones
+ */
+public class HrvResult {
+	final long begin, end;
+	final int intervals;
+	final double meanNN, sdnn;
+	/** successive differences: pairs of adjacent valid beats */
+	final int differences;
+	final double rmssd, pnn50, sd1, sd2;
+	final double lf, hf;
+
+	HrvResult(long begin, long end, int intervals, double meanNN, double sdnn, int differences, double rmssd,
+			double pnn50, double sd1, double sd2, double lf, double hf) {
+		this.begin = begin;
+		this.end = end;
+		this.intervals = intervals;
+		this.meanNN = meanNN;
+		this.sdnn = sdnn;
+		this.differences = differences;
+		this.rmssd = rmssd;
+		this.pnn50 = pnn50;
+		this.sd1 = sd1;
+		this.sd2 = sd2;
+		this.lf = lf;
+		this.hf = hf;
+	}
+
+	/**
+	 * @return time of the first beat of the stretch
+	 */
+	public long getBegin() {
+		return begin;
+	}
+
+	/**
+	 * @return time of the last beat of the stretch
+	 */
+	public long getEnd() {
+		return end;
+	}
+
+	/**
+	 * @return how many NN intervals the stretch holds
+	 */
+	public int getIntervals() {
+		return intervals;
+	}
+
+	public double getMeanNN() {
+		return meanNN;
+	}
+
+	/**
+	 * @return standard deviation of the NN intervals
+	 */
+	public double getSdnn() {
+		return sdnn;
+	}
+
+	/**
+	 * @return root mean square of the successive differences
+	 */
+	public double getRmssd() {
+		return rmssd;
+	}
+
+	/**
+	 * @return share of successive differences over 50 ms, in %
+	 */
+	public double getPnn50() {
+		return pnn50;
+	}
+
+	/**
+	 * @return Poincare plot spread across the identity line (beat to beat variability)
+	 */
+	public double getSd1() {
+		return sd1;
+	}
+
+	/**
+	 * @return Poincare plot spread along the identity line (long term variability)
+	 */
+	public double getSd2() {
+		return sd2;
+	}
+
+	/**
+	 * @return power from 0.04 to 0.15 Hz
+	 */
+	public double getLf() {
+		return lf;
+	}
+
+	/**
+	 * @return power from 0.15 to 0.4 Hz
+	 */
+	public double getHf() {
+		return hf;
+	}
+
+	public double getLfHf() {
+		return lf / hf;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.US, "%d NN  mean %.0f  SDNN %.1f  RMSSD %.1f  pNN50 %.1f%%  SD1 %.1f  SD2 %.1f"
+				+ "  LF %.0f  HF %.0f  LF/HF %.2f", intervals, meanNN, sdnn, rmssd, pnn50, sd1, sd2, lf, hf, getLfHf());
+	}
+}
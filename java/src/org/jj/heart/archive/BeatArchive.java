@@ -0,0 +1,174 @@
+package org.jj.heart.archive;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jj.heart.data.BeatStore;
+import org.jj.heart.data.LogParser;
+import org.jj.heart.data.Workout;
+import org.jj.heart.export.ChannelOutput;
+import org.jj.heart.export.VarInt;
+
+/**
+ * Compact archive of the beat times of logs, written segment by segment as LogParser reads them
+ * (see BeatArchiveReader)<br/>
+ * Beats come at a steady pace, so the difference between two successive periods is small: the
+ * times are stored as delta of delta, zigzag varint encoded (about one byte per beat against
+ * eight to ten in the log). The beats of a segment are cut in blocks of BLOCK beats, each
+ * decoded on its own from the first time kept in the index, which also has the last time
+ * and the min and max period of the block: a reader decodes only the blocks of a time range.
+ * <pre>
+ * "HRA1"
+ * blocks: per beat after the first of the block, varint(zigzag(period - previous period))
+ *         (the previous period of the second beat of a block is 0)
+ * footer: version, segment count, per segment: header, begin, beats, block count;
+ *         per block: first time, last time, min period, max period, offset, length
+ * footer length (int), "HRA1"
+ * </pre>
+ * The periods of the index are those Workout.validate calculates, the first beat of a block
+ * counting from the last beat of the block before.
+ * @author jjones
+ */
+public class BeatArchive {
+	public static final String EXTENSION = "hra";
+	static final byte[] MAGIC = { 'H', 'R', 'A', '1' };
+	static final int VERSION = 1;
+	/** beats per block */
+	public static final int BLOCK = 1024;
+
+	/**
+	 * A run of beats decoded on its own
+	 */
+	static class Block {
+		long firstTime, lastTime, offset;
+		int minPeriode, maxPeriode, length;
+	}
+
+	/**
+	 * A segment of a log ("----" header) and its blocks
+	 */
+	static class Segment {
+		String header;
+		long begin;
+		int beats, firstBlock, blocks;
+	}
+
+	private final ChannelOutput out;
+	private final List<Segment> segments = new ArrayList<Segment>();
+	private final List<Block> blocks = new ArrayList<Block>();
+	/** a block encoded: at most 10 bytes per beat */
+	private final byte[] buffer = new byte[BLOCK * 10];
+
+	/**
+	 * @param channel where the archive goes, closed with the archive
+	 */
+	public BeatArchive(WritableByteChannel channel) throws IOException {
+		out = new ChannelOutput(channel);
+		out.write(MAGIC);
+	}
+
+	/**
+	 * Appends a segment
+	 * @param segment a work-out as LogParser reads it, before any merge
+	 */
+	public void add(Workout segment) throws IOException {
+		Segment s = new Segment();
+		s.header = segment.getTimeStamp();
+		s.begin = segment.getBegin().getTime();
+		BeatStore beats = segment.getBeatStore();
+		s.beats = beats.size();
+		s.firstBlock = blocks.size();
+		long[] times = beats.getTimes();
+		for (int start = 0; start < s.beats; start += BLOCK) {
+			int end = Math.min(s.beats, start + BLOCK);
+			Block block = new Block();
+			block.firstTime = times[start];
+			block.lastTime = times[end - 1];
+			block.minPeriode = Integer.MAX_VALUE;
+			block.maxPeriode = Integer.MIN_VALUE;
+			long delta = 0;
+			int position = 0;
+			for (int i = start; i < end; i++) {
+				int periode = (int) (i == 0 ? times[0] : times[i] - times[i - 1]);
+				block.minPeriode = Math.min(block.minPeriode, periode);
+				block.maxPeriode = Math.max(block.maxPeriode, periode);
+				if (i > start) {
+					position = VarInt.write(buffer, position, VarInt.zigzag(times[i] - times[i - 1] - delta));
+					delta = times[i] - times[i - 1];
+				}
+			}
+			block.offset = out.position();
+			block.length = position;
+			out.write(buffer, 0, position);
+			blocks.add(block);
+		}
+		s.blocks = blocks.size() - s.firstBlock;
+		segments.add(s);
+	}
+
+	/**
+	 * Writes the index and closes the channel
+	 */
+	public void close() throws IOException {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream footer = new DataOutputStream(bytes);
+			footer.writeInt(VERSION);
+			footer.writeInt(segments.size());
+			for (Segment segment : segments) {
+				footer.writeUTF(segment.header);
+				footer.writeLong(segment.begin);
+				footer.writeInt(segment.beats);
+				footer.writeInt(segment.blocks);
+			}
+			for (Block block : blocks) {
+				footer.writeLong(block.firstTime);
+				footer.writeLong(block.lastTime);
+				footer.writeInt(block.minPeriode);
+				footer.writeInt(block.maxPeriode);
+				footer.writeLong(block.offset);
+				footer.writeInt(block.length);
+			}
+			footer.writeInt(bytes.size());
+			footer.write(MAGIC);
+			bytes.writeTo(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Archives a log, one segment at a time
+	 * @param log the log file
+	 * @param target the archive written
+	 * @return how many beats were archived
+	 */
+	public static long convert(File log, File target) throws IOException {
+		long beats = 0;
+		InputStream in = new FileInputStream(log);
+		try {
+			BeatArchive archive = new BeatArchive(new FileOutputStream(target).getChannel());
+			try {
+				LogParser parser = new LogParser(in);
+				Workout segment;
+				while (null != (segment = parser.next())) {
+					archive.add(segment);
+					beats += segment.getBeatStore().size();
+				}
+			} finally {
+				archive.close();
+			}
+		} finally {
+			in.close();
+		}
+		return beats;
+	}
+}
@@ -0,0 +1,272 @@
+package org.jj.heart.archive;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.jj.heart.DataAnalizer;
+import org.jj.heart.archive.BeatArchive.Block;
+import org.jj.heart.archive.BeatArchive.Segment;
+import org.jj.heart.data.BeatStore;
+import org.jj.heart.data.Workout;
+
+/**
+ * Reads a BeatArchive: the index when opening, the blocks only as the beats are asked for,
+ * decoded straight into arrays of times
+ * @author jjones
+ */
+public class BeatArchiveReader {
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final Segment[] segments;
+	private final Block[] blocks;
+	/** bytes of the block read last */
+	private byte[] bytes = new byte[BeatArchive.BLOCK * 2];
+
+	/**
+	 * Opens an archive and reads its index
+	 * @throws IOException if it is not an archive
+	 */
+	public BeatArchiveReader(File archive) throws IOException {
+		file = new RandomAccessFile(archive, "r");
+		channel = file.getChannel();
+		try {
+			long size = channel.size();
+			ByteBuffer tail = ByteBuffer.allocate(8);
+			if (size < 16 || read(tail, size - 8) < 8 || !Arrays.equals(Arrays.copyOfRange(tail.array(), 4, 8),
+					BeatArchive.MAGIC)) {
+				throw new IOException("not a beat archive: " + archive);
+			}
+			int length = tail.getInt(0);
+			if (length < 0 || length > size - 12) {
+				throw new IOException("truncated index: " + archive);
+			}
+			ByteBuffer index = ByteBuffer.allocate(length);
+			if (read(index, size - 8 - length) < length) {
+				throw new IOException("truncated index: " + archive);
+			}
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(index.array()));
+			if (in.readInt() != BeatArchive.VERSION) {
+				throw new IOException("unknown version: " + archive);
+			}
+			// the counts are checked against the index size before anything is allocated
+			int segmentCount = in.readInt();
+			if (segmentCount < 0 || segmentCount > length) {
+				throw new IOException("damaged index: " + archive);
+			}
+			segments = new Segment[segmentCount];
+			int count = 0;
+			for (int s = 0; s < segments.length; s++) {
+				Segment segment = segments[s] = new Segment();
+				segment.header = in.readUTF();
+				segment.begin = in.readLong();
+				segment.beats = in.readInt();
+				segment.blocks = in.readInt();
+				segment.firstBlock = count;
+				count += segment.blocks;
+				if (segment.blocks < 0 || count < 0 || count > length) {
+					throw new IOException("damaged index: " + archive);
+				}
+			}
+			blocks = new Block[count];
+			for (int b = 0; b < count; b++) {
+				Block block = blocks[b] = new Block();
+				block.firstTime = in.readLong();
+				block.lastTime = in.readLong();
+				block.minPeriode = in.readInt();
+				block.maxPeriode = in.readInt();
+				block.offset = in.readLong();
+				block.length = in.readInt();
+				if (block.offset < 0 || block.length < 0 || block.offset + block.length > size - 8 - length) {
+					throw new IOException("damaged index: " + archive);
+				}
+			}
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	private int read(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				break;
+			}
+		}
+		return buffer.position();
+	}
+
+	/**
+	 * @return how many segments the archive holds
+	 */
+	public int size() {
+		return segments.length;
+	}
+
+	/**
+	 * @return the header of a segment, as in the log
+	 */
+	public String getTimeStamp(int s) {
+		return segments[s].header;
+	}
+
+	public int getBeatCount(int s) {
+		return segments[s].beats;
+	}
+
+	public int getBlockCount(int s) {
+		return segments[s].blocks;
+	}
+
+	/**
+	 * @param s a segment
+	 * @param b a block of the segment
+	 * @return the shortest period of the block (fastest rate)
+	 */
+	public int getMinPeriode(int s, int b) {
+		return blocks[segments[s].firstBlock + b].minPeriode;
+	}
+
+	/**
+	 * @return the longest period of a block of a segment (slowest rate)
+	 */
+	public int getMaxPeriode(int s, int b) {
+		return blocks[segments[s].firstBlock + b].maxPeriode;
+	}
+
+	/**
+	 * @return the time of the first beat of a block of a segment
+	 */
+	public long getFirstTime(int s, int b) {
+		return blocks[segments[s].firstBlock + b].firstTime;
+	}
+
+	/**
+	 * @return every beat time of a segment
+	 */
+	public long[] readTimes(int s) throws IOException {
+		return readTimes(s, Long.MIN_VALUE, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Decodes only the blocks overlapping a time range
+	 * @param s a segment
+	 * @param from first time wanted, since boot
+	 * @param to last time wanted, included
+	 * @return the beat times within the range
+	 */
+	public long[] readTimes(int s, long from, long to) throws IOException {
+		Segment segment = segments[s];
+		// the times grow: the blocks overlapping the range follow each other
+		int first = segment.firstBlock, end = segment.firstBlock + segment.blocks;
+		while (first < end && blocks[first].lastTime < from) {
+			first++;
+		}
+		int last = first;
+		while (last < end && blocks[last].firstTime <= to) {
+			last++;
+		}
+		long[] times = new long[(last - first) * BeatArchive.BLOCK];
+		int count = 0;
+		for (int b = first; b < last; b++) {
+			count = decode(blocks[b], times, count);
+		}
+		// only the first and last blocks may hold beats outside the range
+		int lo = 0, hi = count;
+		while (lo < hi && times[lo] < from) {
+			lo++;
+		}
+		while (hi > lo && times[hi - 1] > to) {
+			hi--;
+		}
+		return lo == 0 && hi == times.length ? times : Arrays.copyOfRange(times, lo, hi);
+	}
+
+	/**
+	 * Decodes a block after the times already decoded
+	 * @return the count of times decoded so far
+	 */
+	private int decode(Block block, long[] times, int count) throws IOException {
+		if (bytes.length < block.length) {
+			bytes = new byte[block.length];
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, block.length);
+		if (read(buffer, block.offset) < block.length) {
+			throw new IOException("truncated block at " + block.offset);
+		}
+		long time = block.firstTime, delta = 0;
+		int end = Math.min(times.length, count + BeatArchive.BLOCK);
+		if (count >= end) {
+			throw damaged(block);
+		}
+		times[count++] = time;
+		int position = 0;
+		while (position < block.length) {
+			// varint inline: this loop is the whole cost of reading
+			long value = 0;
+			int shift = 0;
+			byte b;
+			do {
+				if (position >= block.length) {
+					throw damaged(block);
+				}
+				b = bytes[position++];
+				value |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			} while (b < 0);
+			delta += (value >>> 1) ^ -(value & 1);
+			time += delta;
+			if (count >= end) {
+				throw damaged(block);
+			}
+			times[count++] = time;
+		}
+		return count;
+	}
+
+	/**
+	 * @return the error for a block whose last varint is cut or holding more beats than its segment
+	 */
+	private static IOException damaged(Block block) {
+		return new IOException("damaged block at " + block.offset);
+	}
+
+	/**
+	 * @return a segment as LogParser reads it from the log
+	 */
+	public Workout readSegment(int s) throws IOException {
+		Workout w = new Workout();
+		w.setTimeStamp(segments[s].header);
+		w.setBegin(new Date(segments[s].begin));
+		BeatStore beats = w.getBeatStore();
+		long[] times = readTimes(s);
+		beats.ensureCapacity(times.length);
+		for (long time : times) {
+			beats.add(time);
+		}
+		return w;
+	}
+
+	/**
+	 * @return the work-outs of the archived log, as DataAnalizer.parseLog gives them
+	 */
+	public List<Workout> readWorkouts() throws IOException {
+		List<Workout> workouts = new ArrayList<Workout>(segments.length);
+		for (int s = 0; s < segments.length; s++) {
+			workouts.add(readSegment(s));
+		}
+		return DataAnalizer.mergeSessions(workouts);
+	}
+
+	public void close() throws IOException {
+		file.close();
+	}
+}
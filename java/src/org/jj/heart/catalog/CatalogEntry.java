@@ -0,0 +1,116 @@
+package org.jj.heart.catalog;
+
+import java.util.Date;
+
+import org.jj.heart.data.Workout;
+
+/**
+ * Summary of one work-out of the catalog: where it comes from and its statistics,
+ * enough to find and list work-outs without opening their log
+ * @author jjones
+ */
+public class CatalogEntry {
+	/** log path relative to the catalog directory */
+	final String log;
+	/** position of the work-out in its log */
+	final int index;
+	/** day of the log as yyyyMMdd */
+	final int date;
+	final String timeStamp;
+	final long begin;
+	/** in ms */
+	final long duration;
+	/** rates in bpm */
+	final float average;
+	final int min, max;
+	final long totalBeats;
+
+	CatalogEntry(String log, int index, int date, String timeStamp, long begin, long duration, float average,
+			int min, int max, long totalBeats) {
+		this.log = log;
+		this.index = index;
+		this.date = date;
+		this.timeStamp = timeStamp;
+		this.begin = begin;
+		this.duration = duration;
+		this.average = average;
+		this.min = min;
+		this.max = max;
+		this.totalBeats = totalBeats;
+	}
+
+	/**
+	 * @param log log path relative to the catalog directory
+	 * @param index position of the work-out in its log
+	 * @param date day of the log as yyyyMMdd
+	 * @param w a validated work-out with valid beats
+	 */
+	CatalogEntry(String log, int index, int date, Workout w) {
+		this(log, index, date, w.getTimeStamp(), w.getBegin().getTime(), w.getDuration(),
+				60000 / w.getAverage(), 60000 / w.getMax(), 60000 / w.getMin(), w.getTotalBeats());
+	}
+
+	public String getLog() {
+		return log;
+	}
+
+	public int getIndex() {
+		return index;
+	}
+
+	/**
+	 * @return day of the log as yyyyMMdd
+	 */
+	public int getDate() {
+		return date;
+	}
+
+	/**
+	 * @return the header of the work-out ("H:m:s" of the first boot)
+	 */
+	public String getTimeStamp() {
+		return timeStamp;
+	}
+
+	public Date getBegin() {
+		return new Date(begin);
+	}
+
+	/**
+	 * @return duration of the valid beats in ms
+	 */
+	public long getDuration() {
+		return duration;
+	}
+
+	/**
+	 * @return average rate in bpm
+	 */
+	public float getAverage() {
+		return average;
+	}
+
+	/**
+	 * @return lowest rate in bpm
+	 */
+	public int getMin() {
+		return min;
+	}
+
+	/**
+	 * @return highest rate in bpm
+	 */
+	public int getMax() {
+		return max;
+	}
+
+	public long getTotalBeats() {
+		return totalBeats;
+	}
+
+	@Override
+	public String toString() {
+		return date + " " + timeStamp + "  " + log + "#" + index + "  time:" + Math.round(duration / 60000f)
+				+ "  ave:" + Math.round(average) + "  min:" + min + "  max:" + max + "  beats:" + totalBeats;
+	}
+}
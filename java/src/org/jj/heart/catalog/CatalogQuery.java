@@ -0,0 +1,101 @@
+package org.jj.heart.catalog;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Conditions on the catalog columns, all of which a work-out must meet<br/>
+ * <code>new CatalogQuery().year(2011).atLeast(Metric.DURATION, 45).atLeast(Metric.AVERAGE, 150)</code>
+ * @author jjones
+ */
+public class CatalogQuery {
+	/** condition written as "duration>=45", "average>150" or "year=2011" */
+	static final Pattern CONDITION = Pattern.compile("(\\w+)\\s*(>=|<=|>|<|=)\\s*(-?[\\d.]+)");
+
+	/** inclusive bounds per column */
+	final Map<Metric, double[]> ranges = new EnumMap<Metric, double[]>(Metric.class);
+
+	/**
+	 * Keeps the work-outs with a column between two values (included)
+	 */
+	public CatalogQuery range(Metric metric, double min, double max) {
+		double[] range = ranges.get(metric);
+		if (range == null) {
+			ranges.put(metric, new double[] { min, max });
+		} else {
+			range[0] = Math.max(range[0], min);
+			range[1] = Math.min(range[1], max);
+		}
+		return this;
+	}
+
+	public CatalogQuery atLeast(Metric metric, double min) {
+		return range(metric, min, Double.POSITIVE_INFINITY);
+	}
+
+	public CatalogQuery atMost(Metric metric, double max) {
+		return range(metric, Double.NEGATIVE_INFINITY, max);
+	}
+
+	/**
+	 * @param from first day as yyyyMMdd
+	 * @param to last day as yyyyMMdd
+	 */
+	public CatalogQuery dates(int from, int to) {
+		return range(Metric.DATE, from, to);
+	}
+
+	public CatalogQuery year(int year) {
+		return dates(year * 10000 + 101, year * 10000 + 1231);
+	}
+
+	boolean matches(CatalogEntry entry) {
+		for (Map.Entry<Metric, double[]> range : ranges.entrySet()) {
+			double value = range.getKey().value(entry);
+			if (value < range.getValue()[0] || value > range.getValue()[1]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Reads conditions like "year=2011", "duration>=45" (minutes) or "average>150" (bpm)
+	 * @param conditions column names are the Metric names in any case, plus "year"
+	 * @return the query meeting all the conditions
+	 */
+	public static CatalogQuery parse(String... conditions) {
+		CatalogQuery query = new CatalogQuery();
+		for (String condition : conditions) {
+			Matcher m = CONDITION.matcher(condition.trim());
+			if (!m.matches()) {
+				throw new IllegalArgumentException("bad condition " + condition);
+			}
+			String name = m.group(1).toUpperCase();
+			String operator = m.group(2);
+			double value = Double.parseDouble(m.group(3));
+			if (name.equals("YEAR")) {
+				if (!operator.equals("=")) {
+					throw new IllegalArgumentException("year only takes = " + condition);
+				}
+				query.year((int) value);
+				continue;
+			}
+			Metric metric = Metric.valueOf(name);
+			if (operator.equals("=")) {
+				query.range(metric, value, value);
+			} else if (operator.equals(">=")) {
+				query.atLeast(metric, value);
+			} else if (operator.equals(">")) {
+				query.atLeast(metric, Math.nextUp(value));
+			} else if (operator.equals("<=")) {
+				query.atMost(metric, value);
+			} else {
+				query.atMost(metric, -Math.nextUp(-value));
+			}
+		}
+		return query;
+	}
+}
@@ -0,0 +1,51 @@
+package org.jj.heart.catalog;
+
+/**
+ * Columns of the catalog that can be queried, each one indexed
+ * @author jjones
+ */
+public enum Metric {
+	/** day as yyyyMMdd */
+	DATE {
+		double value(CatalogEntry e) {
+			return e.date;
+		}
+	},
+	/** in ms */
+	BEGIN {
+		double value(CatalogEntry e) {
+			return e.begin;
+		}
+	},
+	/** in minutes */
+	DURATION {
+		double value(CatalogEntry e) {
+			return e.duration / 60000.0;
+		}
+	},
+	/** in bpm */
+	AVERAGE {
+		double value(CatalogEntry e) {
+			return e.average;
+		}
+	},
+	/** in bpm */
+	MIN {
+		double value(CatalogEntry e) {
+			return e.min;
+		}
+	},
+	/** in bpm */
+	MAX {
+		double value(CatalogEntry e) {
+			return e.max;
+		}
+	},
+	BEATS {
+		double value(CatalogEntry e) {
+			return e.totalBeats;
+		}
+	};
+
+	abstract double value(CatalogEntry e);
+}
@@ -0,0 +1,160 @@
+package org.jj.heart.catalog;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.jj.heart.data.BeatStore;
+import org.jj.heart.data.Workout;
+import org.jj.heart.data.WorkoutStatistics;
+
+/**
+ * Summary of the work-outs of a day, week or month, built by merging the summaries of
+ * single work-outs or of shorter spans: everything in it is a sum, a min or a max,
+ * so merging the cells of the days of a week gives the cell of the week
+ * @author jjones
+ */
+public class RollupCell {
+	int workouts;
+	/** ms of valid beats */
+	long duration;
+	long totalBeats;
+	/** shortest and longest valid period of the work-outs, in ms (0 without work-outs) */
+	int minPeriode, maxPeriode;
+	/** ms of valid beats per heart rate zone, zones.length + 1 of them */
+	final long[] zoneTimes;
+
+	/**
+	 * @param zones how many zone limits (see WorkoutStatistics.DEFAULT_ZONES)
+	 */
+	RollupCell(int zones) {
+		zoneTimes = new long[zones + 1];
+	}
+
+	/**
+	 * Summary of one work-out
+	 * @param w a validated work-out with valid beats
+	 */
+	RollupCell(Workout w) {
+		this(WorkoutStatistics.DEFAULT_ZONES.length);
+		workouts = 1;
+		duration = w.getDuration();
+		totalBeats = w.getTotalBeats();
+		// over the valid beats only: Workout.getMin and getMax also count the beat before the first valid one
+		BeatStore beats = w.getBeatStore();
+		minPeriode = Integer.MAX_VALUE;
+		for (int i = w.getFirstValid(); i <= w.getLastValid(); i++) {
+			if (beats.isValid(i)) {
+				minPeriode = Math.min(minPeriode, beats.getPeriode(i));
+				maxPeriode = Math.max(maxPeriode, beats.getPeriode(i));
+			}
+		}
+		WorkoutStatistics statistics = w.getStatistics();
+		for (int z = 0; z < zoneTimes.length; z++) {
+			zoneTimes[z] = statistics.getZoneTime(z);
+		}
+	}
+
+	/**
+	 * Adds the work-outs of another cell to this one
+	 * @return this cell
+	 */
+	RollupCell merge(RollupCell other) {
+		if (other.workouts == 0) {
+			return this;
+		}
+		minPeriode = workouts == 0 ? other.minPeriode : Math.min(minPeriode, other.minPeriode);
+		maxPeriode = workouts == 0 ? other.maxPeriode : Math.max(maxPeriode, other.maxPeriode);
+		workouts += other.workouts;
+		duration += other.duration;
+		totalBeats += other.totalBeats;
+		for (int z = 0; z < zoneTimes.length; z++) {
+			zoneTimes[z] += other.zoneTimes[z];
+		}
+		return this;
+	}
+
+	void write(DataOutputStream out) throws IOException {
+		out.writeInt(workouts);
+		out.writeLong(duration);
+		out.writeLong(totalBeats);
+		out.writeInt(minPeriode);
+		out.writeInt(maxPeriode);
+		for (long time : zoneTimes) {
+			out.writeLong(time);
+		}
+	}
+
+	static RollupCell read(DataInputStream in, int zones) throws IOException {
+		RollupCell cell = new RollupCell(zones);
+		cell.workouts = in.readInt();
+		cell.duration = in.readLong();
+		cell.totalBeats = in.readLong();
+		cell.minPeriode = in.readInt();
+		cell.maxPeriode = in.readInt();
+		for (int z = 0; z < cell.zoneTimes.length; z++) {
+			cell.zoneTimes[z] = in.readLong();
+		}
+		return cell;
+	}
+
+	public int getWorkouts() {
+		return workouts;
+	}
+
+	/**
+	 * @return ms of valid beats over all the work-outs
+	 */
+	public long getDuration() {
+		return duration;
+	}
+
+	public long getTotalBeats() {
+		return totalBeats;
+	}
+
+	/**
+	 * @return average period over all the work-outs in ms, like Workout.getAverage
+	 */
+	public float getAverage() {
+		return totalBeats > 0 ? duration / (float) totalBeats : 0;
+	}
+
+	/**
+	 * @return shortest period in ms (the highest rate)
+	 */
+	public int getMin() {
+		return minPeriode;
+	}
+
+	/**
+	 * @return longest period in ms (the lowest rate)
+	 */
+	public int getMax() {
+		return maxPeriode;
+	}
+
+	/**
+	 * @param zone from 0, below the first limit, to zones.length, above the last
+	 * @return ms of valid beats in the zone
+	 */
+	public long getZoneTime(int zone) {
+		return zoneTimes[zone];
+	}
+
+	public int getZoneCount() {
+		return zoneTimes.length;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder zones = new StringBuilder();
+		for (long time : zoneTimes) {
+			zones.append(zones.length() == 0 ? "" : "/").append(Math.round(time / 60000f));
+		}
+		return workouts + " work-outs  time:" + Math.round(duration / 60000f) + "  ave:"
+				+ (totalBeats > 0 ? Math.round(60000 / getAverage()) : 0) + "  min:"
+				+ (maxPeriode > 0 ? 60000 / maxPeriode : 0) + "  max:" + (minPeriode > 0 ? 60000 / minPeriode : 0)
+				+ "  beats:" + totalBeats + "  zones:" + zones;
+	}
+}
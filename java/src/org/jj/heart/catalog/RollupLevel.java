@@ -0,0 +1,91 @@
+package org.jj.heart.catalog;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+
+/**
+ * Time spans of the rollup cells, each cell keyed by its first day as yyyyMMdd
+ * @author jjones
+ */
+public enum RollupLevel {
+	DAY {
+		void start(Calendar day) {
+		}
+
+		void next(Calendar day) {
+			day.add(Calendar.DAY_OF_MONTH, 1);
+		}
+	},
+	/** weeks start on monday */
+	WEEK {
+		void start(Calendar day) {
+			day.add(Calendar.DAY_OF_MONTH, -((day.get(Calendar.DAY_OF_WEEK) + 5) % 7));
+		}
+
+		void next(Calendar day) {
+			day.add(Calendar.DAY_OF_MONTH, 7);
+		}
+	},
+	MONTH {
+		void start(Calendar day) {
+			day.set(Calendar.DAY_OF_MONTH, 1);
+		}
+
+		void next(Calendar day) {
+			day.add(Calendar.MONTH, 1);
+		}
+	};
+
+	/** moves a day to the first day of its cell */
+	abstract void start(Calendar day);
+
+	/** moves the first day of a cell to that of the next cell */
+	abstract void next(Calendar day);
+
+	/**
+	 * @param date a day as yyyyMMdd
+	 * @return the key of the cell holding the day
+	 */
+	public int key(int date) {
+		Calendar day = calendar(date);
+		start(day);
+		return date(day);
+	}
+
+	/**
+	 * @param key the key of a cell
+	 * @return the key of the next cell
+	 */
+	public int next(int key) {
+		Calendar day = calendar(key);
+		next(day);
+		return date(day);
+	}
+
+	/**
+	 * @return a day as yyyyMMdd in ms, local time
+	 */
+	public static long time(int date) {
+		return calendar(date).getTimeInMillis();
+	}
+
+	static Calendar calendar(int date) {
+		return new GregorianCalendar(date / 10000, date / 100 % 100 - 1, date % 100);
+	}
+
+	static int date(Calendar day) {
+		return day.get(Calendar.YEAR) * 10000 + (day.get(Calendar.MONTH) + 1) * 100 + day.get(Calendar.DAY_OF_MONTH);
+	}
+
+	/**
+	 * @return the level of a name like "week", null if none matches
+	 */
+	public static RollupLevel of(String name) {
+		for (RollupLevel level : values()) {
+			if (level.name().equalsIgnoreCase(name)) {
+				return level;
+			}
+		}
+		return null;
+	}
+}
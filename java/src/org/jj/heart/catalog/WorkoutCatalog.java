@@ -0,0 +1,375 @@
+package org.jj.heart.catalog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.jj.heart.BatchProcessor;
+import org.jj.heart.DataAnalizer;
+import org.jj.heart.data.Workout;
+
+/**
+ * Summaries of every work-out of a log directory tree, kept in one file at its root<br/>
+ * A rescan only reads the logs whose size or modification time changed. The summaries are
+ * held in memory in date order with a sorted index per metric, so a query only looks at
+ * the work-outs in range of its most selective condition.
+ * <pre>
+ * file: magic "HRC1", int version, int log count
+ * log:  UTF path (relative to the directory), long length, long last modified, int work-out count
+ *       work-out: int index, int date, UTF time stamp, long begin, long duration,
+ *                 float average, int min, int max, long total beats
+ * </pre>
+ * @author jjones
+ */
+public class WorkoutCatalog {
+	public static final String FILE_NAME = "catalog.hrc";
+	static final int MAGIC = 0x48524331; // "HRC1"
+	static final int VERSION = 1;
+	/** logs are named after their day */
+	static final Pattern DAY_NAME = Pattern.compile("(\\d{8})\\..*");
+
+	/**
+	 * The summaries of one log and the state of the log when it was read
+	 */
+	static class LogRecord {
+		final long length, lastModified;
+		final List<CatalogEntry> entries;
+
+		LogRecord(long length, long lastModified, List<CatalogEntry> entries) {
+			this.length = length;
+			this.lastModified = lastModified;
+			this.entries = entries;
+		}
+	}
+
+	/**
+	 * The positions of the entries sorted on one metric
+	 */
+	static class Index {
+		final double[] values;
+		final int[] positions;
+
+		Index(final Metric metric, final CatalogEntry[] entries) {
+			Integer[] order = new Integer[entries.length];
+			for (int i = 0; i < order.length; i++) {
+				order[i] = i;
+			}
+			Arrays.sort(order, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					return Double.compare(metric.value(entries[a]), metric.value(entries[b]));
+				}
+			});
+			values = new double[entries.length];
+			positions = new int[entries.length];
+			for (int i = 0; i < order.length; i++) {
+				positions[i] = order[i];
+				values[i] = metric.value(entries[order[i]]);
+			}
+		}
+
+		/**
+		 * @return first position with a value not below the key
+		 */
+		int lowerBound(double key) {
+			int low = 0, high = values.length;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (values[mid] < key) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+
+		/**
+		 * @return first position with a value above the key
+		 */
+		int upperBound(double key) {
+			int low = 0, high = values.length;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (values[mid] <= key) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+	}
+
+	private final File dir;
+	private final Map<String, LogRecord> logs = new TreeMap<String, LogRecord>();
+	/** all the summaries by date then begin */
+	private CatalogEntry[] entries = new CatalogEntry[0];
+	private final Map<Metric, Index> indexes = new EnumMap<Metric, Index>(Metric.class);
+	private boolean changed;
+
+	private WorkoutCatalog(File dir) {
+		this.dir = dir;
+	}
+
+	/**
+	 * Opens the catalog of a directory, empty if it has none yet (see rescan)
+	 * @param dir the root of the log directory tree
+	 * @return the catalog as last saved
+	 * @throws IOException
+	 */
+	public static WorkoutCatalog open(File dir) throws IOException {
+		WorkoutCatalog catalog = new WorkoutCatalog(dir);
+		File file = new File(dir, FILE_NAME);
+		if (file.isFile()) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+			try {
+				catalog.read(in);
+			} catch (EOFException e) {
+				catalog.logs.clear(); // truncated: the rescan reads everything again
+			} finally {
+				in.close();
+			}
+		}
+		catalog.sort();
+		return catalog;
+	}
+
+	private void read(DataInputStream in) throws IOException {
+		if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+			return;
+		}
+		int count = in.readInt();
+		for (int l = 0; l < count; l++) {
+			String log = in.readUTF();
+			long length = in.readLong();
+			long lastModified = in.readLong();
+			int workouts = in.readInt();
+			List<CatalogEntry> entries = new ArrayList<CatalogEntry>(workouts);
+			for (int w = 0; w < workouts; w++) {
+				entries.add(new CatalogEntry(log, in.readInt(), in.readInt(), in.readUTF(), in.readLong(),
+						in.readLong(), in.readFloat(), in.readInt(), in.readInt(), in.readLong()));
+			}
+			logs.put(log, new LogRecord(length, lastModified, entries));
+		}
+	}
+
+	/**
+	 * Writes the catalog at the root of its directory if it changed
+	 * @throws IOException
+	 */
+	public void save() throws IOException {
+		if (!changed) {
+			return;
+		}
+		File target = new File(dir, FILE_NAME);
+		File temp = new File(target.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 65536));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(logs.size());
+			for (Map.Entry<String, LogRecord> log : logs.entrySet()) {
+				LogRecord record = log.getValue();
+				out.writeUTF(log.getKey());
+				out.writeLong(record.length);
+				out.writeLong(record.lastModified);
+				out.writeInt(record.entries.size());
+				for (CatalogEntry e : record.entries) {
+					out.writeInt(e.index);
+					out.writeInt(e.date);
+					out.writeUTF(e.timeStamp);
+					out.writeLong(e.begin);
+					out.writeLong(e.duration);
+					out.writeFloat(e.average);
+					out.writeInt(e.min);
+					out.writeInt(e.max);
+					out.writeLong(e.totalBeats);
+				}
+			}
+		} finally {
+			out.close();
+		}
+		target.delete();
+		if (!temp.renameTo(target)) {
+			temp.delete();
+			throw new IOException("cannot rename " + temp);
+		}
+		changed = false;
+	}
+
+	/**
+	 * Brings the catalog up to date with the logs of its directory: new logs and logs whose
+	 * size or modification time changed are read (from their binary copy when it is up to date),
+	 * logs that are gone are dropped
+	 * @return how many logs were read
+	 */
+	public int rescan() {
+		int read = 0;
+		Set<String> found = new HashSet<String>();
+		for (File logFile : BatchProcessor.listLogs(dir, new ArrayList<File>())) {
+			String log = relativePath(logFile);
+			found.add(log);
+			long length = logFile.length();
+			long lastModified = logFile.lastModified();
+			LogRecord record = logs.get(log);
+			if (record != null && record.length == length && record.lastModified == lastModified) {
+				continue;
+			}
+			logs.put(log, new LogRecord(length, lastModified, summarize(logFile, log)));
+			changed = true;
+			read++;
+		}
+		if (logs.keySet().retainAll(found)) {
+			changed = true;
+		}
+		if (changed) {
+			sort();
+		}
+		return read;
+	}
+
+	/**
+	 * @return the summaries of the work-outs with valid beats of a log, none if it cannot be read
+	 */
+	private List<CatalogEntry> summarize(File logFile, String log) {
+		List<CatalogEntry> entries = new ArrayList<CatalogEntry>();
+		int date = day(logFile);
+		try {
+			List<Workout> workouts = DataAnalizer.loadLog(logFile);
+			for (int i = 0; i < workouts.size(); i++) {
+				Workout w = workouts.get(i);
+				if (w.hasValidBeat() && w.getTotalBeats() > 0) {
+					entries.add(new CatalogEntry(log, i, date, w));
+				}
+			}
+		} catch (IOException e) {
+			// unreadable: listed again once the file changes
+		} catch (RuntimeException e) {
+			// a log the parser cannot make sense of
+		}
+		return entries;
+	}
+
+	/**
+	 * @return the day of a log from its name (yyyyMMdd.LOG) or else from its modification time
+	 */
+	public static int day(File logFile) {
+		Matcher m = DAY_NAME.matcher(logFile.getName());
+		if (m.matches()) {
+			return Integer.parseInt(m.group(1));
+		}
+		return Integer.parseInt(new SimpleDateFormat("yyyyMMdd").format(new Date(logFile.lastModified())));
+	}
+
+	private String relativePath(File logFile) {
+		return dir.toURI().relativize(logFile.toURI()).getPath();
+	}
+
+	/**
+	 * Puts the summaries in date order; the indexes are built again on demand
+	 */
+	private void sort() {
+		List<CatalogEntry> all = new ArrayList<CatalogEntry>();
+		for (LogRecord record : logs.values()) {
+			all.addAll(record.entries);
+		}
+		Collections.sort(all, new Comparator<CatalogEntry>() {
+			public int compare(CatalogEntry a, CatalogEntry b) {
+				if (a.date != b.date) {
+					return a.date < b.date ? -1 : 1;
+				}
+				if (a.begin != b.begin) {
+					return a.begin < b.begin ? -1 : 1;
+				}
+				int log = a.log.compareTo(b.log);
+				return log != 0 ? log : a.index - b.index;
+			}
+		});
+		entries = all.toArray(new CatalogEntry[all.size()]);
+		indexes.clear();
+	}
+
+	private Index index(Metric metric) {
+		Index index = indexes.get(metric);
+		if (index == null) {
+			index = new Index(metric, entries);
+			indexes.put(metric, index);
+		}
+		return index;
+	}
+
+	/**
+	 * Finds the work-outs meeting every condition of a query
+	 * @param query the conditions
+	 * @return the matching summaries in date order
+	 */
+	public List<CatalogEntry> query(CatalogQuery query) {
+		// only go through the range of the most selective condition
+		Index best = null;
+		int from = 0, to = entries.length;
+		for (Map.Entry<Metric, double[]> range : query.ranges.entrySet()) {
+			Index index = index(range.getKey());
+			int low = index.lowerBound(range.getValue()[0]);
+			int high = index.upperBound(range.getValue()[1]);
+			if (best == null || high - low < to - from) {
+				best = index;
+				from = low;
+				to = Math.max(low, high);
+			}
+		}
+
+		List<CatalogEntry> found = new ArrayList<CatalogEntry>();
+		if (best == null) {
+			found.addAll(Arrays.asList(entries));
+			return found;
+		}
+		int[] positions = new int[to - from];
+		int count = 0;
+		for (int i = from; i < to; i++) {
+			int position = best.positions[i];
+			if (query.matches(entries[position])) {
+				positions[count++] = position;
+			}
+		}
+		// back to date order
+		Arrays.sort(positions, 0, count);
+		for (int i = 0; i < count; i++) {
+			found.add(entries[positions[i]]);
+		}
+		return found;
+	}
+
+	/**
+	 * @return how many work-outs are listed
+	 */
+	public int size() {
+		return entries.length;
+	}
+
+	/**
+	 * @return the log a work-out was read from
+	 */
+	public File getLogFile(CatalogEntry entry) {
+		return new File(dir, entry.log);
+	}
+}
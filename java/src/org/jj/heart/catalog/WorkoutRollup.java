@@ -0,0 +1,299 @@
+package org.jj.heart.catalog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.jj.heart.BatchProcessor;
+import org.jj.heart.DataAnalizer;
+import org.jj.heart.data.Workout;
+import org.jj.heart.data.WorkoutStatistics;
+
+/**
+ * Daily, weekly and monthly summaries of the work-outs of a log directory tree, for long term
+ * trends without reading the logs, kept in one file at its root next to the catalog<br/>
+ * Only the summary of each log is saved: the day cells are merged from the logs of the day,
+ * the week and month cells from their day cells. A rescan reads the logs whose size or
+ * modification time changed, like WorkoutCatalog, and only builds again the cells of their days.
+ * The cells depend on the heart rate zones: the summaries are read again when they change.
+ * <pre>
+ * file: magic "HRR1", int version, int zone count, int zone limit..., int log count
+ * log:  UTF path (relative to the directory), long length, long last modified, int date,
+ *       boolean has work-outs, cell: int work-outs, long duration, long total beats,
+ *       int min, int max, long zone time...
+ * </pre>
+ * @author jjones
+ */
+public class WorkoutRollup {
+	public static final String FILE_NAME = "rollup.hrr";
+	static final int MAGIC = 0x48525231; // "HRR1"
+	static final int VERSION = 1;
+
+	/**
+	 * The summary of one log, null without valid work-outs, and the state of the log when it was read
+	 */
+	static class LogRecord {
+		final long length, lastModified;
+		final int date;
+		final RollupCell cell;
+
+		LogRecord(long length, long lastModified, int date, RollupCell cell) {
+			this.length = length;
+			this.lastModified = lastModified;
+			this.date = date;
+			this.cell = cell;
+		}
+	}
+
+	private final File dir;
+	private final int[] zones = WorkoutStatistics.DEFAULT_ZONES;
+	private final Map<String, LogRecord> logs = new TreeMap<String, LogRecord>();
+	/** the cells with work-outs of each level by key */
+	private final Map<RollupLevel, SortedMap<Integer, RollupCell>> levels = new EnumMap<RollupLevel, SortedMap<Integer, RollupCell>>(
+			RollupLevel.class);
+	private boolean changed;
+
+	private WorkoutRollup(File dir) {
+		this.dir = dir;
+		for (RollupLevel level : RollupLevel.values()) {
+			levels.put(level, new TreeMap<Integer, RollupCell>());
+		}
+	}
+
+	/**
+	 * Opens the rollups of a directory, empty if it has none yet (see rescan)
+	 * @param dir the root of the log directory tree
+	 * @return the rollups as last saved
+	 * @throws IOException
+	 */
+	public static WorkoutRollup open(File dir) throws IOException {
+		WorkoutRollup rollup = new WorkoutRollup(dir);
+		File file = new File(dir, FILE_NAME);
+		if (file.isFile()) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+			try {
+				rollup.read(in);
+			} catch (EOFException e) {
+				rollup.logs.clear(); // truncated: the rescan reads everything again
+			} finally {
+				in.close();
+			}
+		}
+		Set<Integer> days = new HashSet<Integer>();
+		for (LogRecord record : rollup.logs.values()) {
+			days.add(record.date);
+		}
+		rollup.update(days);
+		return rollup;
+	}
+
+	private void read(DataInputStream in) throws IOException {
+		if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+			return;
+		}
+		int[] saved = new int[in.readInt()];
+		for (int z = 0; z < saved.length; z++) {
+			saved[z] = in.readInt();
+		}
+		if (!Arrays.equals(saved, zones)) {
+			// other zones: every log is summed up again
+			return;
+		}
+		int count = in.readInt();
+		for (int l = 0; l < count; l++) {
+			String log = in.readUTF();
+			long length = in.readLong();
+			long lastModified = in.readLong();
+			int date = in.readInt();
+			RollupCell cell = in.readBoolean() ? RollupCell.read(in, zones.length) : null;
+			logs.put(log, new LogRecord(length, lastModified, date, cell));
+		}
+	}
+
+	/**
+	 * Writes the rollups at the root of their directory if they changed
+	 * @throws IOException
+	 */
+	public void save() throws IOException {
+		if (!changed) {
+			return;
+		}
+		File target = new File(dir, FILE_NAME);
+		File temp = new File(target.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 65536));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(zones.length);
+			for (int limit : zones) {
+				out.writeInt(limit);
+			}
+			out.writeInt(logs.size());
+			for (Map.Entry<String, LogRecord> log : logs.entrySet()) {
+				LogRecord record = log.getValue();
+				out.writeUTF(log.getKey());
+				out.writeLong(record.length);
+				out.writeLong(record.lastModified);
+				out.writeInt(record.date);
+				out.writeBoolean(record.cell != null);
+				if (record.cell != null) {
+					record.cell.write(out);
+				}
+			}
+		} finally {
+			out.close();
+		}
+		target.delete();
+		if (!temp.renameTo(target)) {
+			temp.delete();
+			throw new IOException("cannot rename " + temp);
+		}
+		changed = false;
+	}
+
+	/**
+	 * Brings the rollups up to date with the logs of their directory: new logs and logs whose
+	 * size or modification time changed are read, logs that are gone are dropped, and only the
+	 * cells of the days of those logs are built again
+	 * @return how many logs were read
+	 */
+	public int rescan() {
+		int read = 0;
+		Set<Integer> days = new HashSet<Integer>();
+		Set<String> found = new HashSet<String>();
+		for (File logFile : BatchProcessor.listLogs(dir, new ArrayList<File>())) {
+			String log = dir.toURI().relativize(logFile.toURI()).getPath();
+			found.add(log);
+			long length = logFile.length();
+			long lastModified = logFile.lastModified();
+			LogRecord record = logs.get(log);
+			if (record != null && record.length == length && record.lastModified == lastModified) {
+				continue;
+			}
+			if (record != null) {
+				days.add(record.date);
+			}
+			int date = WorkoutCatalog.day(logFile);
+			logs.put(log, new LogRecord(length, lastModified, date, summarize(logFile)));
+			days.add(date);
+			read++;
+		}
+		for (Map.Entry<String, LogRecord> log : logs.entrySet()) {
+			if (!found.contains(log.getKey())) {
+				days.add(log.getValue().date);
+			}
+		}
+		logs.keySet().retainAll(found);
+		if (!days.isEmpty()) {
+			changed = true;
+			update(days);
+		}
+		return read;
+	}
+
+	/**
+	 * @return the summary of the work-outs with valid beats of a log, null if none or if it cannot be read
+	 */
+	private RollupCell summarize(File logFile) {
+		RollupCell cell = null;
+		try {
+			for (Workout w : DataAnalizer.loadLog(logFile)) {
+				if (w.hasValidBeat() && w.getTotalBeats() > 0) {
+					RollupCell workout = new RollupCell(w);
+					cell = cell == null ? workout : cell.merge(workout);
+				}
+			}
+		} catch (IOException e) {
+			// unreadable: read again once the file changes
+		} catch (RuntimeException e) {
+			// a log the parser cannot make sense of
+		}
+		return cell;
+	}
+
+	/**
+	 * Builds again the cells of some days, then the weeks and months holding them from their days
+	 */
+	private void update(Set<Integer> days) {
+		SortedMap<Integer, RollupCell> dayCells = levels.get(RollupLevel.DAY);
+		for (Integer day : days) {
+			dayCells.remove(day);
+		}
+		for (LogRecord record : logs.values()) {
+			if (record.cell != null && days.contains(record.date)) {
+				RollupCell cell = dayCells.get(record.date);
+				if (cell == null) {
+					cell = new RollupCell(zones.length);
+					dayCells.put(record.date, cell);
+				}
+				cell.merge(record.cell);
+			}
+		}
+		for (RollupLevel level : RollupLevel.values()) {
+			if (level == RollupLevel.DAY) {
+				continue;
+			}
+			Set<Integer> keys = new TreeSet<Integer>();
+			for (Integer day : days) {
+				keys.add(level.key(day));
+			}
+			SortedMap<Integer, RollupCell> cells = levels.get(level);
+			for (Integer key : keys) {
+				RollupCell cell = new RollupCell(zones.length);
+				for (RollupCell day : dayCells.subMap(key, level.next(key)).values()) {
+					cell.merge(day);
+				}
+				if (cell.workouts > 0) {
+					cells.put(key, cell);
+				} else {
+					cells.remove(key);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the cells with work-outs of a level by key (see RollupLevel.key), in date order
+	 */
+	public SortedMap<Integer, RollupCell> getCells(RollupLevel level) {
+		return Collections.unmodifiableSortedMap(levels.get(level));
+	}
+
+	/**
+	 * @param date any day of the cell as yyyyMMdd
+	 * @return the cell holding the day, null without work-outs
+	 */
+	public RollupCell getCell(RollupLevel level, int date) {
+		return levels.get(level).get(level.key(date));
+	}
+
+	/**
+	 * @return the upper limits of the heart rate zones of the cells in bpm
+	 */
+	public int[] getZones() {
+		return zones.clone();
+	}
+
+	/**
+	 * @return how many logs are summed up
+	 */
+	public int size() {
+		return logs.size();
+	}
+}
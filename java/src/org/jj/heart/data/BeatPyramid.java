@@ -0,0 +1,145 @@
+package org.jj.heart.data;
+
+/**
+ * Level of detail summary of the beats of a work-out, used to draw any time range quickly<br/>
+ * Level 0 groups BASE consecutive beats per bucket and each level above groups two buckets
+ * of the level below. A bucket keeps the min and max period of its valid beats and the position
+ * of its first valid, last valid and first invalid beat, so a graph only needs about one bucket
+ * per pixel column whatever the length of the work-out.
+ * @author jjones
+ */
+public class BeatPyramid {
+	/** beats per bucket on the lowest level */
+	public static final int BASE = 8;
+
+	private final int[][] min, max, first, last, invalid;
+
+	/**
+	 * Aggregates validated beats
+	 * @param beats beats with their periods and validity set
+	 */
+	public BeatPyramid(BeatStore beats) {
+		int size = beats.size();
+		int levels = 1;
+		for (long bucket = BASE; bucket < size; bucket <<= 1) {
+			levels++;
+		}
+		min = new int[levels][];
+		max = new int[levels][];
+		first = new int[levels][];
+		last = new int[levels][];
+		invalid = new int[levels][];
+
+		// lowest level from the beats
+		int count = (size + BASE - 1) / BASE;
+		allocate(0, count);
+		int[] periodes = beats.getPeriodes();
+		for (int b = 0; b < count; b++) {
+			int lo = Integer.MAX_VALUE, hi = Integer.MIN_VALUE, f = -1, l = -1, bad = -1;
+			for (int i = b * BASE; i < Math.min(size, (b + 1) * BASE); i++) {
+				if (beats.isValid(i)) {
+					lo = Math.min(lo, periodes[i]);
+					hi = Math.max(hi, periodes[i]);
+					if (f < 0) {
+						f = i;
+					}
+					l = i;
+				} else if (bad < 0) {
+					bad = i;
+				}
+			}
+			set(0, b, lo, hi, f, l, bad);
+		}
+
+		// every other level from the one below
+		for (int level = 1; level < levels; level++) {
+			int below = min[level - 1].length;
+			count = (below + 1) / 2;
+			allocate(level, count);
+			for (int b = 0; b < count; b++) {
+				int left = 2 * b, right = 2 * b + 1;
+				if (right >= below) {
+					set(level, b, min[level - 1][left], max[level - 1][left], first[level - 1][left],
+							last[level - 1][left], invalid[level - 1][left]);
+					continue;
+				}
+				set(level, b,
+						Math.min(min[level - 1][left], min[level - 1][right]),
+						Math.max(max[level - 1][left], max[level - 1][right]),
+						first[level - 1][left] >= 0 ? first[level - 1][left] : first[level - 1][right],
+						last[level - 1][right] >= 0 ? last[level - 1][right] : last[level - 1][left],
+						invalid[level - 1][left] >= 0 ? invalid[level - 1][left] : invalid[level - 1][right]);
+			}
+		}
+	}
+
+	private void allocate(int level, int count) {
+		min[level] = new int[count];
+		max[level] = new int[count];
+		first[level] = new int[count];
+		last[level] = new int[count];
+		invalid[level] = new int[count];
+	}
+
+	private void set(int level, int b, int lo, int hi, int f, int l, int bad) {
+		min[level][b] = lo;
+		max[level][b] = hi;
+		first[level][b] = f;
+		last[level][b] = l;
+		invalid[level][b] = bad;
+	}
+
+	public int getLevels() {
+		return min.length;
+	}
+
+	/**
+	 * @return how many beats a bucket of the level covers
+	 */
+	public int getBucketSize(int level) {
+		return BASE << level;
+	}
+
+	public int getBuckets(int level) {
+		return min[level].length;
+	}
+
+	/**
+	 * Finds the coarsest level that still has about one bucket per pixel
+	 * @param beatCount how many beats are shown
+	 * @param pixels how many pixel columns they are shown on
+	 * @return the level to draw from or -1 when the beats themselves should be drawn
+	 */
+	public int chooseLevel(int beatCount, int pixels) {
+		int level = -1;
+		while (level + 1 < getLevels() && beatCount / getBucketSize(level + 1) >= pixels) {
+			level++;
+		}
+		return level;
+	}
+
+	/** @return smallest valid period of the bucket or Integer.MAX_VALUE */
+	public int getMin(int level, int bucket) {
+		return min[level][bucket];
+	}
+
+	/** @return largest valid period of the bucket or Integer.MIN_VALUE */
+	public int getMax(int level, int bucket) {
+		return max[level][bucket];
+	}
+
+	/** @return position of the first valid beat of the bucket or -1 */
+	public int getFirst(int level, int bucket) {
+		return first[level][bucket];
+	}
+
+	/** @return position of the last valid beat of the bucket or -1 */
+	public int getLast(int level, int bucket) {
+		return last[level][bucket];
+	}
+
+	/** @return position of the first invalid beat of the bucket or -1 */
+	public int getInvalid(int level, int bucket) {
+		return invalid[level][bucket];
+	}
+}
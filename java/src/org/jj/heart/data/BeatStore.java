@@ -0,0 +1,248 @@
+package org.jj.heart.data;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Column oriented storage for the heart beats of a work-out<br/>
+ * Times, periods and validity are kept in growable primitive arrays (and a bit set)
+ * instead of one Beat object per reading, which costs about a third of the memory.
+ * @author jjones
+ */
+public class BeatStore {
+	private static final int DEFAULT_CAPACITY = 16;
+
+	/** time since the Arduino booted, per beat */
+	private long[] times;
+	/** beat interval from previous beat, per beat */
+	private int[] periodes;
+	/** validity flags, one bit per beat */
+	private long[] valid;
+	private int size;
+
+	public BeatStore() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public BeatStore(int capacity) {
+		capacity = Math.max(capacity, 1);
+		times = new long[capacity];
+		periodes = new int[capacity];
+		valid = new long[words(capacity)];
+	}
+
+	/**
+	 * Store over columns filled elsewhere (see WorkoutFile)
+	 */
+	BeatStore(long[] times, int[] periodes, long[] valid, int size) {
+		this.times = times;
+		this.periodes = periodes;
+		this.valid = valid;
+		this.size = size;
+	}
+
+	static int words(int bits) {
+		return (bits + 63) >>> 6;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public long getTime(int i) {
+		check(i);
+		return times[i];
+	}
+
+	public int getPeriode(int i) {
+		check(i);
+		return periodes[i];
+	}
+
+	public boolean isValid(int i) {
+		check(i);
+		return (valid[i >>> 6] & (1L << i)) != 0;
+	}
+
+	/**
+	 * @return how many beats are flagged valid
+	 */
+	public int countValid() {
+		int count = 0;
+		for (int w = 0; w < size >>> 6; w++) {
+			count += Long.bitCount(valid[w]);
+		}
+		if ((size & 63) != 0) {
+			count += Long.bitCount(valid[size >>> 6] & ((1L << size) - 1));
+		}
+		return count;
+	}
+
+	/**
+	 * Binary search of the beat times, which grow along the work-out
+	 * @param time the time since the Arduino booted
+	 * @return position of the first beat at or after the time (size() if none)
+	 */
+	public int search(long time) {
+		int lo = 0, hi = size;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (times[mid] < time) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * Backing array of the beat times, only the first size() elements are meaningful
+	 */
+	public long[] getTimes() {
+		return times;
+	}
+
+	/**
+	 * Backing array of the beat periods, only the first size() elements are meaningful
+	 */
+	public int[] getPeriodes() {
+		return periodes;
+	}
+
+	/**
+	 * Backing words of the validity bit set (bit i of word i/64 is beat i)
+	 */
+	public long[] getValidWords() {
+		return valid;
+	}
+
+	/**
+	 * Appends a beat read from the log
+	 * @param time the time since the Arduino booted
+	 */
+	public void add(long time) {
+		ensureCapacity(size + 1);
+		times[size] = time;
+		periodes[size] = 0;
+		valid[size >>> 6] &= ~(1L << size);
+		size++;
+	}
+
+	/**
+	 * Appends all beats of another store, shifting their time
+	 * @param other the beats to copy
+	 * @param offset the time added to each copied beat
+	 */
+	public void addAll(BeatStore other, long offset) {
+		int count = other.size;
+		ensureCapacity(size + count);
+		System.arraycopy(other.periodes, 0, periodes, size, count);
+		for (int i = 0; i < count; i++) {
+			times[size + i] = other.times[i] + offset;
+		}
+		copyBits(other.valid, count, valid, size);
+		size += count;
+	}
+
+	/**
+	 * Copies the first bits of a bit set into another one a word at a time
+	 * @param from the bits to copy
+	 * @param count how many
+	 * @param to the bits to change
+	 * @param at position of the first bit changed
+	 */
+	static void copyBits(long[] from, int count, long[] to, int at) {
+		for (int i = 0; i < count;) {
+			int bit = (at + i) & 63;
+			int n = Math.min(64 - bit, count - i);
+			// n bits of the source starting at i
+			int word = i >>> 6, shift = i & 63;
+			long bits = from[word] >>> shift;
+			if (shift != 0 && shift + n > 64) {
+				bits |= from[word + 1] << (64 - shift);
+			}
+			long mask = (n == 64 ? -1L : (1L << n) - 1) << bit;
+			to[(at + i) >>> 6] = (to[(at + i) >>> 6] & ~mask) | ((bits << bit) & mask);
+			i += n;
+		}
+	}
+
+	void setPeriode(int i, int periode) {
+		periodes[i] = periode;
+	}
+
+	void setValid(int i, boolean flag) {
+		if (flag) {
+			valid[i >>> 6] |= 1L << i;
+		} else {
+			valid[i >>> 6] &= ~(1L << i);
+		}
+	}
+
+	/**
+	 * Shifts the time of every beat
+	 * @param offset time to add in ms
+	 */
+	void shift(long offset) {
+		for (int i = 0; i < size; i++) {
+			times[i] += offset;
+		}
+	}
+
+	public void ensureCapacity(int capacity) {
+		if (capacity > times.length) {
+			int grown = Math.max(capacity, times.length + (times.length >> 1) + 1);
+			times = Arrays.copyOf(times, grown);
+			periodes = Arrays.copyOf(periodes, grown);
+			valid = Arrays.copyOf(valid, words(grown));
+		}
+	}
+
+	/**
+	 * Releases the spare capacity left by growing while parsing
+	 */
+	public void trimToSize() {
+		if (size < times.length) {
+			times = Arrays.copyOf(times, Math.max(size, 1));
+			periodes = Arrays.copyOf(periodes, Math.max(size, 1));
+			valid = Arrays.copyOf(valid, words(Math.max(size, 1)));
+		}
+	}
+
+	private void check(int i) {
+		if (i < 0 || i >= size) {
+			throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+		}
+	}
+
+	/**
+	 * A read only view of the beats for code written against Beat objects;
+	 * every get creates a snapshot so prefer the column accessors in loops
+	 * @return list view backed by this store
+	 */
+	public List<Beat> asList() {
+		return new BeatList();
+	}
+
+	private class BeatList extends AbstractList<Beat> implements RandomAccess {
+		@Override
+		public Beat get(int index) {
+			Beat beat = new Beat(getTime(index));
+			beat.periode = periodes[index];
+			beat.valid = isValid(index);
+			return beat;
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+	}
+}
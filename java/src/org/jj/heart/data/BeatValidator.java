@@ -0,0 +1,149 @@
+package org.jj.heart.data;
+
+/**
+ * Sliding window check that a sample of periods is a believable heart rate<br/>
+ * A sample is valid when its average and every period are human rates and no period
+ * strays more than the tolerance from the average (see Workout.validateSample).
+ * The window keeps a running sum and monotonic min/max queues, so each pushed period
+ * costs a constant amount of work whatever the sample size, and nothing is allocated
+ * after construction.
+ * @author jjones
+ */
+public class BeatValidator {
+	/** default allowed distance from the sample average: 20% */
+	public static final double DEFAULT_TOLERANCE = 0.2;
+
+	private final int sampleSize;
+	private final double tolerance;
+	private final double low, high;
+
+	/** the last sampleSize periods, indexed by count % sampleSize */
+	private final int[] window;
+	private long sum;
+	private long count;
+	// monotonic queues of sequence numbers: increasing values for min, decreasing for max
+	private final long[] minSeq, maxSeq;
+	private final int[] minVal, maxVal;
+	private int minHead, minSize, maxHead, maxSize;
+
+	/**
+	 * Validator with the historical settings (7 samples, 20%)
+	 */
+	public BeatValidator() {
+		this(Workout.sampleSize, DEFAULT_TOLERANCE);
+	}
+
+	/**
+	 * @param sampleSize how many samples are needed to establish a valid heart rate
+	 * @param tolerance the allowed relative distance of each period from the sample average
+	 */
+	public BeatValidator(int sampleSize, double tolerance) {
+		if (sampleSize < 1) {
+			throw new IllegalArgumentException("sample size must be positive: " + sampleSize);
+		}
+		this.sampleSize = sampleSize;
+		this.tolerance = tolerance;
+		this.low = 1 - tolerance;
+		this.high = 1 + tolerance;
+		window = new int[sampleSize];
+		minSeq = new long[sampleSize];
+		maxSeq = new long[sampleSize];
+		minVal = new int[sampleSize];
+		maxVal = new int[sampleSize];
+	}
+
+	public int getSampleSize() {
+		return sampleSize;
+	}
+
+	public double getTolerance() {
+		return tolerance;
+	}
+
+	/**
+	 * @return a validator with the same settings and an empty window, for another thread
+	 */
+	public BeatValidator copy() {
+		return new BeatValidator(sampleSize, tolerance);
+	}
+
+	/**
+	 * Forgets every period pushed so far
+	 */
+	public void reset() {
+		sum = count = 0;
+		minHead = minSize = maxHead = maxSize = 0;
+	}
+
+	/**
+	 * Adds the next period to the window
+	 * @param periode the interval since the previous beat
+	 * @return true if the last sampleSize periods (this one included) form a valid sample
+	 */
+	public boolean push(int periode) {
+		int slot = (int) (count % sampleSize);
+		if (count >= sampleSize) {
+			sum -= window[slot];
+		}
+		window[slot] = periode;
+		sum += periode;
+
+		// drop the value leaving the window, then those that can no longer be the min/max
+		if (minSize > 0 && minSeq[minHead] <= count - sampleSize) {
+			minHead = (minHead + 1) % sampleSize;
+			minSize--;
+		}
+		while (minSize > 0 && minVal[(minHead + minSize - 1) % sampleSize] >= periode) {
+			minSize--;
+		}
+		minSeq[(minHead + minSize) % sampleSize] = count;
+		minVal[(minHead + minSize++) % sampleSize] = periode;
+		if (maxSize > 0 && maxSeq[maxHead] <= count - sampleSize) {
+			maxHead = (maxHead + 1) % sampleSize;
+			maxSize--;
+		}
+		while (maxSize > 0 && maxVal[(maxHead + maxSize - 1) % sampleSize] <= periode) {
+			maxSize--;
+		}
+		maxSeq[(maxHead + maxSize) % sampleSize] = count;
+		maxVal[(maxHead + maxSize++) % sampleSize] = periode;
+		count++;
+
+		if (count < sampleSize) {
+			return false;
+		}
+		// same arithmetic as validateSample: the sum is truncated to int before dividing
+		int average = (int) sum / sampleSize;
+		int min = minVal[minHead];
+		int max = maxVal[maxHead];
+		return Workout.isHumanRate(average) && Workout.isHumanRate(min) && Workout.isHumanRate(max)
+				&& !(average * low > min) && !(max > average * high);
+	}
+
+	/**
+	 * Sets the validity of every beat: a beat is valid when the sample ending on it
+	 * or the sample starting on it is valid. The first beat is never valid since its
+	 * period is only the time since boot.
+	 * @param beats beats with their periods already calculated
+	 */
+	public void markValid(BeatStore beats) {
+		int size = beats.size();
+		int[] periodes = beats.getPeriodes();
+		long[] valid = beats.getValidWords();
+		for (int w = 0; w < (size + 63) >>> 6; w++) {
+			valid[w] = 0;
+		}
+		reset();
+		for (int i = 0; i < size; i++) {
+			if (push(periodes[i])) {
+				int first = i + 1 - sampleSize;
+				if (first >= 1) {
+					valid[first >>> 6] |= 1L << first;
+				}
+				if (i >= 1) {
+					valid[i >>> 6] |= 1L << i;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,125 @@
+package org.jj.heart.data;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The binary log written by the firmware built with BINARY_LOG (hardware/firmware/monitor.pde),
+ * in place of the "ms" text lines: 16 bit little endian words<br/>
+ * <pre>
+ * FF FF hh mm ss 01    boot record, the "----H:m:s" header of the text log (the last byte is the version)
+ * FE FF t0 t1 t2 t3    a beat at millis() t (32 bits), when it is too far from the previous one
+ * p0 p1                a beat p ms after the previous one (after the boot for the first beat), p < FFFE
+ * </pre>
+ * 2 bytes per beat instead of 6 to 10 for the text lines. The log keeps its name (yyyyMMdd.LOG):
+ * LogParser recognizes a binary log by its first byte FF, which a text log never holds, so a log
+ * may even go on in binary after text segments (a text firmware replaced the same day).
+ * This class writes the same records, to convert text logs and to simulate the firmware.
+ * @author jjones
+ */
+public class BinaryLog {
+	/** first byte of the boot record, never found in a text log */
+	public static final int TAG = 0xFF;
+	public static final int BOOT = 0xFFFF;
+	public static final int GAP = 0xFFFE;
+	public static final int VERSION = 1;
+
+	private final OutputStream out;
+	private long previous;
+
+	/**
+	 * @param out receives the records, left open
+	 */
+	public BinaryLog(OutputStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * Starts a segment, like a boot of the monitor
+	 */
+	public void boot(int hour, int minute, int second) throws IOException {
+		out.write(TAG);
+		out.write(TAG);
+		out.write(hour);
+		out.write(minute);
+		out.write(second);
+		out.write(VERSION);
+		previous = 0;
+	}
+
+	/**
+	 * Starts a segment from the header of a text log, "H:m:s" (0:0:0 when it is not one)
+	 */
+	public void boot(String timeStamp) throws IOException {
+		int[] clock = new int[3];
+		String[] parts = timeStamp.trim().split(":");
+		if (parts.length == 3) {
+			try {
+				for (int i = 0; i < 3; i++) {
+					clock[i] = Integer.parseInt(parts[i]);
+				}
+			} catch (NumberFormatException e) {
+				clock = new int[3];
+			}
+		}
+		boot(clock[0] & 0xFF, clock[1] & 0xFF, clock[2] & 0xFF);
+	}
+
+	/**
+	 * @param time millis() of the beat, from 0 to 2^32 - 1
+	 */
+	public void beat(long time) throws IOException {
+		if (time < 0 || time > 0xFFFFFFFFL) {
+			throw new IOException("beat time out of range: " + time);
+		}
+		long periode = time - previous;
+		if (periode >= 0 && periode < GAP) {
+			out.write((int) periode);
+			out.write((int) (periode >> 8));
+		} else {
+			out.write(GAP & 0xFF);
+			out.write(GAP >> 8);
+			for (int shift = 0; shift < 32; shift += 8) {
+				out.write((int) (time >> shift));
+			}
+		}
+		previous = time;
+	}
+
+	/**
+	 * Writes a log, text or binary, in binary
+	 * @param log the log file
+	 * @param target the binary log written
+	 * @return how many beats were written
+	 */
+	public static long convert(File log, File target) throws IOException {
+		long beats = 0;
+		InputStream in = new FileInputStream(log);
+		try {
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(target), 65536);
+			try {
+				BinaryLog binary = new BinaryLog(out);
+				LogParser parser = new LogParser(in);
+				Workout segment;
+				while (null != (segment = parser.next())) {
+					binary.boot(segment.getTimeStamp());
+					BeatStore times = segment.getBeatStore();
+					for (int i = 0; i < times.size(); i++) {
+						binary.beat(times.getTime(i));
+					}
+					beats += times.size();
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+		return beats;
+	}
+}
@@ -0,0 +1,110 @@
+package org.jj.heart.data;
+
+/**
+ * Validates a work-out one beat at a time as the beats arrive (live data)<br/>
+ * Gives the same flags and statistics as Workout.validate (once finished, for work-outs with
+ * valid beats) without revisiting history:
+ * a beat is settled once the sample starting on it is complete (sampleSize - 1 beats later),
+ * then it updates the first/last valid positions, the estimated total of beats and min/max.
+ * @author jjones
+ */
+public class IncrementalValidator {
+	private final Workout workout;
+	private final BeatValidator validator;
+	/** beats before this position are settled */
+	private int settled;
+	/** first invalid beat of the current run of invalid beats or -1 */
+	private int runStart = -1;
+	private boolean foundValid;
+
+	/**
+	 * @param workout an empty work-out that will receive the beats
+	 */
+	public IncrementalValidator(Workout workout) {
+		this(workout, new BeatValidator());
+	}
+
+	public IncrementalValidator(Workout workout, BeatValidator validator) {
+		this.workout = workout;
+		this.validator = validator;
+		validator.reset();
+		workout.pyramid = null;
+		workout.statistics = null;
+	}
+
+	public Workout getWorkout() {
+		return workout;
+	}
+
+	/**
+	 * Appends and validates the next beat
+	 * @param time the time since the Arduino booted
+	 */
+	public void add(long time) {
+		BeatStore beats = workout.beats;
+		int i = beats.size();
+		beats.add(time);
+		int periode = (int) (i == 0 ? time : time - beats.getTimes()[i - 1]);
+		beats.setPeriode(i, periode);
+		if (validator.push(periode)) {
+			int first = i + 1 - validator.getSampleSize();
+			if (first >= 1) {
+				beats.setValid(first, true);
+			}
+			if (i >= 1) {
+				beats.setValid(i, true);
+			}
+		}
+		// no later sample can change the beat the last complete sample started on
+		while (settled <= i + 1 - validator.getSampleSize()) {
+			settle(settled++);
+		}
+	}
+
+	/**
+	 * Settles the beats still waiting for a complete sample (no more beats will come)
+	 */
+	public void finish() {
+		while (settled < workout.beats.size()) {
+			settle(settled++);
+		}
+	}
+
+	/**
+	 * Same steps as the second half of Workout.validate, one beat at a time
+	 */
+	private void settle(int i) {
+		BeatStore beats = workout.beats;
+		long[] times = beats.getTimes();
+		int[] periodes = beats.getPeriodes();
+		boolean valid = beats.isValid(i);
+		if (!foundValid) {
+			if (!valid) {
+				workout.firstValid = i;
+				return;
+			}
+			foundValid = true;
+			int start = Math.max(workout.firstValid, 1);
+			workout.min = workout.max = periodes[Math.max(workout.firstValid, 0)];
+			if (start < i) {
+				// validate counts the invalid beat preceding the first valid one as a run
+				runStart = start;
+			}
+		}
+		if (valid) {
+			if (runStart >= 0) {
+				// add the missed beats to a running total
+				workout.totalBeats += Math.round(2 * (times[i] - times[runStart - 1])
+						/ (periodes[runStart - 1] + periodes[i]));
+				runStart = -1;
+			} else {
+				workout.totalBeats++;
+			}
+			workout.lastValid = i;
+			workout.max = Math.max(workout.max, periodes[i]);
+			workout.min = Math.min(workout.min, periodes[i]);
+		} else if (runStart < 0) {
+			runStart = i;
+		}
+	}
+}
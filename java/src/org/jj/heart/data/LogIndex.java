@@ -0,0 +1,235 @@
+package org.jj.heart.data;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jj.heart.metrics.PipelineMetrics;
+import org.jj.heart.metrics.Stage;
+
+/**
+ * The work-outs of a log without their beats: where each segment (a "----" chunk) of the log
+ * starts and ends, and which segments DataAnalizer.parseLog merges into each work-out<br/>
+ * Building the index only skims the log; a work-out is parsed, merged and validated
+ * when it is asked for, reading only its own segments.
+ * @author jjones
+ */
+public class LogIndex {
+	/** segments further apart than this are separate work-outs (see DataAnalizer.parseLog) */
+	static final long MERGE_GAP = 600000;
+
+	/**
+	 * One chunk of the log
+	 */
+	static class Segment {
+		final long start, end;
+		final String timeStamp;
+		final long begin;
+		final int beats;
+		final long lastTime;
+
+		Segment(long start, long end, String timeStamp, long begin, int beats, long lastTime) {
+			this.start = start;
+			this.end = end;
+			this.timeStamp = timeStamp;
+			this.begin = begin;
+			this.beats = beats;
+			this.lastTime = lastTime;
+		}
+	}
+
+	/**
+	 * A work-out: its first segment and the segments merged into it, in log order
+	 */
+	static class Group {
+		final List<Segment> segments = new ArrayList<Segment>();
+		final long begin;
+		/** beats and time of the last beat of the work-out once merged */
+		int beats;
+		long lastTime;
+
+		Group(Segment first) {
+			segments.add(first);
+			begin = first.begin;
+			beats = first.beats;
+			lastTime = first.lastTime;
+		}
+
+		/**
+		 * Follows what Workout.merge does to the first segment
+		 */
+		void merge(Segment segment) {
+			segments.add(segment);
+			if (segment.begin < begin) {
+				// the earlier segment receives the beats and this work-out is only shifted
+				if (segment.beats > 0 && beats > 0) {
+					lastTime += begin - segment.begin;
+				}
+				return;
+			}
+			if (beats == 0) {
+				return;
+			}
+			long timeGap = segment.begin - begin;
+			if (timeGap == 0) {
+				timeGap = lastTime;
+			}
+			if (segment.beats > 0) {
+				beats += segment.beats;
+				lastTime = segment.lastTime + timeGap;
+			}
+		}
+	}
+
+	private final File log;
+	private final List<Group> groups = new ArrayList<Group>();
+
+	private LogIndex(File log) {
+		this.log = log;
+	}
+
+	/**
+	 * Skims a log for its work-outs
+	 * @param log the log file handler
+	 * @return the index of the log
+	 * @throws IOException
+	 */
+	public static LogIndex build(File log) throws IOException {
+		InputStream in = new FileInputStream(log);
+		try {
+			return build(log, in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Skims a log read through a stream, to follow or interrupt the reading
+	 * @param log the log file handler, used to load the work-outs later
+	 * @param in the contents of the log, left open
+	 * @return the index of the log
+	 * @throws IOException
+	 */
+	public static LogIndex build(File log, InputStream in) throws IOException {
+		PipelineMetrics.Timer timer = PipelineMetrics.start(Stage.PARSE);
+		PipelineMetrics.countBytesRead(log.length());
+		LogIndex index = new LogIndex(log);
+		LogParser parser = new LogParser(in, 65536);
+		parser.setSkim(true);
+		Workout workout;
+		Group group = null;
+		while (null != (workout = parser.next())) {
+			Segment segment = new Segment(parser.getStart(), parser.getEnd(), workout.getTimeStamp(),
+					workout.getBegin().getTime(), parser.getBeatCount(), parser.getLastTime());
+			// same test as DataAnalizer.parseLog
+			if (group == null || (segment.begin != group.begin
+					&& segment.begin - group.begin - lastTime(group) > MERGE_GAP)) {
+				group = new Group(segment);
+				index.groups.add(group);
+			} else {
+				group.merge(segment);
+			}
+		}
+		timer.stop();
+		return index;
+	}
+
+	/**
+	 * @return the time of the last beat of a work-out, failing on an empty one like parseLog
+	 */
+	private static long lastTime(Group group) {
+		if (group.beats == 0) {
+			throw new IndexOutOfBoundsException("work-out " + group.segments.get(0).timeStamp + " has no beat");
+		}
+		return group.lastTime;
+	}
+
+	public File getLog() {
+		return log;
+	}
+
+	/**
+	 * @return how many work-outs the log holds
+	 */
+	public int size() {
+		return groups.size();
+	}
+
+	/**
+	 * @return the header of a work-out ("H:m:s" of its first segment)
+	 */
+	public String getTimeStamp(int i) {
+		return groups.get(i).segments.get(0).timeStamp;
+	}
+
+	/**
+	 * @return the beats of a work-out, before validation
+	 */
+	public int getBeatCount(int i) {
+		return groups.get(i).beats;
+	}
+
+	/**
+	 * Parses, merges and validates one work-out, reading only its segments
+	 * @param i position of the work-out in the log
+	 * @return the same work-out as the i-th one of DataAnalizer.parseLog
+	 * @throws IOException
+	 */
+	public Workout load(int i) throws IOException {
+		Group group = groups.get(i);
+		RandomAccessFile file = new RandomAccessFile(log, "r");
+		try {
+			SessionMerger session = null;
+			for (Segment segment : group.segments) {
+				PipelineMetrics.Timer timer = PipelineMetrics.start(Stage.PARSE);
+				Workout parsed = parse(file.getChannel(), segment);
+				timer.stop(parsed.beats.size());
+				PipelineMetrics.countBytesRead(segment.end - segment.start);
+				PipelineMetrics.countBeatsParsed(parsed.beats.size());
+				if (session == null) {
+					session = new SessionMerger(parsed);
+				} else {
+					session.add(parsed);
+				}
+			}
+			Workout workout = session.merge();
+			workout.beats.trimToSize();
+			workout.validate();
+			return workout;
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Parses the bytes of a segment alone, which gives the same work-out as in the whole log
+	 */
+	private static Workout parse(FileChannel channel, final Segment segment) throws IOException {
+		channel.position(segment.start);
+		InputStream in = new FilterInputStream(Channels.newInputStream(channel)) {
+			private long left = segment.end - segment.start;
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (left <= 0) {
+					return -1;
+				}
+				int read = super.read(b, off, (int) Math.min(len, left));
+				if (read > 0) {
+					left -= read;
+				}
+				return read;
+			}
+		};
+		LogParser parser = new LogParser(in, 65536);
+		Workout workout = parser.next();
+		return workout != null ? workout : new Workout();
+	}
+}
@@ -0,0 +1,337 @@
+package org.jj.heart.data;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+/**
+ * Streaming reader for arduino log files<br/>
+ * Reads the log bytes once through a fixed buffer and hands back one work-out per "----" header,
+ * parsing the beat lines straight from the bytes (no String per line).
+ * Binary logs (see BinaryLog) are recognized by their boot record and decoded the same way,
+ * one work-out per boot record.
+ * Work-outs are returned raw: they still need to be merged and validated.
+ * @author jjones
+ */
+public class LogParser {
+	/** the delimiter written on every arduino boot is four dashes */
+	static final int DELIMITER_LENGTH = 4;
+
+	private final InputStream in;
+	private final byte[] buffer;
+	private int pos, limit;
+	private long bytesRead;
+	private boolean eof;
+	/** only count the beats (see LogIndex) */
+	private boolean skim;
+	private int skimmed;
+	private long lastBeat;
+	/** byte range, beats and last beat of the chunk of the work-out returned last */
+	private long start, end;
+	private int beatCount;
+	private long lastTime;
+	private long chunkStart;
+
+	/** dashes read but not yet known to be part of a delimiter */
+	private int dashes;
+	/** work-out completed by the last delimiter, waiting to be returned */
+	private Workout ready;
+
+	// current work-out/chunk
+	private Workout current;
+	private boolean chunkEmpty = true;
+	private boolean header = true;
+	private boolean broken;
+	private boolean skipLF;
+	private final StringBuilder timeStamp = new StringBuilder();
+	/** reading binary records, from the first boot record on */
+	private boolean binary;
+	/** time of the previous beat of a binary log */
+	private long previous;
+
+	// current line
+	private int lineChars;
+	private int digits;
+	private long value;
+	private boolean negative;
+	private boolean bad;
+
+	public LogParser(InputStream in) {
+		this(in, 8192);
+	}
+
+	public LogParser(InputStream in, int bufferSize) {
+		this.in = in;
+		this.buffer = new byte[bufferSize];
+	}
+
+	/**
+	 * Reads up to the end of the next work-out
+	 * @return the next work-out found in the stream or null when the stream is exhausted
+	 * @throws IOException
+	 */
+	public Workout next() throws IOException {
+		while (ready == null && !eof) {
+			if (binary) {
+				record();
+				continue;
+			}
+			if (pos == limit && !fill()) {
+				// a trailing dash run is only text
+				flushDashes();
+				endChunk(bytesRead);
+				eof = true;
+				break;
+			}
+			int c = buffer[pos++] & 0xff;
+			if (c == BinaryLog.TAG && lineChars == 0 && dashes == 0) {
+				// a boot record: the log is binary from here
+				pos--;
+				endChunk(bytesRead - limit + pos);
+				binary = true;
+				continue;
+			}
+			if (c == '-') {
+				if (++dashes == DELIMITER_LENGTH) {
+					dashes = 0;
+					long next = bytesRead - limit + pos;
+					endChunk(next - DELIMITER_LENGTH);
+					chunkStart = next;
+				}
+				continue;
+			}
+			flushDashes();
+			feed(c);
+		}
+		Workout workout = ready;
+		ready = null;
+		return workout;
+	}
+
+	/**
+	 * Only counts the beats of the work-outs instead of keeping them
+	 * @param skim true to return work-outs without beats (see getBeatCount and getLastTime)
+	 */
+	void setSkim(boolean skim) {
+		this.skim = skim;
+	}
+
+	/**
+	 * @return offset of the first byte after the delimiter of the work-out returned last
+	 */
+	public long getStart() {
+		return start;
+	}
+
+	/**
+	 * @return offset of the next delimiter or of the end of the stream
+	 */
+	public long getEnd() {
+		return end;
+	}
+
+	/**
+	 * @return beats of the work-out returned last, counted even when skimming
+	 */
+	public int getBeatCount() {
+		return beatCount;
+	}
+
+	/**
+	 * @return time of the last beat of the work-out returned last
+	 */
+	public long getLastTime() {
+		return lastTime;
+	}
+
+	/**
+	 * @return how many bytes have been consumed from the stream so far
+	 */
+	public long getBytesRead() {
+		return bytesRead;
+	}
+
+	private boolean fill() throws IOException {
+		int read;
+		do {
+			read = in.read(buffer, 0, buffer.length);
+		} while (read == 0);
+		if (read < 0) {
+			return false;
+		}
+		pos = 0;
+		limit = read;
+		bytesRead += read;
+		return true;
+	}
+
+	/**
+	 * @return the next byte, -1 at the end of the stream
+	 */
+	private int read() throws IOException {
+		if (pos == limit && !fill()) {
+			return -1;
+		}
+		return buffer[pos++] & 0xff;
+	}
+
+	/**
+	 * Decodes one record of a binary log; a record cut short by the end of the stream is dropped
+	 */
+	private void record() throws IOException {
+		long at = bytesRead - limit + pos;
+		int low = read(), high = read();
+		if (high < 0) {
+			endStream();
+			return;
+		}
+		int word = low | high << 8;
+		if (word == BinaryLog.BOOT) {
+			int hour = read(), minute = read(), second = read(), version = read();
+			endChunk(at);
+			if (version < 0) {
+				endStream();
+				return;
+			}
+			chunkStart = at;
+			startBinary(hour + ":" + minute + ":" + second);
+			// a later version may not be read as this one
+			broken = version != BinaryLog.VERSION;
+			return;
+		}
+		if (current == null) {
+			// beats before any boot record
+			chunkStart = at;
+			startBinary("0:0:0");
+		}
+		long time;
+		if (word == BinaryLog.GAP) {
+			time = 0;
+			for (int shift = 0; shift < 32; shift += 8) {
+				int b = read();
+				if (b < 0) {
+					endStream();
+					return;
+				}
+				time |= (long) b << shift;
+			}
+		} else {
+			time = previous + word;
+		}
+		previous = time;
+		if (!broken) {
+			if (skim) {
+				skimmed++;
+				lastBeat = time;
+			} else {
+				current.beats.add(time);
+			}
+		}
+	}
+
+	/**
+	 * Starts the work-out of a boot record
+	 */
+	private void startBinary(String clock) {
+		current = new Workout();
+		current.setHeader(clock);
+		chunkEmpty = header = false;
+		previous = 0;
+	}
+
+	private void endStream() {
+		endChunk(bytesRead);
+		eof = true;
+	}
+
+	private void flushDashes() {
+		while (dashes > 0) {
+			dashes--;
+			feed('-');
+		}
+	}
+
+	/**
+	 * Handles one character of a chunk the way BufferedReader.readLine and Long.parseLong would
+	 */
+	private void feed(int c) {
+		chunkEmpty = false;
+		if (skipLF) {
+			skipLF = false;
+			if (c == '\n') {
+				return;
+			}
+		}
+		if (c == '\n' || c == '\r') {
+			skipLF = c == '\r';
+			endLine();
+			return;
+		}
+		lineChars++;
+		if (header) {
+			timeStamp.append((char) c);
+		} else if (!broken && !bad) {
+			if (lineChars == 1 && (c == '-' || c == '+')) {
+				negative = c == '-';
+			} else if ('0' <= c && c <= '9') {
+				// accumulate negatively like Long.parseLong so MIN_VALUE fits
+				int digit = c - '0';
+				long min = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+				if (value < min / 10 || value * 10 < min + digit) {
+					bad = true;
+				} else {
+					value = value * 10 - digit;
+					digits++;
+				}
+			} else {
+				bad = true;
+			}
+		}
+	}
+
+	private void endLine() {
+		if (header) {
+			current = new Workout();
+			current.setHeader(timeStamp.toString());
+			timeStamp.setLength(0);
+			header = false;
+		} else if (!broken) {
+			if (bad || digits == 0) {
+				// the rest of the work-out is ignored after an unreadable line
+				broken = true;
+			} else if (skim) {
+				skimmed++;
+				lastBeat = negative ? value : -value;
+			} else {
+				current.beats.add(negative ? value : -value);
+			}
+		}
+		lineChars = digits = 0;
+		value = 0;
+		negative = bad = false;
+	}
+
+	private void endChunk(long chunkEnd) {
+		if (!chunkEmpty) {
+			if (lineChars > 0 || header) {
+				endLine();
+			}
+			ready = current;
+			start = chunkStart;
+			end = chunkEnd;
+			if (skim) {
+				beatCount = skimmed;
+				lastTime = lastBeat;
+			} else {
+				BeatStore beats = current.beats;
+				beatCount = beats.size();
+				lastTime = beatCount > 0 ? beats.getTime(beatCount - 1) : 0;
+			}
+		}
+		skimmed = 0;
+		lastBeat = 0;
+		current = null;
+		chunkEmpty = header = true;
+		broken = skipLF = false;
+	}
+}
@@ -0,0 +1,240 @@
+package org.jj.heart.data;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Validates a long work-out with a fork/join pool, giving exactly what Workout.validate gives<br/>
+ * The beats are cut in chunks of a multiple of 64 beats so each chunk owns its words of
+ * the validity bit set. A chunk calculates its periods and runs its own validator from
+ * sampleSize - 1 beats before its start to sampleSize - 1 beats after its end, which is all
+ * a beat needs to know whether the sample ending on it or the sample starting on it is valid.
+ * Once every bit is set, a second pass sums up each chunk (valid beats, missed beats, min and
+ * max) and the chunks are stitched in order.
+ * @author jjones
+ */
+public class ParallelValidator {
+	/** beats per chunk */
+	public static final int CHUNK = 1 << 16;
+	/** work-outs with fewer beats are not worth splitting */
+	public static final int THRESHOLD = 4 * CHUNK;
+
+	private static ForkJoinPool shared;
+
+	/**
+	 * What a chunk adds to the work-out statistics
+	 */
+	static class Summary {
+		/** first and last valid beat of the chunk, -1 if none */
+		int first = -1, last = -1;
+		int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+		long totalBeats;
+	}
+
+	/**
+	 * One validation: the beats and the chunks they are cut in
+	 */
+	class Job {
+		final BeatStore beats;
+		final long[] times;
+		final int[] periodes;
+		final long[] valid;
+		final int size, chunks;
+		final BeatValidator validator;
+		final Summary[] summaries;
+
+		Job(BeatStore beats, BeatValidator validator) {
+			this.beats = beats;
+			this.validator = validator;
+			times = beats.getTimes();
+			periodes = beats.getPeriodes();
+			valid = beats.getValidWords();
+			size = beats.size();
+			chunks = (size + chunk - 1) / chunk;
+			summaries = new Summary[chunks];
+		}
+
+		/**
+		 * Periods and validity bits of a chunk
+		 */
+		void mark(int c) {
+			int start = c * chunk, end = Math.min(size, start + chunk);
+			for (int i = start; i < end; i++) {
+				periodes[i] = periode(times, i);
+			}
+			for (int word = start >>> 6; word < (end + 63) >>> 6; word++) {
+				valid[word] = 0;
+			}
+			int reach = validator.getSampleSize() - 1;
+			int low = Math.max(start, 1);
+			BeatValidator own = validator.copy();
+			for (int i = Math.max(0, start - reach); i < Math.min(size, end + reach); i++) {
+				if (own.push(periode(times, i))) {
+					// same bits as BeatValidator.markValid, only those of this chunk
+					int first = i - reach;
+					if (first >= low && first < end) {
+						valid[first >>> 6] |= 1L << first;
+					}
+					if (i >= low && i < end) {
+						valid[i >>> 6] |= 1L << i;
+					}
+				}
+			}
+		}
+
+		/**
+		 * What the valid beats of a chunk add to the statistics, following the loop of
+		 * Workout.validate: a valid beat after a valid beat counts one, a valid beat after
+		 * invalid ones counts the beats estimated over the gap (the gap may start in an
+		 * earlier chunk, whose bits are all set by now)
+		 */
+		void summarize(int c) {
+			int start = c * chunk, end = Math.min(size, start + chunk);
+			Summary summary = new Summary();
+			for (int j = Math.max(start, 1); j < end; j++) {
+				if (!beats.isValid(j)) {
+					continue;
+				}
+				if (summary.first < 0) {
+					summary.first = j;
+				}
+				summary.last = j;
+				summary.min = Math.min(summary.min, periodes[j]);
+				summary.max = Math.max(summary.max, periodes[j]);
+				if (beats.isValid(j - 1)) {
+					summary.totalBeats++;
+					continue;
+				}
+				int i = j - 1;
+				while (i > 0 && !beats.isValid(i - 1)) {
+					i--;
+				}
+				if (i == 0) {
+					// the first valid beat: validate starts on the invalid beat just before
+					// (firstValid) or on this beat when it is the second of the work-out
+					i = j - 1;
+					if (i == 0) {
+						summary.totalBeats++;
+						continue;
+					}
+				}
+				summary.totalBeats += Math.round(2 * (times[j] - times[i-1]) / (periodes[i-1] + periodes[j]));
+			}
+			summaries[c] = summary;
+		}
+	}
+
+	/**
+	 * Work on a range of chunks, split in halves until a task holds one chunk
+	 */
+	static class Pass extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		final Job job;
+		final boolean mark;
+		final int from, to;
+
+		Pass(Job job, boolean mark, int from, int to) {
+			this.job = job;
+			this.mark = mark;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > 1) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new Pass(job, mark, from, middle), new Pass(job, mark, middle, to));
+			} else if (mark) {
+				job.mark(from);
+			} else {
+				job.summarize(from);
+			}
+		}
+	}
+
+	private final ForkJoinPool pool;
+	private final int chunk;
+
+	/**
+	 * Validator sharing one pool with as many threads as processors
+	 */
+	public ParallelValidator() {
+		this(sharedPool(), CHUNK);
+	}
+
+	/**
+	 * @param pool the threads validating
+	 * @param chunk beats per chunk, a multiple of 64
+	 */
+	public ParallelValidator(ForkJoinPool pool, int chunk) {
+		if (chunk <= 0 || chunk % 64 != 0) {
+			throw new IllegalArgumentException("chunk must be a positive multiple of 64: " + chunk);
+		}
+		this.pool = pool;
+		this.chunk = chunk;
+	}
+
+	static synchronized ForkJoinPool sharedPool() {
+		if (shared == null) {
+			shared = new ForkJoinPool();
+		}
+		return shared;
+	}
+
+	/**
+	 * @return whether a work-out is long enough to validate in parallel on this machine
+	 */
+	public static boolean worthIt(Workout w) {
+		return w.beats.size() >= THRESHOLD && Runtime.getRuntime().availableProcessors() > 1;
+	}
+
+	/**
+	 * Calculates the periods, flags the valid beats and the work-out statistics
+	 * like Workout.validate(validator)
+	 * @param w the work-out
+	 * @param validator the settings to validate with, copied for each chunk
+	 * @return true if the work-out has valid beats
+	 */
+	public boolean validate(Workout w, BeatValidator validator) {
+		if (w.beats.size() < 2 * chunk) {
+			return w.validate(validator);
+		}
+		w.pyramid = null;
+		w.statistics = null;
+		Job job = new Job(w.beats, validator);
+		pool.invoke(new Pass(job, true, 0, job.chunks));
+		pool.invoke(new Pass(job, false, 0, job.chunks));
+
+		// stitch the chunks in order
+		int first = -1, last = -1;
+		int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+		long totalBeats = 0;
+		for (Summary summary : job.summaries) {
+			if (summary.first >= 0) {
+				if (first < 0) {
+					first = summary.first;
+				}
+				last = summary.last;
+				min = Math.min(min, summary.min);
+				max = Math.max(max, summary.max);
+			}
+			totalBeats += summary.totalBeats;
+		}
+		// validate keeps the invalid beat before the first valid one, or the last beat if none is valid
+		w.firstValid = first >= 0 ? first - 1 : job.size - 1;
+		w.lastValid = first >= 0 ? last : w.firstValid;
+		w.totalBeats = totalBeats;
+		// and starts min and max with the period of that beat
+		w.min = Math.min(min, job.periodes[w.firstValid]);
+		w.max = Math.max(max, job.periodes[w.firstValid]);
+		return w.hasValidBeat();
+	}
+
+	/**
+	 * The period of a beat as Workout.validate calculates it
+	 */
+	static int periode(long[] times, int i) {
+		return (int) (i == 0 ? times[0] : times[i] - times[i - 1]);
+	}
+}
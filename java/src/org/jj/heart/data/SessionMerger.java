@@ -0,0 +1,119 @@
+package org.jj.heart.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jj.heart.metrics.PipelineMetrics;
+import org.jj.heart.metrics.Stage;
+
+/**
+ * Merges the segments of one session (the device rebooted by power interruptions) into its
+ * first segment, giving the same beats as merging them one by one with Workout.merge<br/>
+ * Adding a segment only works out the time offset of its beats; merge then grows the first
+ * segment once to the size of the session and appends every segment in one bulk copy each,
+ * instead of growing and copying the beats gathered so far at every segment.
+ * @author jjones
+ */
+public class SessionMerger {
+	private final Workout first;
+	private final List<BeatStore> segments = new ArrayList<BeatStore>();
+	/** offset of each segment, less the shift applied after it was added */
+	private long[] offsets = new long[4];
+	/** shift of every beat gathered so far (Workout.merge with an earlier segment) */
+	private long shift;
+	private int size;
+	/** time of the last beat gathered, once shifted */
+	private long lastTime;
+
+	/**
+	 * @param first the first segment of the session, which receives the beats
+	 */
+	public SessionMerger(Workout first) {
+		this.first = first;
+		size = first.beats.size();
+		if (size > 0) {
+			lastTime = first.beats.getTime(size - 1);
+		}
+	}
+
+	public Workout getFirst() {
+		return first;
+	}
+
+	/**
+	 * @return how many beats the session holds
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return time of the last beat of the session once merged
+	 * @throws IndexOutOfBoundsException if the session has no beat, like the first segment would
+	 */
+	public long getLastTime() {
+		if (size == 0) {
+			throw new IndexOutOfBoundsException("Index: -1, Size: 0");
+		}
+		return lastTime;
+	}
+
+	/**
+	 * Adds the next segment of the session, as first.merge(segment) would
+	 * @param segment a segment logged after the first one
+	 */
+	public void add(Workout segment) {
+		BeatStore beats = segment.beats;
+		if (segment.begin.before(first.begin)) {
+			// the earlier segment would receive the beats and be dropped: the session is only shifted
+			if (!beats.isEmpty()) {
+				long timeGap = first.begin.getTime() - segment.begin.getTime();
+				shift += timeGap;
+				lastTime += timeGap;
+			}
+			return;
+		}
+		if (size == 0) {
+			return; // merge keeps the later segment, which parseLog drops
+		}
+		long timeGap = segment.begin.getTime() - first.begin.getTime();
+		if (timeGap == 0) {
+			timeGap = lastTime;
+		}
+		if (beats.isEmpty()) {
+			return;
+		}
+		if (segments.size() == offsets.length) {
+			offsets = Arrays.copyOf(offsets, offsets.length * 2);
+		}
+		offsets[segments.size()] = timeGap - shift;
+		segments.add(beats);
+		size += beats.size();
+		lastTime = beats.getTime(beats.size() - 1) + timeGap;
+	}
+
+	/**
+	 * Appends the beats of every segment to the first one
+	 * @return the first segment holding the beats of the whole session
+	 */
+	public Workout merge() {
+		PipelineMetrics.Timer timer = PipelineMetrics.start(Stage.MERGE);
+		PipelineMetrics.countMerged(segments.size());
+		BeatStore beats = first.beats;
+		beats.ensureCapacity(size);
+		// the beats of the first segment were there for every shift
+		if (shift != 0) {
+			beats.shift(shift);
+		}
+		for (int s = 0; s < segments.size(); s++) {
+			beats.addAll(segments.get(s), offsets[s] + shift);
+		}
+		segments.clear();
+		shift = 0;
+		first.pyramid = null;
+		first.statistics = null;
+		timer.stop(size);
+		return first;
+	}
+}
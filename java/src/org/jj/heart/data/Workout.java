@@ -9,6 +9,9 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
+import org.jj.heart.metrics.PipelineMetrics;
+import org.jj.heart.metrics.Stage;
+
 /**
  * Class for storing and manipulating work-out session/lap/segment
  * @author jjones
@@ -25,7 +28,7 @@ public class Workout {
 	/** Beginning of work-out */
 	protected Date begin;
 	/** collection of heart beats */
-	protected ArrayList<Beat> beats;
+	protected BeatStore beats;
 	/** estimated total of beats for calculating the average */
 	protected long totalBeats;
 	/** position of first valid heart beat */
@@ -33,6 +36,10 @@ public class Workout {
 	/** position of last valid heart beat */
 	protected int lastValid;
 	protected int max,min;
+	/** summary of the validated beats for graphing, built when first needed */
+	protected BeatPyramid pyramid;
+	/** zones, rolling averages and peaks in the default zones, built when first needed */
+	protected WorkoutStatistics statistics;
 
 	/**
 	 * Initializes everything to zero/default values
@@ -40,7 +47,7 @@ public class Workout {
 	public Workout() {
 		timeStamp = "0:0:0";
 		begin = new Date(0);
-		beats = new ArrayList<Beat>();
+		beats = new BeatStore();
 		totalBeats = 0;
 		max = min = lastValid = firstValid = -1;
 	}
@@ -55,15 +62,9 @@ public class Workout {
 		String line;
 		try {
 			// first line in string should be the timestamp; this may need to be verified
-			timeStamp = readBuffer.readLine();
-			if(!timeStamp.equals("0:0:0")){
-				try {
-					begin = hourFormat.parse(timeStamp);
-				} catch (ParseException e) {
-				}
-			}
+			setHeader(readBuffer.readLine());
 			while (null != (line = readBuffer.readLine())) {
-				beats.add(new Beat(Long.parseLong(line)));
+				beats.add(Long.parseLong(line));
 			}
 		} catch (IOException io) {
 		} catch (NumberFormatException num) {
@@ -75,6 +76,23 @@ public class Workout {
 		}
 	}
 
+	/**
+	 * Sets the time stamp read from the log header and the beginning it describes
+	 * @param header the text following the "----" delimiter
+	 */
+	void setHeader(String header) {
+		timeStamp = header;
+		if(!timeStamp.equals("0:0:0")){
+			try {
+				// SimpleDateFormat is not thread safe
+				synchronized (hourFormat) {
+					begin = hourFormat.parse(timeStamp);
+				}
+			} catch (ParseException e) {
+			}
+		}
+	}
+
 	// getters and setters
 	public String getTimeStamp() {
 		return timeStamp;
@@ -92,12 +110,51 @@ public class Workout {
 		this.begin = begin;
 	}
 
-	public ArrayList<Beat> getBeats() {
+	/**
+	 * @return a read only view of the beats, see getBeatStore for the columns
+	 */
+	public List<Beat> getBeats() {
+		return beats.asList();
+	}
+
+	/**
+	 * Replaces the beats by copies of the given ones
+	 * @param beats the beats to store
+	 */
+	public void setBeats(List<Beat> beats) {
+		pyramid = null;
+		statistics = null;
+		this.beats = new BeatStore(beats.size());
+		for (Beat beat : beats) {
+			int i = this.beats.size();
+			this.beats.add(beat.time);
+			this.beats.setPeriode(i, beat.periode);
+			this.beats.setValid(i, beat.valid);
+		}
+	}
+
+	public BeatStore getBeatStore() {
 		return beats;
 	}
 
-	public void setBeats(ArrayList<Beat> beats) {
-		this.beats = beats;
+	/**
+	 * @return the level of detail summary of the validated beats
+	 */
+	public BeatPyramid getPyramid() {
+		if (pyramid == null) {
+			pyramid = new BeatPyramid(beats);
+		}
+		return pyramid;
+	}
+
+	/**
+	 * @return the training figures of the validated beats in the default zones
+	 */
+	public WorkoutStatistics getStatistics() {
+		if (statistics == null) {
+			statistics = new WorkoutStatistics(this, WorkoutStatistics.DEFAULT_ZONES);
+		}
+		return statistics;
 	}
 
 	public long getTotalBeats() {
@@ -153,59 +210,73 @@ public class Workout {
 	}
 
 	/**
+	 * Validates with the default sample size and tolerance, in parallel for long work-outs
 	 * may need to return some information (firstPos,lastValid,success/fail...)
 	 */
 	public boolean validate(){
+		PipelineMetrics.Timer timer = PipelineMetrics.start(Stage.VALIDATE);
+		boolean valid;
+		if (ParallelValidator.worthIt(this)) {
+			valid = new ParallelValidator().validate(this, new BeatValidator());
+		} else {
+			valid = validate(new BeatValidator());
+		}
+		timer.stop(beats.size());
+		PipelineMetrics.countValidated(beats.size(), beats.size() - beats.countValid());
+		return valid;
+	}
+
+	/**
+	 * Calculates the periods, flags the valid beats and the work-out statistics
+	 * @param validator  decides which samples of beats are believable
+	 * @return true if the work-out has valid beats
+	 */
+	public boolean validate(BeatValidator validator){
+		pyramid = null;
+		statistics = null;
+		int size = beats.size();
+		long[] times = beats.getTimes();
+		int[] periodes = beats.getPeriodes();
 		// calculate each period
-		if(beats.size()>0){
-			beats.get(0).periode = (int) beats.get(0).time;
+		if(size>0){
+			periodes[0] = (int) times[0];
 		}
-		for (int i = 1; i < beats.size(); i++) {
-			beats.get(i).periode = (int) (beats.get(i).time - beats.get(i - 1).time);
+		for (int i = 1; i < size; i++) {
+			periodes[i] = (int) (times[i] - times[i - 1]);
 		}
 
 		// verify each period is human and comparable to the average of neighbors 
-		for (int i = 1; i < beats.size(); i++) {
-			if (i+1 >= sampleSize) { // validate current point with those that precede 
-				beats.get(i).valid = validateSample(beats.subList(i+1-sampleSize, i+1));
-			} // validate current point with those that follow 
-			if (!beats.get(i).valid && i <= beats.size()-sampleSize) {
-				beats.get(i).valid = validateSample(beats.subList(i, i+sampleSize));
-			}
-//			if(!beats.get(i).valid){
-//				System.out.println("bad point "+beats.get(i).time);
-//			}
-		}
+		validator.markValid(beats);
 		
 		// first pass find first and last valid elements
-		for (int i = 0; i < beats.size() && !beats.get(i).valid; i++){
+		for (int i = 0; i < size && !beats.isValid(i); i++){
 			firstValid = i;
 		}
 		lastValid = firstValid;
 		
 		// find & calculate missing beats
 		totalBeats = 0; // one should round the calculated/missed beats
-		for (int i = Math.max(firstValid, 1); i < beats.size(); i++) {
-			if (beats.get(i).valid) {
+		for (int i = Math.max(firstValid, 1); i < size; i++) {
+			if (beats.isValid(i)) {
 				totalBeats++;
 				lastValid = i;
 			}else{
 				int j = i;
-				while (++j < beats.size() && !beats.get(j).valid);
-				if (j < beats.size()) {
+				while (++j < size && !beats.isValid(j));
+				if (j < size) {
 					// add the missed beats to a running total
-					totalBeats += Math.round(2 * (beats.get(j).time - beats.get(i-1).time) / (beats.get(i-1).periode + beats.get(j).periode));
+					totalBeats += Math.round(2 * (times[j] - times[i-1]) / (periodes[i-1] + periodes[j]));
 					lastValid = i = j;
 				}
 			}
 		}
 		
 		if(hasValidBeat()){
-			min = max = beats.get(firstValid).periode;
+			min = max = periodes[firstValid];
 			for (int i = firstValid; i <= lastValid; i++) {
-				if (beats.get(i).valid) {
-					max = Math.max(max, beats.get(i).periode);
-					min = Math.min(min, beats.get(i).periode);
+				if (beats.isValid(i)) {
+					max = Math.max(max, periodes[i]);
+					min = Math.min(min, periodes[i]);
 				}
 			}
 		}
@@ -218,14 +289,14 @@ public class Workout {
 	
 	public float getAverage(){
 		if(hasValidBeat()){
-			return (beats.get(lastValid).time - beats.get(firstValid).time) / totalBeats;
+			return (beats.getTime(lastValid) - beats.getTime(firstValid)) / totalBeats;
 		}
 		return 0;
 	}
 	
 	public List<Beat> getValidBeats(){
 		if(hasValidBeat()){
-			return beats.subList(firstValid, lastValid + 1);
+			return getBeats().subList(firstValid, lastValid + 1);
 		}
 		return new ArrayList<Beat>();
 	}
@@ -236,6 +307,7 @@ public class Workout {
 	 * @return
 	 */
 	public Workout merge(Workout workout) {
+		PipelineMetrics.Timer timer = PipelineMetrics.start(Stage.MERGE);
 		Workout earliest=this, latest=workout;
 		// make sure the earliest workout session happened first
 		if(latest.begin.before(earliest.begin)){
@@ -244,18 +316,22 @@ public class Workout {
 		}
 
 		if(earliest.beats.isEmpty()){
+			timer.stop();
 			return latest;
 		}
 		
 		long timeGap = latest.begin.getTime() - earliest.begin.getTime();
 		// when the times are the same like when the clock is not set "0:0:0"
 		if(timeGap==0 && earliest.beats.size()>0){
-			timeGap = earliest.beats.get(earliest.beats.size()-1).time;
+			timeGap = earliest.beats.getTime(earliest.beats.size()-1);
 		}
-		for(Beat beat:latest.beats){
-			beat.time += timeGap;
-			earliest.beats.add(beat);
+		earliest.beats.addAll(latest.beats, timeGap);
+		if (latest == this) {
+			// the beats used to be shared objects: this work-out sees its beats shifted as well
+			beats.shift(timeGap);
 		}
+		timer.stop(latest.beats.size());
+		PipelineMetrics.countMerged(1);
 
 		return earliest;
 	}
@@ -266,7 +342,7 @@ public class Workout {
 	 */
 	public long getDuration(){
 		if(hasValidBeat()){
-			return beats.get(lastValid).time - beats.get(firstValid).time;
+			return beats.getTime(lastValid) - beats.getTime(firstValid);
 		}
 		return 0;
 	}
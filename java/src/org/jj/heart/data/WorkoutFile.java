@@ -0,0 +1,193 @@
+package org.jj.heart.data;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Binary copy (.hrb) of the validated work-outs of a log, saved next to the log<br/>
+ * Reopening a log reads the memory mapped copy instead of parsing and validating the text again.
+ * <pre>
+ * file:    magic "HRB1", int version, long log length, long log last modified, int work-out count
+ * workout: int header length, header bytes (UTF-8), long begin,
+ *          int min, int max, long total beats, int first valid, int last valid,
+ *          int beat count n, long first time, int first period,
+ *          int[n-1] time deltas (also the periods), long[(n+63)/64] validity bits
+ * </pre>
+ * The copy is ignored when the log length or modification time changed.
+ * @author jjones
+ */
+public class WorkoutFile {
+	static final int MAGIC = 0x48524231; // "HRB1"
+	static final int VERSION = 1;
+	public static final String EXTENSION = "hrb";
+
+	/**
+	 * @param logFile the log file handler
+	 * @return where the binary copy of a log is kept
+	 */
+	public static File sidecar(File logFile) {
+		String name = logFile.getName();
+		int dot = name.lastIndexOf('.');
+		if (dot > 0) {
+			name = name.substring(0, dot);
+		}
+		return new File(logFile.getParentFile(), name + "." + EXTENSION);
+	}
+
+	/**
+	 * Saves validated work-outs next to their log<br/>
+	 * A log with beats more than 24 days apart gets no copy: it is parsed again each time.
+	 * @param logFile the log the work-outs were parsed from
+	 * @param workouts the validated work-outs
+	 * @throws IOException
+	 */
+	public static void write(File logFile, List<Workout> workouts) throws IOException {
+		File target = sidecar(logFile);
+		for (Workout workout : workouts) {
+			BeatStore beats = workout.beats;
+			for (int i = 1; i < beats.size(); i++) {
+				long delta = beats.getTimes()[i] - beats.getTimes()[i - 1];
+				if (delta != (int) delta) {
+					target.delete();
+					return;
+				}
+			}
+		}
+
+		File temp = new File(target.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 65536));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(logFile.length());
+			out.writeLong(logFile.lastModified());
+			out.writeInt(workouts.size());
+			for (Workout workout : workouts) {
+				byte[] header = workout.timeStamp.getBytes("UTF-8");
+				out.writeInt(header.length);
+				out.write(header);
+				out.writeLong(workout.begin.getTime());
+				out.writeInt(workout.min);
+				out.writeInt(workout.max);
+				out.writeLong(workout.totalBeats);
+				out.writeInt(workout.firstValid);
+				out.writeInt(workout.lastValid);
+
+				BeatStore beats = workout.beats;
+				int size = beats.size();
+				long[] times = beats.getTimes();
+				out.writeInt(size);
+				if (size > 0) {
+					out.writeLong(times[0]);
+					out.writeInt(beats.getPeriodes()[0]);
+				}
+				for (int i = 1; i < size; i++) {
+					out.writeInt((int) (times[i] - times[i - 1]));
+				}
+				long[] valid = beats.getValidWords();
+				for (int w = 0; w < BeatStore.words(size); w++) {
+					out.writeLong(valid[w]);
+				}
+			}
+		} finally {
+			out.close();
+		}
+		target.delete();
+		if (!temp.renameTo(target)) {
+			temp.delete();
+			throw new IOException("cannot rename " + temp);
+		}
+	}
+
+	/**
+	 * Reads the binary copy of a log
+	 * @param logFile the log file handler
+	 * @return the validated work-outs or null if there is no up to date copy
+	 * @throws IOException
+	 */
+	public static List<Workout> read(File logFile) throws IOException {
+		File file = sidecar(logFile);
+		if (!file.isFile()) {
+			return null;
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION || buffer.getLong() != logFile.length()
+					|| buffer.getLong() != logFile.lastModified()) {
+				return null;
+			}
+			int count = buffer.getInt();
+			if (count < 0 || count > buffer.remaining()) {
+				return null;
+			}
+			List<Workout> workouts = new ArrayList<Workout>(count);
+			for (int w = 0; w < count; w++) {
+				Workout workout = readWorkout(buffer);
+				if (workout == null) {
+					return null;
+				}
+				workouts.add(workout);
+			}
+			return workouts;
+		} catch (BufferUnderflowException e) {
+			return null; // truncated copy: parse the log again
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * @return the next work-out, null if the copy is damaged
+	 */
+	private static Workout readWorkout(ByteBuffer buffer) throws IOException {
+		Workout workout = new Workout();
+		int length = buffer.getInt();
+		if (length < 0 || length > buffer.remaining()) {
+			return null;
+		}
+		byte[] header = new byte[length];
+		buffer.get(header);
+		workout.timeStamp = new String(header, "UTF-8");
+		workout.begin = new Date(buffer.getLong());
+		workout.min = buffer.getInt();
+		workout.max = buffer.getInt();
+		workout.totalBeats = buffer.getLong();
+		workout.firstValid = buffer.getInt();
+		workout.lastValid = buffer.getInt();
+
+		int size = buffer.getInt();
+		if (size < 0 || size > 0 && 12 + 4L * (size - 1) + 8L * BeatStore.words(size) > buffer.remaining()) {
+			return null;
+		}
+		long[] times = new long[Math.max(size, 1)];
+		int[] periodes = new int[Math.max(size, 1)];
+		long[] valid = new long[BeatStore.words(Math.max(size, 1))];
+		if (size > 0) {
+			times[0] = buffer.getLong();
+			periodes[0] = buffer.getInt();
+			// bulk copy of the deltas, then the running sum gives back the times
+			buffer.asIntBuffer().get(periodes, 1, size - 1);
+			buffer.position(buffer.position() + 4 * (size - 1));
+			for (int i = 1; i < size; i++) {
+				times[i] = times[i - 1] + periodes[i];
+			}
+			buffer.asLongBuffer().get(valid, 0, BeatStore.words(size));
+			buffer.position(buffer.position() + 8 * BeatStore.words(size));
+		}
+		workout.beats = new BeatStore(times, periodes, valid, size);
+		return workout;
+	}
+}
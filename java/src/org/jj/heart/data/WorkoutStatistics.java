@@ -0,0 +1,309 @@
+package org.jj.heart.data;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Training figures of a validated work-out, all gathered in one pass over its valid beats:
+ * time in heart rate zones, rolling averages over a few windows with their best value
+ * (the peak sustained efforts), and the peaks of effort with the recovery that followed<br/>
+ * Rates are averaged over the time of the beats (beats per minute of valid readings) and
+ * each window only moves a cursor along the beat arrays, so nothing is allocated per beat.
+ * @author jjones
+ */
+public class WorkoutStatistics {
+	/** upper limits of the heart rate zones in bpm, from -Dheart.zones=100,120,140,160,180 */
+	public static final int[] DEFAULT_ZONES = zones(System.getProperty("heart.zones", "100,120,140,160,180"));
+	/** rolling windows: 30 s, 1 min and 5 min */
+	public static final long[] WINDOWS = { 30000, 60000, 300000 };
+	/** the rolling averages are kept every 5 s */
+	public static final long SAMPLE_TIME = 5000;
+	/** a peak of effort is over once the 30 s average drops this much below it, in bpm */
+	static final float PEAK_DROP = 10;
+	/** recovery is the drop of the 30 s average this long after a peak */
+	public static final long RECOVERY_TIME = 60000;
+
+	private final int[] zones;
+	/** ms of valid beats per zone, zones.length + 1 of them */
+	private final long[] zoneTimes;
+	/** rolling averages per window every SAMPLE_TIME from the first valid beat, NaN without beats */
+	private final float[][] rolling;
+	private final float[] bestAverages;
+	private final long[] bestTimes;
+	/** peaks of the 30 s average */
+	private int peakCount;
+	private float[] peakRates = new float[4];
+	private long[] peakTimes = new long[4];
+	/** drop of the 30 s average RECOVERY_TIME after each peak, NaN when the work-out ended first */
+	private float[] recoveries = new float[4];
+	private final long start;
+
+	/**
+	 * @param w a validated work-out
+	 * @param zones upper limits of the heart rate zones in bpm, in increasing order
+	 */
+	public WorkoutStatistics(Workout w, int[] zones) {
+		this.zones = zones.clone();
+		zoneTimes = new long[zones.length + 1];
+		rolling = new float[WINDOWS.length][];
+		bestAverages = new float[WINDOWS.length];
+		bestTimes = new long[WINDOWS.length];
+		Arrays.fill(bestAverages, Float.NaN);
+		BeatStore beats = w.getBeatStore();
+		if (!w.hasValidBeat()) {
+			start = 0;
+			for (int k = 0; k < WINDOWS.length; k++) {
+				rolling[k] = new float[0];
+			}
+			return;
+		}
+		int from = Math.max(w.getFirstValid(), 1), to = w.getLastValid();
+		long[] times = beats.getTimes();
+		int[] periodes = beats.getPeriodes();
+		start = times[from];
+
+		// a beat is in zone z when its period is at most limits[z-1] and above limits[z]
+		int[] limits = new int[zones.length];
+		for (int z = 0; z < zones.length; z++) {
+			limits[z] = 60000 / zones[z];
+		}
+		int samples = (int) ((times[to] - start) / SAMPLE_TIME) + 1;
+		int[] tails = new int[WINDOWS.length];
+		int[] counts = new int[WINDOWS.length];
+		long[] sums = new long[WINDOWS.length];
+		for (int k = 0; k < WINDOWS.length; k++) {
+			rolling[k] = new float[samples];
+			Arrays.fill(rolling[k], Float.NaN);
+			tails[k] = from;
+		}
+		int sample = 0;
+		float high = Float.NaN, low = Float.NaN;
+		long highTime = 0;
+		boolean recovering = false;
+		int pending = 0; // first peak still waiting for its recovery
+
+		for (int i = from; i <= to; i++) {
+			if (!beats.isValid(i)) {
+				continue;
+			}
+			long time = times[i];
+			int periode = periodes[i];
+			int zone = 0;
+			while (zone < limits.length && periode <= limits[zone]) {
+				zone++;
+			}
+			zoneTimes[zone] += periode;
+
+			for (int k = 0; k < WINDOWS.length; k++) {
+				counts[k]++;
+				sums[k] += periode;
+				int tail = tails[k];
+				while (times[tail] <= time - WINDOWS[k]) {
+					if (beats.isValid(tail)) {
+						counts[k]--;
+						sums[k] -= periodes[tail];
+					}
+					tail++;
+				}
+				tails[k] = tail;
+				// only windows that are full count as efforts
+				if (time - start >= WINDOWS[k]) {
+					float average = 60000f * counts[k] / sums[k];
+					if (!(average <= bestAverages[k])) {
+						bestAverages[k] = average;
+						bestTimes[k] = time;
+					}
+				}
+			}
+			float current = 60000f * counts[0] / sums[0];
+			for (; sample < samples && start + sample * SAMPLE_TIME <= time; sample++) {
+				for (int k = 0; k < WINDOWS.length; k++) {
+					rolling[k][sample] = 60000f * counts[k] / sums[k];
+				}
+			}
+
+			for (; pending < peakCount && peakTimes[pending] + RECOVERY_TIME <= time; pending++) {
+				recoveries[pending] = peakRates[pending] - current;
+			}
+			// a peak ends when the average drops enough, the next one starts when it climbs as much
+			if (recovering) {
+				low = Math.min(low, current);
+				if (current >= low + PEAK_DROP) {
+					recovering = false;
+					high = current;
+					highTime = time;
+				}
+			} else if (!(current <= high)) {
+				high = current;
+				highTime = time;
+			} else if (current <= high - PEAK_DROP) {
+				addPeak(high, highTime);
+				recovering = true;
+				low = current;
+			}
+		}
+	}
+
+	private void addPeak(float rate, long time) {
+		if (peakCount == peakRates.length) {
+			peakRates = Arrays.copyOf(peakRates, peakCount * 2);
+			peakTimes = Arrays.copyOf(peakTimes, peakCount * 2);
+			recoveries = Arrays.copyOf(recoveries, peakCount * 2);
+		}
+		peakRates[peakCount] = rate;
+		peakTimes[peakCount] = time;
+		recoveries[peakCount] = Float.NaN;
+		peakCount++;
+	}
+
+	/**
+	 * @param text limits in bpm separated by commas
+	 */
+	static int[] zones(String text) {
+		String[] values = text.split(",");
+		int[] zones = new int[values.length];
+		for (int z = 0; z < values.length; z++) {
+			zones[z] = Integer.parseInt(values[z].trim());
+		}
+		return zones;
+	}
+
+	/**
+	 * @return upper limits of the zones in bpm; the last zone has none
+	 */
+	public int[] getZones() {
+		return zones.clone();
+	}
+
+	/**
+	 * @return ms of valid beats in a zone, from 0 (below the first limit) to getZones().length
+	 */
+	public long getZoneTime(int zone) {
+		return zoneTimes[zone];
+	}
+
+	/**
+	 * @return time of the first valid beat, the rolling averages start there
+	 */
+	public long getStart() {
+		return start;
+	}
+
+	/**
+	 * @param window position in WINDOWS
+	 * @return the average rate in bpm over the window ending every SAMPLE_TIME
+	 */
+	public float[] getRolling(int window) {
+		return rolling[window];
+	}
+
+	/**
+	 * @param window position in WINDOWS
+	 * @return best average rate in bpm over the window, NaN if the work-out is shorter
+	 */
+	public float getBestAverage(int window) {
+		return bestAverages[window];
+	}
+
+	/**
+	 * @return time of the last beat of the best window
+	 */
+	public long getBestTime(int window) {
+		return bestTimes[window];
+	}
+
+	public int getPeakCount() {
+		return peakCount;
+	}
+
+	/**
+	 * @return 30 s average at the top of a peak in bpm
+	 */
+	public float getPeakRate(int peak) {
+		return peakRates[peak];
+	}
+
+	public long getPeakTime(int peak) {
+		return peakTimes[peak];
+	}
+
+	/**
+	 * @return how much the 30 s average dropped in the minute after a peak in bpm,
+	 *         NaN if the work-out ended first
+	 */
+	public float getRecovery(int peak) {
+		return recoveries[peak];
+	}
+
+	/**
+	 * @return the time in zone and best efforts in a line
+	 */
+	public String summarize() {
+		StringBuilder line = new StringBuilder();
+		for (int k = 0; k < WINDOWS.length; k++) {
+			if (!Float.isNaN(bestAverages[k])) {
+				line.append("  best ").append(window(k)).append(':').append(Math.round(bestAverages[k]));
+			}
+		}
+		line.append("  zones");
+		for (int z = 0; z < zoneTimes.length; z++) {
+			line.append(' ').append(Math.round(zoneTimes[z] / 60000f));
+		}
+		float best = Float.NaN;
+		for (int p = 0; p < peakCount; p++) {
+			if (!(recoveries[p] <= best)) {
+				best = recoveries[p];
+			}
+		}
+		if (!Float.isNaN(best)) {
+			line.append("  recovery:").append(Math.round(best));
+		}
+		return line.toString();
+	}
+
+	/**
+	 * Writes every figure as text: zones, best efforts, peaks and the rolling averages
+	 * @param out where to write, left open
+	 */
+	public void write(PrintWriter out) {
+		out.println("zone\tbpm\tminutes");
+		for (int z = 0; z < zoneTimes.length; z++) {
+			String range = z == 0 ? "<" + zones[0] : z == zones.length ? ">=" + zones[z - 1]
+					: zones[z - 1] + "-" + zones[z];
+			out.println((z + 1) + "\t" + range + "\t" + String.format(Locale.US, "%.1f", zoneTimes[z] / 60000f));
+		}
+		out.println();
+		out.println("window\tbest bpm\tending at s");
+		for (int k = 0; k < WINDOWS.length; k++) {
+			out.println(window(k) + "\t" + Math.round(bestAverages[k]) + "\t" + (bestTimes[k] - start) / 1000);
+		}
+		out.println();
+		out.println("peak at s\tbpm\trecovery bpm");
+		for (int p = 0; p < peakCount; p++) {
+			out.println((peakTimes[p] - start) / 1000 + "\t" + Math.round(peakRates[p]) + "\t"
+					+ (Float.isNaN(recoveries[p]) ? "" : String.valueOf(Math.round(recoveries[p]))));
+		}
+		out.println();
+		out.print("s");
+		for (int k = 0; k < WINDOWS.length; k++) {
+			out.print("\t" + window(k));
+		}
+		out.println();
+		int samples = rolling[0].length;
+		for (int s = 0; s < samples; s++) {
+			out.print(s * SAMPLE_TIME / 1000);
+			for (int k = 0; k < WINDOWS.length; k++) {
+				out.print("\t" + (Float.isNaN(rolling[k][s]) ? "" : String.valueOf(Math.round(rolling[k][s]))));
+			}
+			out.println();
+		}
+	}
+
+	/**
+	 * @return the length of a window like "30s" or "5min"
+	 */
+	static String window(int k) {
+		return WINDOWS[k] < 60000 ? WINDOWS[k] / 1000 + "s" : WINDOWS[k] / 60000 + "min";
+	}
+}
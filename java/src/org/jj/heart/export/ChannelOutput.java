@@ -0,0 +1,159 @@
+package org.jj.heart.export;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+/**
+ * Buffered output to a channel, with number and text writes that go straight to the buffer<br/>
+ * Exports write millions of numbers: they are put digit by digit instead of going through
+ * Strings, so an export allocates nothing per beat and uses the same memory whatever its size.
+ * Text is written as ASCII (XML and CSV exports only need that much).
+ * @author jjones
+ */
+public class ChannelOutput extends OutputStream {
+	static final int BUFFER = 65536;
+	static final long DAY = 86400000L;
+
+	private final WritableByteChannel channel;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER);
+	private final byte[] digits = new byte[20];
+	/** the date written last and its day since 1970 */
+	private byte[] date;
+	private long dateDay = -1;
+	/** bytes written to the channel so far */
+	private long flushed;
+
+	public ChannelOutput(WritableByteChannel channel) {
+		this.channel = channel;
+	}
+
+	/**
+	 * @return how many bytes were written, buffered ones included
+	 */
+	public long position() {
+		return flushed + buffer.position();
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (!buffer.hasRemaining()) {
+			drain();
+		}
+		buffer.put((byte) b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (!buffer.hasRemaining()) {
+				drain();
+			}
+			int count = Math.min(len, buffer.remaining());
+			buffer.put(b, off, count);
+			off += count;
+			len -= count;
+		}
+	}
+
+	/**
+	 * Writes ASCII text
+	 * @return this output, to chain writes
+	 */
+	public ChannelOutput text(CharSequence text) throws IOException {
+		for (int i = 0; i < text.length(); i++) {
+			if (!buffer.hasRemaining()) {
+				drain();
+			}
+			buffer.put((byte) text.charAt(i));
+		}
+		return this;
+	}
+
+	/**
+	 * Writes a number in decimal
+	 * @return this output, to chain writes
+	 */
+	public ChannelOutput number(long value) throws IOException {
+		if (value < 0) {
+			write('-');
+			if (value == Long.MIN_VALUE) {
+				return text("9223372036854775808");
+			}
+			value = -value;
+		}
+		int count = 0;
+		do {
+			digits[count++] = (byte) ('0' + value % 10);
+			value /= 10;
+		} while (value != 0);
+		while (count > 0) {
+			write(digits[--count]);
+		}
+		return this;
+	}
+
+	/**
+	 * Writes a positive number in decimal with leading zeros
+	 * @param width how many digits at least
+	 * @return this output, to chain writes
+	 */
+	public ChannelOutput number(long value, int width) throws IOException {
+		for (long limit = 10; width > 1; width--, limit *= 10) {
+			if (value < limit) {
+				write('0');
+			}
+		}
+		return number(value);
+	}
+
+	/**
+	 * Writes a time as ISO 8601 in UTC: 2011-05-07T18:20:30.125Z
+	 * @param time ms since 1970
+	 * @return this output, to chain writes
+	 */
+	public ChannelOutput time(long time) throws IOException {
+		long day = time / DAY;
+		if (day != dateDay) {
+			// the date only changes at midnight: formatted once per day
+			Calendar calendar = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+			calendar.setTimeInMillis(day * DAY);
+			date = String.format("%04d-%02d-%02dT", calendar.get(Calendar.YEAR), calendar.get(Calendar.MONTH) + 1,
+					calendar.get(Calendar.DAY_OF_MONTH)).getBytes("US-ASCII");
+			dateDay = day;
+		}
+		write(date, 0, date.length);
+		long ms = time - day * DAY;
+		number(ms / 3600000, 2).text(":").number(ms / 60000 % 60, 2).text(":").number(ms / 1000 % 60, 2);
+		return text(".").number(ms % 1000, 3).text("Z");
+	}
+
+	private void drain() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			flushed += channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	@Override
+	public void flush() throws IOException {
+		drain();
+	}
+
+	/**
+	 * Flushes and closes the channel
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			channel.close();
+		}
+	}
+}
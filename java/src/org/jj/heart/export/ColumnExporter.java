@@ -0,0 +1,149 @@
+package org.jj.heart.export;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.jj.heart.data.BeatStore;
+import org.jj.heart.data.Workout;
+
+/**
+ * Columnar file for analysis tools, laid out like Parquet: the columns of each work-out are
+ * written one after the other as they come, and a footer at the end of the file tells where
+ * each column is along with the statistics of each work-out, so a reader goes straight to the
+ * columns it needs (see ColumnReader)
+ * <pre>
+ * "HRZ1"
+ * per work-out: time column, valid column (each deflated)
+ * footer: version, work-out count, per work-out: time stamp, begin, start, beats, first valid,
+ *         last valid, total beats, min, max, offset and length of each column
+ * footer length (int), "HRZ1"
+ * </pre>
+ * The time column holds the zigzag varint differences between successive beat times (the
+ * periods, first one included), the valid column the words of the validity bit set.
+ * @author jjones
+ */
+public class ColumnExporter extends WorkoutExporter {
+	public static final String EXTENSION = "hrz";
+	static final byte[] MAGIC = { 'H', 'R', 'Z', '1' };
+	static final int VERSION = 1;
+	static final int COLUMNS = 2;
+	/** encoded bytes handed to the deflater at once */
+	static final int BLOCK = 8192;
+
+	/**
+	 * Where a work-out is in the file, kept for the footer
+	 */
+	static class Chunk {
+		String timeStamp;
+		long begin, start, totalBeats;
+		int size, firstValid, lastValid, min, max;
+		final long[] offsets = new long[COLUMNS], lengths = new long[COLUMNS];
+	}
+
+	private final List<Chunk> chunks = new ArrayList<Chunk>();
+	private final byte[] block = new byte[BLOCK + 10];
+	private final Deflater deflater = new Deflater();
+
+	public ColumnExporter(ChannelOutput out) {
+		super(out);
+	}
+
+	@Override
+	public void begin() throws IOException {
+		out.write(MAGIC);
+	}
+
+	@Override
+	public void write(Workout w, long start) throws IOException {
+		BeatStore beats = w.getBeatStore();
+		Chunk chunk = new Chunk();
+		chunk.timeStamp = w.getTimeStamp();
+		chunk.begin = w.getBegin().getTime();
+		chunk.start = start;
+		chunk.size = beats.size();
+		chunk.firstValid = w.getFirstValid();
+		chunk.lastValid = w.getLastValid();
+		chunk.totalBeats = w.getTotalBeats();
+		chunk.min = w.getMin();
+		chunk.max = w.getMax();
+
+		// time column
+		DeflaterOutputStream column = open(chunk, 0);
+		long[] times = beats.getTimes();
+		long previous = 0;
+		int position = 0;
+		for (int i = 0; i < chunk.size; i++) {
+			position = VarInt.write(block, position, VarInt.zigzag(times[i] - previous));
+			previous = times[i];
+			if (position >= BLOCK) {
+				column.write(block, 0, position);
+				position = 0;
+			}
+		}
+		column.write(block, 0, position);
+		close(chunk, 0, column);
+
+		// valid column
+		column = open(chunk, 1);
+		long[] words = beats.getValidWords();
+		position = 0;
+		for (int word = 0; word < (chunk.size + 63) >>> 6; word++) {
+			long bits = words[word];
+			for (int b = 0; b < 64; b += 8) {
+				block[position++] = (byte) (bits >>> b);
+			}
+			if (position >= BLOCK) {
+				column.write(block, 0, position);
+				position = 0;
+			}
+		}
+		column.write(block, 0, position);
+		close(chunk, 1, column);
+		chunks.add(chunk);
+	}
+
+	private DeflaterOutputStream open(Chunk chunk, int column) {
+		chunk.offsets[column] = out.position();
+		deflater.reset();
+		return new DeflaterOutputStream(out, deflater, BLOCK);
+	}
+
+	private void close(Chunk chunk, int column, DeflaterOutputStream stream) throws IOException {
+		// finish, not close: the output goes on with the next column
+		stream.finish();
+		chunk.lengths[column] = out.position() - chunk.offsets[column];
+	}
+
+	@Override
+	public void end() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream footer = new DataOutputStream(bytes);
+		footer.writeInt(VERSION);
+		footer.writeInt(chunks.size());
+		for (Chunk chunk : chunks) {
+			footer.writeUTF(chunk.timeStamp);
+			footer.writeLong(chunk.begin);
+			footer.writeLong(chunk.start);
+			footer.writeInt(chunk.size);
+			footer.writeInt(chunk.firstValid);
+			footer.writeInt(chunk.lastValid);
+			footer.writeLong(chunk.totalBeats);
+			footer.writeInt(chunk.min);
+			footer.writeInt(chunk.max);
+			for (int c = 0; c < COLUMNS; c++) {
+				footer.writeLong(chunk.offsets[c]);
+				footer.writeLong(chunk.lengths[c]);
+			}
+		}
+		footer.writeInt(bytes.size());
+		footer.write(MAGIC);
+		bytes.writeTo(out);
+		out.flush();
+		deflater.end();
+	}
+}
@@ -0,0 +1,214 @@
+package org.jj.heart.export;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.zip.InflaterInputStream;
+
+import org.jj.heart.data.BeatStore;
+import org.jj.heart.data.Workout;
+import org.jj.heart.export.ColumnExporter.Chunk;
+
+/**
+ * Reads the columnar files of ColumnExporter: the footer is read when opening, the columns of a
+ * work-out only when asked for
+ * @author jjones
+ */
+public class ColumnReader {
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final Chunk[] chunks;
+
+	/**
+	 * Opens a file and reads its footer
+	 * @throws IOException if it is not a columnar export
+	 */
+	public ColumnReader(File source) throws IOException {
+		file = new RandomAccessFile(source, "r");
+		channel = file.getChannel();
+		try {
+			long size = channel.size();
+			ByteBuffer tail = ByteBuffer.allocate(8);
+			if (size < 16 || read(tail, size - 8) < 8 || !magic(tail, 4)) {
+				throw new IOException("not a columnar export: " + source);
+			}
+			int length = tail.getInt(0);
+			ByteBuffer bytes = ByteBuffer.allocate(length);
+			if (length > size - 12 || read(bytes, size - 8 - length) < length) {
+				throw new IOException("truncated footer: " + source);
+			}
+			DataInputStream footer = new DataInputStream(new ByteArrayInputStream(bytes.array()));
+			if (footer.readInt() != ColumnExporter.VERSION) {
+				throw new IOException("unknown version: " + source);
+			}
+			chunks = new Chunk[footer.readInt()];
+			for (int i = 0; i < chunks.length; i++) {
+				Chunk chunk = chunks[i] = new Chunk();
+				chunk.timeStamp = footer.readUTF();
+				chunk.begin = footer.readLong();
+				chunk.start = footer.readLong();
+				chunk.size = footer.readInt();
+				chunk.firstValid = footer.readInt();
+				chunk.lastValid = footer.readInt();
+				chunk.totalBeats = footer.readLong();
+				chunk.min = footer.readInt();
+				chunk.max = footer.readInt();
+				for (int c = 0; c < ColumnExporter.COLUMNS; c++) {
+					chunk.offsets[c] = footer.readLong();
+					chunk.lengths[c] = footer.readLong();
+				}
+			}
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	private int read(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				break;
+			}
+		}
+		return buffer.position();
+	}
+
+	private static boolean magic(ByteBuffer buffer, int at) {
+		byte[] magic = new byte[4];
+		for (int i = 0; i < 4; i++) {
+			magic[i] = buffer.get(at + i);
+		}
+		return Arrays.equals(magic, ColumnExporter.MAGIC);
+	}
+
+	/**
+	 * @return how many work-outs the file holds
+	 */
+	public int size() {
+		return chunks.length;
+	}
+
+	/**
+	 * @return the time of the boot of a work-out in ms since 1970
+	 */
+	public long getStart(int i) {
+		return chunks[i].start;
+	}
+
+	/**
+	 * @return the number of beats of a work-out, from the footer
+	 */
+	public int getBeatCount(int i) {
+		return chunks[i].size;
+	}
+
+	/**
+	 * @return the estimated total of beats of a work-out, from the footer
+	 */
+	public long getTotalBeats(int i) {
+		return chunks[i].totalBeats;
+	}
+
+	/**
+	 * @return the beat times of a work-out, read from its time column only
+	 */
+	public long[] readTimes(int i) throws IOException {
+		Chunk chunk = chunks[i];
+		long[] times = new long[chunk.size];
+		InputStream in = column(chunk, 0);
+		long time = 0;
+		for (int b = 0; b < times.length; b++) {
+			time += VarInt.unzigzag(VarInt.read(in));
+			times[b] = time;
+		}
+		return times;
+	}
+
+	/**
+	 * @return the words of the validity bit set of a work-out, read from its valid column only
+	 */
+	public long[] readValid(int i) throws IOException {
+		Chunk chunk = chunks[i];
+		long[] words = new long[(chunk.size + 63) >>> 6];
+		DataInputStream in = new DataInputStream(column(chunk, 1));
+		for (int w = 0; w < words.length; w++) {
+			// little endian like the exporter
+			words[w] = Long.reverseBytes(in.readLong());
+		}
+		return words;
+	}
+
+	/**
+	 * @return a work-out as exported, validated again from its beat times
+	 * @throws IOException if the file does not give the validation it was exported with
+	 */
+	public Workout read(int i) throws IOException {
+		Chunk chunk = chunks[i];
+		Workout w = new Workout();
+		w.setTimeStamp(chunk.timeStamp);
+		w.setBegin(new Date(chunk.begin));
+		BeatStore beats = w.getBeatStore();
+		beats.ensureCapacity(chunk.size);
+		for (long time : readTimes(i)) {
+			beats.add(time);
+		}
+		w.validate();
+		if (w.getFirstValid() != chunk.firstValid || w.getLastValid() != chunk.lastValid
+				|| w.getTotalBeats() != chunk.totalBeats) {
+			throw new IOException("work-out " + i + " does not validate as exported");
+		}
+		return w;
+	}
+
+	private InputStream column(Chunk chunk, int column) throws IOException {
+		InputStream in = Channels.newInputStream(channel.position(chunk.offsets[column]));
+		return new InflaterInputStream(new BufferedInputStream(new BoundedStream(in, chunk.lengths[column])));
+	}
+
+	public void close() throws IOException {
+		file.close();
+	}
+
+	/**
+	 * Stops at the end of a column, so a damaged column reads as truncated
+	 */
+	static class BoundedStream extends InputStream {
+		private final InputStream in;
+		private long left;
+
+		BoundedStream(InputStream in, long length) {
+			this.in = in;
+			this.left = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (left <= 0) {
+				return -1;
+			}
+			left--;
+			return in.read();
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (left <= 0) {
+				return -1;
+			}
+			int count = in.read(b, off, (int) Math.min(len, left));
+			if (count > 0) {
+				left -= count;
+			}
+			return count;
+		}
+	}
+}
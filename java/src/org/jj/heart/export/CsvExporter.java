@@ -0,0 +1,46 @@
+package org.jj.heart.export;
+
+import java.io.IOException;
+
+import org.jj.heart.data.BeatStore;
+import org.jj.heart.data.Workout;
+
+/**
+ * One line per beat: work-out number, time, period, rate (valid beats only) and validity
+ * @author jjones
+ */
+public class CsvExporter extends WorkoutExporter {
+	static final String HEADER = "workout,time,time_ms,period_ms,bpm,valid\n";
+
+	private int count;
+
+	public CsvExporter(ChannelOutput out) {
+		super(out);
+	}
+
+	@Override
+	public void begin() throws IOException {
+		out.text(HEADER);
+	}
+
+	@Override
+	public void write(Workout w, long start) throws IOException {
+		count++;
+		BeatStore beats = w.getBeatStore();
+		for (int i = 0; i < beats.size(); i++) {
+			long time = beats.getTime(i);
+			int periode = beats.getPeriode(i);
+			boolean valid = beats.isValid(i);
+			out.number(count).text(",").time(start + time).text(",").number(time).text(",").number(periode).text(",");
+			if (valid) {
+				out.number(bpm(periode));
+			}
+			out.text(valid ? ",1\n" : ",0\n");
+		}
+	}
+
+	@Override
+	public void end() throws IOException {
+		out.flush();
+	}
+}
@@ -0,0 +1,44 @@
+package org.jj.heart.export;
+
+import java.io.IOException;
+
+import org.jj.heart.data.Workout;
+
+/**
+ * GPX 1.1: one track per work-out with the heart rate in the Garmin track point extension<br/>
+ * The device has no GPS: every point is at 0,0, which applications reading GPX accept but
+ * may show on a map.
+ * @author jjones
+ */
+public class GpxExporter extends WorkoutExporter {
+	public GpxExporter(ChannelOutput out) {
+		super(out);
+	}
+
+	@Override
+	public void begin() throws IOException {
+		out.text("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		out.text("<gpx version=\"1.1\" creator=\"Heart\" xmlns=\"http://www.topografix.com/GPX/1/1\"");
+		out.text(" xmlns:gpxtpx=\"http://www.garmin.com/xmlschemas/TrackPointExtension/v1\">\n");
+	}
+
+	@Override
+	public void write(Workout w, final long start) throws IOException {
+		out.text(" <trk>\n  <name>").text(escape(w.getTimeStamp().trim())).text("</name>\n  <trkseg>\n");
+		new Sampler(w.getBeatStore(), TcxExporter.SECOND) {
+			@Override
+			void point(long time, long bpm) throws IOException {
+				out.text("   <trkpt lat=\"0\" lon=\"0\"><time>").time(start + time)
+						.text("</time><extensions><gpxtpx:TrackPointExtension><gpxtpx:hr>").number(bpm)
+						.text("</gpxtpx:hr></gpxtpx:TrackPointExtension></extensions></trkpt>\n");
+			}
+		}.run(w.getFirstValid() + 1, w.getLastValid());
+		out.text("  </trkseg>\n </trk>\n");
+	}
+
+	@Override
+	public void end() throws IOException {
+		out.text("</gpx>\n");
+		out.flush();
+	}
+}
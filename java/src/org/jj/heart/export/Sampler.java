@@ -0,0 +1,51 @@
+package org.jj.heart.export;
+
+import java.io.IOException;
+
+import org.jj.heart.data.BeatStore;
+
+/**
+ * Averages the rate of the valid beats over fixed intervals, for formats made of one point per
+ * second or so: each interval holding valid beats gives a point at its last valid beat
+ * @author jjones
+ */
+abstract class Sampler {
+	private final BeatStore beats;
+	private final long interval;
+
+	Sampler(BeatStore beats, long interval) {
+		this.beats = beats;
+		this.interval = interval;
+	}
+
+	/**
+	 * @param time time of the point since boot
+	 * @param bpm average rate over the interval
+	 */
+	abstract void point(long time, long bpm) throws IOException;
+
+	/**
+	 * Goes over the beats from first to last, both included
+	 */
+	void run(int first, int last) throws IOException {
+		long slot = -1, time = 0, sum = 0;
+		int count = 0;
+		for (int i = Math.max(first, 1); i <= last; i++) {
+			if (!beats.isValid(i)) {
+				continue;
+			}
+			long beatSlot = beats.getTime(i) / interval;
+			if (beatSlot != slot && count > 0) {
+				point(time, Math.round(60000.0 * count / sum));
+				sum = count = 0;
+			}
+			slot = beatSlot;
+			time = beats.getTime(i);
+			sum += beats.getPeriode(i);
+			count++;
+		}
+		if (count > 0) {
+			point(time, Math.round(60000.0 * count / sum));
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package org.jj.heart.export;
+
+import java.io.IOException;
+
+import org.jj.heart.data.BeatStore;
+import org.jj.heart.data.Workout;
+
+/**
+ * Training Center XML: one activity per work-out with a single lap, heart rate only<br/>
+ * Training applications expect about one point per second: the rate of the valid beats is
+ * averaged over each second (the beats themselves are in the CSV and columnar exports).
+ * @author jjones
+ */
+public class TcxExporter extends WorkoutExporter {
+	static final int SECOND = 1000;
+
+	public TcxExporter(ChannelOutput out) {
+		super(out);
+	}
+
+	@Override
+	public void begin() throws IOException {
+		out.text("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		out.text("<TrainingCenterDatabase xmlns=\"http://www.garmin.com/xmlschemas/TrainingCenterDatabase/v2\">\n");
+		out.text(" <Activities>\n");
+	}
+
+	@Override
+	public void write(Workout w, final long start) throws IOException {
+		BeatStore beats = w.getBeatStore();
+		long first = beats.getTime(w.getFirstValid() + 1), last = beats.getTime(w.getLastValid());
+		out.text("  <Activity Sport=\"Other\">\n   <Id>").time(start + first).text("</Id>\n");
+		out.text("   <Lap StartTime=\"").time(start + first).text("\">\n");
+		out.text("    <TotalTimeSeconds>").number((last - first) / 1000).text("</TotalTimeSeconds>\n");
+		out.text("    <DistanceMeters>0</DistanceMeters>\n    <Calories>0</Calories>\n");
+		out.text("    <AverageHeartRateBpm><Value>").number(Math.round(60000 / w.getAverage()))
+				.text("</Value></AverageHeartRateBpm>\n");
+		out.text("    <MaximumHeartRateBpm><Value>").number(bpm(w.getMin())).text("</Value></MaximumHeartRateBpm>\n");
+		out.text("    <Intensity>Active</Intensity>\n    <TriggerMethod>Manual</TriggerMethod>\n");
+		out.text("    <Track>\n");
+		new Sampler(beats, SECOND) {
+			@Override
+			void point(long time, long bpm) throws IOException {
+				out.text("     <Trackpoint><Time>").time(start + time).text("</Time><HeartRateBpm><Value>")
+						.number(bpm).text("</Value></HeartRateBpm></Trackpoint>\n");
+			}
+		}.run(w.getFirstValid() + 1, w.getLastValid());
+		out.text("    </Track>\n   </Lap>\n  </Activity>\n");
+	}
+
+	@Override
+	public void end() throws IOException {
+		out.text(" </Activities>\n</TrainingCenterDatabase>\n");
+		out.flush();
+	}
+}
@@ -0,0 +1,66 @@
+package org.jj.heart.export;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Variable length integers: 7 bits per byte, low bits first, the high bit set on every byte
+ * but the last; signed values are zigzag encoded first so small negative values stay short
+ * @author jjones
+ */
+public class VarInt {
+	/**
+	 * @return a signed value mapped to 0, -1, 1, -2, 2... -> 0, 1, 2, 3, 4...
+	 */
+	public static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	public static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * Writes an unsigned value
+	 */
+	public static void write(OutputStream out, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) (value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	/**
+	 * Writes an unsigned value in a byte array
+	 * @return the position after the value
+	 */
+	public static int write(byte[] buffer, int position, long value) {
+		while ((value & ~0x7FL) != 0) {
+			buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buffer[position++] = (byte) value;
+		return position;
+	}
+
+	/**
+	 * Reads an unsigned value
+	 * @throws IOException at the end of the stream or on a value over 64 bits
+	 */
+	public static long read(InputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.read();
+			if (b < 0) {
+				throw new IOException("end of stream in a number");
+			}
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("number over 64 bits");
+	}
+}
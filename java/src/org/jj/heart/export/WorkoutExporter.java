@@ -0,0 +1,179 @@
+package org.jj.heart.export;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+
+import org.jj.heart.BatchProcessor;
+import org.jj.heart.DataAnalizer;
+import org.jj.heart.catalog.WorkoutCatalog;
+import org.jj.heart.data.Workout;
+
+/**
+ * Streams work-outs to a file in one of the export formats<br/>
+ * A file is written with begin, one write per work-out and end. Beats go to the output as they
+ * are read from the beat store, so memory does not grow with the size of the export.
+ * @author jjones
+ */
+public abstract class WorkoutExporter {
+	/**
+	 * The export formats and their file extension
+	 */
+	public enum Format {
+		CSV("csv"), TCX("tcx"), GPX("gpx"), COLUMNS(ColumnExporter.EXTENSION);
+
+		public final String extension;
+
+		Format(String extension) {
+			this.extension = extension;
+		}
+
+		/**
+		 * @return the format of a file name or format name, null if none matches
+		 */
+		public static Format of(String name) {
+			String extension = name.substring(name.lastIndexOf('.') + 1).toLowerCase();
+			for (Format format : values()) {
+				if (format.extension.equals(extension) || format.name().equalsIgnoreCase(extension)) {
+					return format;
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * @return a new exporter of this format writing to an output
+		 */
+		public WorkoutExporter create(ChannelOutput out) {
+			switch (this) {
+			case CSV:
+				return new CsvExporter(out);
+			case TCX:
+				return new TcxExporter(out);
+			case GPX:
+				return new GpxExporter(out);
+			default:
+				return new ColumnExporter(out);
+			}
+		}
+	}
+
+	protected final ChannelOutput out;
+
+	protected WorkoutExporter(ChannelOutput out) {
+		this.out = out;
+	}
+
+	/**
+	 * Writes what comes before the work-outs
+	 */
+	public abstract void begin() throws IOException;
+
+	/**
+	 * Writes a work-out
+	 * @param w a validated work-out
+	 * @param start the time of its boot in ms since 1970: the day of the log and the time of
+	 *        the header (see start)
+	 */
+	public abstract void write(Workout w, long start) throws IOException;
+
+	/**
+	 * Writes what comes after the work-outs and flushes, leaving the output open
+	 */
+	public abstract void end() throws IOException;
+
+	/**
+	 * @param day the day of the log as yyyyMMdd
+	 * @param w a work-out of the log
+	 * @return the time the device booted: the header only gives the time of day (see Workout.setHeader),
+	 *         midnight if it gives none
+	 */
+	public static long start(int day, Workout w) {
+		Date begin = w.getBegin();
+		if (begin.getTime() == 0) {
+			// headers without milliseconds are not parsed by the work-out
+			try {
+				begin = new SimpleDateFormat("H:m:s").parse(w.getTimeStamp().trim());
+			} catch (ParseException e) {
+			}
+		}
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTime(begin);
+		int hour = calendar.get(Calendar.HOUR_OF_DAY), minute = calendar.get(Calendar.MINUTE);
+		int second = calendar.get(Calendar.SECOND), ms = calendar.get(Calendar.MILLISECOND);
+		calendar.clear();
+		calendar.set(day / 10000, day / 100 % 100 - 1, day % 100, hour, minute, second);
+		calendar.set(Calendar.MILLISECOND, ms);
+		return calendar.getTimeInMillis();
+	}
+
+	/**
+	 * Exports the work-outs of a log
+	 * @param workouts the validated work-outs
+	 * @param day the day of the log as yyyyMMdd
+	 * @param target the file written
+	 * @param format how it is written
+	 * @throws IOException
+	 */
+	public static void export(List<Workout> workouts, int day, File target, Format format) throws IOException {
+		FileOutputStream file = new FileOutputStream(target);
+		ChannelOutput out = new ChannelOutput(file.getChannel());
+		try {
+			WorkoutExporter exporter = format.create(out);
+			exporter.begin();
+			for (Workout w : workouts) {
+				if (w.hasValidBeat() && w.getTotalBeats() > 0) {
+					exporter.write(w, start(day, w));
+				}
+			}
+			exporter.end();
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Exports every log of a directory tree, or a single log, one file per log
+	 * @param source a log or the root of a log directory tree
+	 * @param targetDir where the exports go, null to put each next to its log
+	 * @param format how they are written
+	 * @return the exports written
+	 * @throws IOException on the first log that cannot be read or exported
+	 */
+	public static List<File> export(File source, File targetDir, Format format) throws IOException {
+		List<File> logs = new ArrayList<File>();
+		if (source.isDirectory()) {
+			BatchProcessor.listLogs(source, logs);
+		} else {
+			logs.add(source);
+		}
+		List<File> written = new ArrayList<File>();
+		for (File log : logs) {
+			String name = log.getName().replaceAll("\\.(LOG|log)$", "") + "." + format.extension;
+			File target = new File(targetDir != null ? targetDir : log.getParentFile(), name);
+			export(DataAnalizer.loadLog(log), WorkoutCatalog.day(log), target, format);
+			written.add(target);
+		}
+		return written;
+	}
+
+	/**
+	 * @return the rate of a period in bpm
+	 */
+	static long bpm(int periode) {
+		return Math.round(60000.0 / periode);
+	}
+
+	/**
+	 * @return text with the XML special characters replaced by entities
+	 */
+	static String escape(String text) {
+		return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+	}
+}
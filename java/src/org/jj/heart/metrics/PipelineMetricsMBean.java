@@ -0,0 +1,31 @@
+package org.jj.heart.metrics;
+
+/**
+ * JMX view of the volumes going through the pipeline
+ * @author jjones
+ */
+public interface PipelineMetricsMBean {
+	/** bytes of logs read */
+	long getBytesRead();
+
+	/** beats read from logs */
+	long getBeatsParsed();
+
+	/** beats validated */
+	long getBeatsValidated();
+
+	/** invalid beats among those validated */
+	long getInvalidBeats();
+
+	/** invalid beats over beats validated, 0 to 1 */
+	double getInvalidRatio();
+
+	/** segments appended to a session (power interruptions) */
+	long getMergedSegments();
+
+	/** the stage latencies as lines of text */
+	String[] getSummary();
+
+	/** starts counting again */
+	void reset();
+}
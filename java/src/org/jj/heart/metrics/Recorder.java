@@ -0,0 +1,20 @@
+package org.jj.heart.metrics;
+
+/**
+ * Where the timed operations go besides the histograms: JDK Flight Recorder when the JVM has it
+ * @author jjones
+ */
+interface Recorder {
+	/**
+	 * @return a handle for end, taken when the operation starts
+	 */
+	Object begin();
+
+	/**
+	 * @param handle what begin gave
+	 * @param stage the stage timed
+	 * @param file the file worked on, or null
+	 * @param beats the beats worked on, 0 if not counted
+	 */
+	void end(Object handle, Stage stage, String file, long beats);
+}
@@ -0,0 +1,30 @@
+package org.jj.heart.metrics;
+
+/**
+ * The steps of reading and drawing a log that are timed
+ * @author jjones
+ */
+public enum Stage {
+	/** opening a log: everything up to its first work-out ready to graph */
+	LOAD("load"),
+	/** reading the beats of a log (LogParser) */
+	PARSE("parse"),
+	/** gathering the segments of the sessions */
+	MERGE("merge"),
+	/** Workout.validate */
+	VALIDATE("validate"),
+	/** drawing a graph */
+	RENDER("render"),
+	/** encoding an image to its file */
+	ENCODE("encode");
+
+	private final String label;
+
+	Stage(String label) {
+		this.label = label;
+	}
+
+	public String getLabel() {
+		return label;
+	}
+}
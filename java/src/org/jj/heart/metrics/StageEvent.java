@@ -0,0 +1,48 @@
+package org.jj.heart.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event of a timed stage, shown under Heart in the recording<br/>
+ * The only class using jdk.jfr (Java 11): PipelineMetrics loads it by name and does without
+ * on JVMs that do not have it.
+ * @author jjones
+ */
+@Name("org.jj.heart.Stage")
+@Label("Pipeline Stage")
+@Category("Heart")
+@StackTrace(false)
+public class StageEvent extends Event {
+	@Label("Stage")
+	String stage;
+	@Label("File")
+	String file;
+	@Label("Beats")
+	long beats;
+
+	/**
+	 * Records the events when the recording asks for them
+	 */
+	public static class JfrRecorder implements Recorder {
+		public Object begin() {
+			StageEvent event = new StageEvent();
+			event.begin();
+			return event;
+		}
+
+		public void end(Object handle, Stage stage, String file, long beats) {
+			StageEvent event = (StageEvent) handle;
+			event.end();
+			if (event.shouldCommit()) {
+				event.stage = stage.getLabel();
+				event.file = file;
+				event.beats = beats;
+				event.commit();
+			}
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package org.jj.heart.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histogram of a stage: buckets of powers of two microseconds, updated without locks
+ * by any number of threads
+ * @author jjones
+ */
+public class StageMetrics implements StageMetricsMBean {
+	/** bucket b counts the operations up to 2^b us: up to 2^40 us, about 12 days */
+	static final int BUCKETS = 41;
+
+	private final Stage stage;
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong(), total = new AtomicLong(), max = new AtomicLong();
+	private volatile String slowestFile;
+
+	StageMetrics(Stage stage) {
+		this.stage = stage;
+	}
+
+	public Stage getStage() {
+		return stage;
+	}
+
+	/**
+	 * @param nanos how long an operation took
+	 * @param file the file worked on, or null
+	 */
+	void record(long nanos, String file) {
+		long micros = Math.max(nanos / 1000, 1);
+		int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros - 1));
+		buckets.incrementAndGet(bucket);
+		count.incrementAndGet();
+		total.addAndGet(nanos);
+		long longest;
+		while (nanos > (longest = max.get())) {
+			if (max.compareAndSet(longest, nanos)) {
+				slowestFile = file;
+				break;
+			}
+		}
+	}
+
+	void reset() {
+		for (int b = 0; b < BUCKETS; b++) {
+			buckets.set(b, 0);
+		}
+		count.set(0);
+		total.set(0);
+		max.set(0);
+		slowestFile = null;
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public double getTotalMillis() {
+		return total.get() / 1e6;
+	}
+
+	public double getMeanMillis() {
+		long n = count.get();
+		return n == 0 ? 0 : total.get() / 1e6 / n;
+	}
+
+	public double getMaxMillis() {
+		return max.get() / 1e6;
+	}
+
+	public double getMedianMillis() {
+		return percentile(0.5);
+	}
+
+	public double getP99Millis() {
+		return percentile(0.99);
+	}
+
+	public String getSlowestFile() {
+		return slowestFile;
+	}
+
+	/**
+	 * @param fraction from 0 to 1
+	 * @return the upper bound of the bucket holding that fraction of the operations, in ms
+	 */
+	public double percentile(double fraction) {
+		long n = count.get(), seen = 0;
+		if (n == 0) {
+			return 0;
+		}
+		for (int b = 0; b < BUCKETS; b++) {
+			seen += buckets.get(b);
+			if (seen >= Math.ceil(fraction * n)) {
+				// never above the slowest operation
+				return Math.min((1L << b) / 1e3, getMaxMillis());
+			}
+		}
+		return getMaxMillis();
+	}
+}
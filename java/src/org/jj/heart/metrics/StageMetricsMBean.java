@@ -0,0 +1,23 @@
+package org.jj.heart.metrics;
+
+/**
+ * JMX view of the latencies of a stage, in milliseconds
+ * @author jjones
+ */
+public interface StageMetricsMBean {
+	long getCount();
+
+	double getTotalMillis();
+
+	double getMeanMillis();
+
+	double getMaxMillis();
+
+	/** upper bound of the median (histogram buckets double at each step) */
+	double getMedianMillis();
+
+	double getP99Millis();
+
+	/** file of the slowest operation, if known */
+	String getSlowestFile();
+}
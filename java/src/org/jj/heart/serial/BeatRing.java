@@ -0,0 +1,67 @@
+package org.jj.heart.serial;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jj.heart.data.IncrementalValidator;
+
+/**
+ * Lock free ring buffer of beat times between one reader thread and one consumer thread
+ * @author jjones
+ */
+public class BeatRing {
+	private final long[] times;
+	private final int mask;
+	/** next position to read, only moved by the consumer */
+	private final AtomicLong head = new AtomicLong();
+	/** next position to write, only moved by the producer */
+	private final AtomicLong tail = new AtomicLong();
+
+	/**
+	 * @param capacity rounded up to a power of two
+	 */
+	public BeatRing(int capacity) {
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		times = new long[size];
+		mask = size - 1;
+	}
+
+	public int getCapacity() {
+		return times.length;
+	}
+
+	/**
+	 * Producer side: adds a beat unless the ring is full
+	 * @param time the time since the Arduino booted
+	 * @return false when the consumer is too far behind
+	 */
+	public boolean offer(long time) {
+		long t = tail.get();
+		if (t - head.get() == times.length) {
+			return false;
+		}
+		times[(int) t & mask] = time;
+		// publishes the time written above
+		tail.lazySet(t + 1);
+		return true;
+	}
+
+	/**
+	 * Consumer side: hands the waiting beats to a validator
+	 * @param validator receives the beats in order
+	 * @param max most beats taken
+	 * @return how many beats were taken
+	 */
+	public int drainTo(IncrementalValidator validator, int max) {
+		long h = head.get();
+		int count = (int) Math.min(max, tail.get() - h);
+		for (int i = 0; i < count; i++) {
+			validator.add(times[(int) (h + i) & mask]);
+		}
+		head.lazySet(h + count);
+		return count;
+	}
+
+	public int size() {
+		return (int) (tail.get() - head.get());
+	}
+}
@@ -0,0 +1,35 @@
+package org.jj.heart.serial;
+
+import java.io.File;
+import java.util.List;
+
+import org.jj.heart.data.Workout;
+
+/**
+ * Follows a bulk download of the SD card (see SdCardClient.downloadAll)
+ * @author jjones
+ */
+public interface DownloadListener {
+	/**
+	 * Bytes of a file received so far, called after each block
+	 */
+	void progress(RemoteFile file, long received);
+
+	/**
+	 * The file was already downloaded
+	 */
+	void skipped(RemoteFile file);
+
+	/**
+	 * A file was fully downloaded and parsed; called from a parser thread
+	 * while the next file is being transferred
+	 * @param file the downloaded log
+	 * @param workouts the validated work-outs of the log
+	 */
+	void downloaded(File file, List<Workout> workouts);
+
+	/**
+	 * A file could not be downloaded or parsed
+	 */
+	void failed(RemoteFile file, Exception e);
+}
@@ -0,0 +1,276 @@
+package org.jj.heart.serial;
+
+import gnu.io.CommPortIdentifier;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jj.heart.data.Workout;
+
+/**
+ * Receives the beats of many monitors at once: serial ports and TCP connections (serial to
+ * network bridges or stand-ins simulating monitors)<br/>
+ * Each device is a LiveSession: its reader thread parses the lines into the lock free ring of
+ * the device. When beats are waiting, the device is scheduled once on the dispatcher pool,
+ * which validates a batch of them into the work-out of the device, tells the listener and
+ * schedules the device again if more came meanwhile. A device is only ever validated by one
+ * dispatcher thread at a time, and a few threads serve many devices.
+ * When the dispatchers fall behind (or the listener is slow) the ring of a device fills up and
+ * its reader waits, leaving the bytes in the serial port or socket buffer: a TCP sender is
+ * then held back by the connection itself, nothing is dropped.
+ * @author jjones
+ */
+public class IngestionHub {
+	/** most beats validated at once for a device, so the others get their turn */
+	static final int BATCH = 4096;
+	/** how long stop waits for the dispatchers, in ms */
+	static final long STOP_TIMEOUT = 1000;
+
+	/**
+	 * Told what the dispatchers do, on a dispatcher thread: the work-out of a device may be
+	 * read in updated, not elsewhere without copying what is needed
+	 */
+	public interface Listener {
+		/**
+		 * @param device the device that received beats
+		 * @param from position of the first beat validated
+		 * @param to position after the last beat validated
+		 */
+		void updated(Device device, int from, int to);
+
+		/**
+		 * The stream of a device ended and all its beats were validated
+		 */
+		void ended(Device device);
+	}
+
+	/**
+	 * A monitor streaming its beats to the hub
+	 */
+	public class Device implements Runnable {
+		private final LiveSession session;
+		private final AtomicBoolean scheduled = new AtomicBoolean();
+		private volatile long beats;
+
+		Device(SerialLink link) {
+			session = new LiveSession(link);
+			session.setSignal(new Runnable() {
+				public void run() {
+					schedule();
+				}
+			});
+		}
+
+		public String getName() {
+			return session.getName();
+		}
+
+		/**
+		 * @return the work-out receiving the beats, see Listener
+		 */
+		public Workout getWorkout() {
+			return session.getWorkout();
+		}
+
+		/**
+		 * @return how many beats were validated
+		 */
+		public long getBeats() {
+			return beats;
+		}
+
+		/**
+		 * @return how many beats are waiting for a dispatcher
+		 */
+		public int getWaiting() {
+			return session.getWaiting();
+		}
+
+		/**
+		 * Queues the device on the dispatchers unless it already is
+		 */
+		void schedule() {
+			if (scheduled.compareAndSet(false, true)) {
+				try {
+					dispatchers.execute(this);
+				} catch (RuntimeException e) {
+					// the hub is stopping
+					scheduled.set(false);
+				}
+			}
+		}
+
+		/**
+		 * Dispatcher side: validates a batch of beats
+		 */
+		public void run() {
+			boolean finished;
+			try {
+				int from = session.getWorkout().getBeatStore().size();
+				int count = session.update(BATCH);
+				finished = session.isFinished();
+				if (count > 0) {
+					beats += count;
+					total.addAndGet(count);
+					listener.updated(this, from, from + count);
+				}
+			} finally {
+				scheduled.set(false);
+			}
+			if (finished) {
+				if (devices.remove(this)) {
+					session.stop();
+					listener.ended(this);
+				}
+			} else if (session.getWaiting() > 0 || session.isEnded()) {
+				// more came during the batch: the reader did not schedule since this was queued
+				schedule();
+			}
+		}
+
+		@Override
+		public String toString() {
+			return getName() + "  " + beats + " beats, " + getWaiting() + " waiting";
+		}
+	}
+
+	private final ExecutorService dispatchers;
+	private final Listener listener;
+	private final List<Device> devices = new CopyOnWriteArrayList<Device>();
+	private final AtomicLong total = new AtomicLong();
+	private ServerSocket server;
+	private volatile boolean running = true;
+
+	/**
+	 * @param threads how many dispatchers validate the beats
+	 * @param listener told about the beats validated
+	 */
+	public IngestionHub(int threads, Listener listener) {
+		this.listener = listener;
+		final AtomicInteger count = new AtomicInteger();
+		dispatchers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "beat dispatcher " + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Starts receiving the beats of a monitor
+	 * @return the device, which leaves the hub once its stream ends
+	 */
+	public Device add(SerialLink link) throws IOException {
+		Device device = new Device(link);
+		devices.add(device);
+		try {
+			device.session.start();
+		} catch (IOException e) {
+			devices.remove(device);
+			link.close();
+			throw e;
+		}
+		return device;
+	}
+
+	/**
+	 * Adds every serial port of the machine
+	 * @return the ports that could not be opened, with why
+	 */
+	public List<String> addPorts() {
+		List<String> failed = new ArrayList<String>();
+		for (CommPortIdentifier port : PortLink.discover()) {
+			try {
+				add(new PortLink(port));
+			} catch (IOException e) {
+				failed.add(port.getName() + ": " + e.getMessage());
+			}
+		}
+		return failed;
+	}
+
+	/**
+	 * Accepts TCP connections, each one a device, on a thread of its own
+	 * @param port the port listened to, 0 for any free port (see getPort)
+	 */
+	public synchronized void listen(int port) throws IOException {
+		server = new ServerSocket(port);
+		final ServerSocket socket = server;
+		Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				while (running) {
+					try {
+						Socket connection = socket.accept();
+						try {
+							add(new SocketLink(connection));
+						} catch (IOException e) {
+							connection.close();
+						}
+					} catch (IOException e) {
+						// closed by stop, or a connection that failed while accepted
+					}
+				}
+			}
+		}, "hub acceptor " + server.getLocalPort());
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * @return the TCP port listened to, -1 if none
+	 */
+	public synchronized int getPort() {
+		return server == null ? -1 : server.getLocalPort();
+	}
+
+	/**
+	 * @return the devices streaming now
+	 */
+	public List<Device> getDevices() {
+		return devices;
+	}
+
+	/**
+	 * @return how many beats were validated over all devices
+	 */
+	public long getBeats() {
+		return total.get();
+	}
+
+	/**
+	 * Closes the connections and the TCP port, and stops the dispatchers
+	 */
+	public void stop() {
+		running = false;
+		synchronized (this) {
+			if (server != null) {
+				try {
+					server.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		for (Device device : devices) {
+			device.session.stop();
+		}
+		devices.clear();
+		dispatchers.shutdown();
+		try {
+			dispatchers.awaitTermination(STOP_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,253 @@
+package org.jj.heart.serial;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.locks.LockSupport;
+
+import org.jj.heart.data.BeatValidator;
+import org.jj.heart.data.IncrementalValidator;
+import org.jj.heart.data.Workout;
+
+/**
+ * Live beats from the monitor in debug mode ("beat: ms" lines)<br/>
+ * A reader thread parses the lines into a ring buffer; the consumer (the window timer or the
+ * dispatcher of IngestionHub) calls update to validate the new beats incrementally. When the
+ * consumer falls behind the reader waits, leaving the bytes in the serial port buffer.
+ * @author jjones
+ */
+public class LiveSession implements Runnable {
+	/** start of the debug line the firmware prints for each beat */
+	static final byte[] BEAT_PREFIX = { 'b', 'e', 'a', 't', ':', ' ' };
+	static final String DEBUG_ON = "debug mode on";
+	static final String DEBUG_OFF = "debug mode off";
+	static final int RING_SIZE = 1 << 14;
+	static final int LINE_LENGTH = 64;
+	/** how long stop waits for the reader thread, in ms */
+	static final long STOP_TIMEOUT = 1000;
+
+	private final SerialLink link;
+	private final BeatRing ring = new BeatRing(RING_SIZE);
+	private final IncrementalValidator validator;
+	private final Workout workout = new Workout();
+	private OutputStream commands;
+	private Thread reader;
+	private volatile boolean running;
+	/** the reader reached the end of the stream */
+	private volatile boolean ended;
+	private boolean finished;
+	/** debug mode was switched on by this session and must be switched off at the end */
+	private volatile boolean restoreDebug;
+	private boolean debugWasOn;
+	private volatile IOException error;
+	/** told by the reader when beats are waiting or the stream ended, null when polled */
+	private volatile Runnable signal;
+
+	public LiveSession(SerialLink link) {
+		this(link, new BeatValidator());
+	}
+
+	public LiveSession(SerialLink link, BeatValidator beatValidator) {
+		this.link = link;
+		this.validator = new IncrementalValidator(workout, beatValidator);
+	}
+
+	public String getName() {
+		return link.getName();
+	}
+
+	/**
+	 * @return the work-out receiving the beats, only to be used by the thread calling update
+	 */
+	public Workout getWorkout() {
+		return workout;
+	}
+
+	/**
+	 * Has the reader thread run a task (quickly, it holds up reading) whenever it leaves beats
+	 * in the ring or reaches the end of the stream, for consumers not polling like the window timer
+	 * @param signal what to run, set before start
+	 */
+	public void setSignal(Runnable signal) {
+		this.signal = signal;
+	}
+
+	/**
+	 * Switches the monitor to debug mode and starts reading
+	 * @throws IOException
+	 */
+	public void start() throws IOException {
+		commands = link.getOutputStream();
+		running = true;
+		reader = new Thread(this, "beats " + link.getName());
+		reader.setDaemon(true);
+		reader.start();
+		command("d");
+	}
+
+	/**
+	 * Validates the beats received since the last call
+	 * @return how many beats were added
+	 */
+	public int update() {
+		return update(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Validates at most a number of the beats received since the last call
+	 * @param max most beats validated
+	 * @return how many beats were added
+	 */
+	public int update(int max) {
+		int count = ring.drainTo(validator, max);
+		if (ended && ring.size() == 0 && !finished) {
+			validator.finish();
+			finished = true;
+		}
+		return count;
+	}
+
+	/**
+	 * @return how many beats are waiting for update
+	 */
+	public int getWaiting() {
+		return ring.size();
+	}
+
+	/**
+	 * @return true once the stream ended, with or without beats still waiting
+	 */
+	public boolean isEnded() {
+		return ended;
+	}
+
+	/**
+	 * @return true once every beat of the stream has been validated
+	 */
+	public boolean isFinished() {
+		return finished;
+	}
+
+	/**
+	 * @return the read failure that ended the session, if any
+	 */
+	public IOException getError() {
+		return error;
+	}
+
+	/**
+	 * Stops reading, puts the monitor back out of debug mode and releases the link
+	 */
+	public void stop() {
+		running = false;
+		if (restoreDebug) {
+			try {
+				command("d");
+			} catch (IOException e) {
+			}
+		}
+		link.close();
+		if (reader != null) {
+			reader.interrupt();
+			try {
+				reader.join(STOP_TIMEOUT);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void command(String command) throws IOException {
+		synchronized (commands) {
+			commands.write((command + "\n").getBytes("US-ASCII"));
+			commands.flush();
+		}
+	}
+
+	/**
+	 * Reader thread: parses lines without creating objects for the beat lines
+	 */
+	public void run() {
+		byte[] buffer = new byte[512];
+		byte[] line = new byte[LINE_LENGTH];
+		int length = 0;
+		try {
+			InputStream in = link.getInputStream();
+			int read;
+			while (running && (read = in.read(buffer)) >= 0) {
+				for (int i = 0; i < read; i++) {
+					byte c = buffer[i];
+					if (c == '\n' || c == '\r') {
+						line(line, length);
+						length = 0;
+					} else if (length < LINE_LENGTH) {
+						line[length++] = c;
+					}
+				}
+				if (ring.size() > 0) {
+					signal();
+				}
+			}
+		} catch (IOException e) {
+			if (running) {
+				error = e;
+			}
+		} finally {
+			ended = true;
+			signal();
+		}
+	}
+
+	private void signal() {
+		Runnable task = signal;
+		if (task != null) {
+			task.run();
+		}
+	}
+
+	private void line(byte[] line, int length) throws IOException {
+		if (length == 0) {
+			return;
+		}
+		long time = parseBeat(line, length);
+		if (time >= 0) {
+			// back pressure: wait for the consumer rather than dropping beats
+			while (!ring.offer(time) && running) {
+				signal();
+				LockSupport.parkNanos(1000000);
+			}
+			return;
+		}
+		String text = new String(line, 0, length, "US-ASCII").trim();
+		if (text.equals(DEBUG_OFF)) {
+			// it was already on before the session toggled it
+			debugWasOn = true;
+			command("d");
+		} else if (text.equals(DEBUG_ON)) {
+			restoreDebug = !debugWasOn;
+		}
+	}
+
+	/**
+	 * @return the time of a "beat: ms" line or -1 for any other line
+	 */
+	static long parseBeat(byte[] line, int length) {
+		if (length <= BEAT_PREFIX.length) {
+			return -1;
+		}
+		for (int i = 0; i < BEAT_PREFIX.length; i++) {
+			if (line[i] != BEAT_PREFIX[i]) {
+				return -1;
+			}
+		}
+		long time = 0;
+		for (int i = BEAT_PREFIX.length; i < length; i++) {
+			int digit = line[i] - '0';
+			if (digit < 0 || digit > 9 || time > (Long.MAX_VALUE - digit) / 10) {
+				return -1;
+			}
+			time = time * 10 + digit;
+		}
+		return time;
+	}
+}
@@ -0,0 +1,77 @@
+package org.jj.heart.serial;
+
+import gnu.io.CommPortIdentifier;
+import gnu.io.PortInUseException;
+import gnu.io.SerialPort;
+import gnu.io.UnsupportedCommOperationException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+
+/**
+ * Link over a real serial port, with the settings of the firmware (57600 bauds 8N1)
+ * @author jjones
+ */
+public class PortLink implements SerialLink {
+	static final int BAUD_RATE = 57600;
+	/** how long to wait for another application to release the port */
+	static final int OPEN_TIMEOUT = 2000;
+
+	private final SerialPort port;
+
+	/**
+	 * Opens the port
+	 * @param identifier a serial port found by discover
+	 * @throws IOException when the port is busy or cannot be configured
+	 */
+	public PortLink(CommPortIdentifier identifier) throws IOException {
+		try {
+			port = (SerialPort) identifier.open("Heart rate data", OPEN_TIMEOUT);
+		} catch (PortInUseException e) {
+			throw new IOException(identifier.getName() + " is in use");
+		}
+		try {
+			port.setSerialPortParams(BAUD_RATE, SerialPort.DATABITS_8, SerialPort.STOPBITS_1, SerialPort.PARITY_NONE);
+		} catch (UnsupportedCommOperationException e) {
+			port.close();
+			throw new IOException(identifier.getName() + " does not support " + BAUD_RATE + " bauds");
+		}
+	}
+
+	/**
+	 * @return the serial ports of the machine
+	 */
+	public static List<CommPortIdentifier> discover() {
+		List<CommPortIdentifier> serialPorts = new ArrayList<CommPortIdentifier>();
+		@SuppressWarnings("unchecked")
+		Enumeration<CommPortIdentifier> allPorts = CommPortIdentifier.getPortIdentifiers();
+		for (CommPortIdentifier port : Collections.list(allPorts)) {
+			// filter for serial ports
+			if (port.getPortType() == CommPortIdentifier.PORT_SERIAL) {
+				serialPorts.add(port);
+			}
+		}
+		return serialPorts;
+	}
+
+	public String getName() {
+		return port.getName();
+	}
+
+	public InputStream getInputStream() throws IOException {
+		return port.getInputStream();
+	}
+
+	public OutputStream getOutputStream() throws IOException {
+		return port.getOutputStream();
+	}
+
+	public void close() {
+		port.close();
+	}
+}
@@ -0,0 +1,21 @@
+package org.jj.heart.serial;
+
+/**
+ * A file on the SD card of the monitor, as listed by the "l" command
+ * @author jjones
+ */
+public class RemoteFile {
+	public final String name;
+	/** size in bytes */
+	public final long size;
+
+	public RemoteFile(String name, long size) {
+		this.name = name;
+		this.size = size;
+	}
+
+	@Override
+	public String toString() {
+		return name + " " + size;
+	}
+}
@@ -0,0 +1,165 @@
+package org.jj.heart.serial;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.jj.heart.data.BeatStore;
+import org.jj.heart.data.LogParser;
+import org.jj.heart.data.Workout;
+
+/**
+ * Stand-in for the monitor in debug mode: replays the beats of a log as "beat: ms" lines,
+ * in real time or faster. Commands written to it are ignored.
+ * Work-outs after the first one continue from the time the previous one ended.
+ * @author jjones
+ */
+public class ReplayLink implements SerialLink {
+	private final File log;
+	private final InputStream logStream;
+	private final LogParser parser;
+	/** replay speed, 1 is real time and 0 or less is as fast as possible */
+	private final double speed;
+	private volatile boolean closed;
+
+	private final InputStream in = new ReplayStream();
+	private final OutputStream out = new OutputStream() {
+		@Override
+		public void write(int b) {
+		}
+	};
+
+	/**
+	 * @param log the log to replay
+	 * @param speed 1 for real time, 10 for ten times faster, 0 for no waiting at all
+	 * @throws IOException
+	 */
+	public ReplayLink(File log, double speed) throws IOException {
+		this.log = log;
+		this.speed = speed;
+		logStream = new FileInputStream(log);
+		parser = new LogParser(logStream);
+	}
+
+	public String getName() {
+		return "replay " + log.getName();
+	}
+
+	public InputStream getInputStream() {
+		return in;
+	}
+
+	public OutputStream getOutputStream() {
+		return out;
+	}
+
+	public void close() {
+		closed = true;
+		try {
+			logStream.close();
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * Produces the lines one beat at a time, waiting until each beat is due
+	 */
+	private class ReplayStream extends InputStream {
+		private final byte[] line = new byte[32];
+		private int pos, length;
+		private BeatStore beats;
+		private int next;
+		private long offset, last;
+		private long firstTime = -1, startNanos;
+
+		@Override
+		public int read() throws IOException {
+			if (pos == length && !nextLine()) {
+				return -1;
+			}
+			return line[pos++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (pos == length && !nextLine()) {
+				return -1;
+			}
+			int count = Math.min(len, length - pos);
+			System.arraycopy(line, pos, b, off, count);
+			pos += count;
+			return count;
+		}
+
+		@Override
+		public int available() {
+			return length - pos;
+		}
+
+		private boolean nextLine() throws IOException {
+			while (!closed && (beats == null || next == beats.size())) {
+				Workout workout = parser.next();
+				if (workout == null) {
+					return false;
+				}
+				offset = last;
+				beats = workout.getBeatStore();
+				next = 0;
+			}
+			if (closed) {
+				return false;
+			}
+			long time = beats.getTime(next++) + offset;
+			last = time;
+			waitFor(time);
+			length = format(time);
+			pos = 0;
+			return true;
+		}
+
+		private void waitFor(long time) throws IOException {
+			if (firstTime < 0) {
+				firstTime = time;
+				startNanos = System.nanoTime();
+			}
+			if (speed <= 0) {
+				return;
+			}
+			long due = startNanos + (long) ((time - firstTime) * 1e6 / speed);
+			long wait;
+			while (!closed && (wait = due - System.nanoTime()) > 0) {
+				try {
+					Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("replay interrupted");
+				}
+			}
+		}
+
+		/**
+		 * Writes "beat: time\r\n" like the firmware in debug mode
+		 */
+		private int format(long time) {
+			int n = LiveSession.BEAT_PREFIX.length;
+			System.arraycopy(LiveSession.BEAT_PREFIX, 0, line, 0, n);
+			int digits = 1;
+			for (long rest = time / 10; rest > 0; rest /= 10) {
+				digits++;
+			}
+			for (int d = digits - 1; d >= 0; d--) {
+				line[n + d] = (byte) ('0' + time % 10);
+				time /= 10;
+			}
+			n += digits;
+			line[n++] = '\r';
+			line[n++] = '\n';
+			return n;
+		}
+	}
+}
@@ -0,0 +1,355 @@
+package org.jj.heart.serial;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.jj.heart.DataAnalizer;
+import org.jj.heart.data.Workout;
+
+/**
+ * Downloads the logs of the SD card with the firmware commands "l" (list) and "o file [offset]" (dump)<br/>
+ * The received bytes go straight to a ".part" file and through a pipe to a parser thread, so a log
+ * is parsed while it arrives and handed to the listener while the next one is transferred.
+ * A file already downloaded with the same size is skipped, and an interrupted download
+ * resumes from the size of its ".part" file.
+ * @author jjones
+ */
+public class SdCardClient {
+	/** silence that ends a listing (firmware without the empty line end marker), in ms */
+	static final long LIST_TIMEOUT = 2000;
+	/** silence after which a transfer is considered interrupted, in ms */
+	static final long TRANSFER_TIMEOUT = 3000;
+	/** how often the link is polled for data, in ms */
+	static final long POLL_INTERVAL = 5;
+	static final int PIPE_SIZE = 1 << 16;
+	static final String PART = ".part";
+	/** the firmware answer to a dump request for a missing file */
+	static final String OPEN_FAILED = "couldn't open ";
+	/** attempts per file, each one resuming the last */
+	static final int ATTEMPTS = 3;
+	/** files worth downloading */
+	static final String LOG_PATTERN = ".*\\.(LOG|log)";
+
+	private final InputStream in;
+	private final OutputStream out;
+
+	/**
+	 * @param link a link to the monitor; it must not be in debug mode
+	 * @throws IOException
+	 */
+	public SdCardClient(SerialLink link) throws IOException {
+		in = link.getInputStream();
+		out = link.getOutputStream();
+	}
+
+	/**
+	 * Lists the files of the SD card
+	 * @return the files with their size (directories are left out)
+	 * @throws IOException
+	 */
+	public List<RemoteFile> list() throws IOException {
+		drain();
+		command("l");
+		List<RemoteFile> files = new ArrayList<RemoteFile>();
+		String line;
+		// lines look like "20110507.LOG  123456" and directories like "LOGS/"
+		while (null != (line = readLine(LIST_TIMEOUT)) && line.length() > 0) {
+			String[] parts = line.trim().split("\\s+");
+			if (parts.length == 2 && parts[1].matches("\\d+") && !parts[0].endsWith("/")) {
+				files.add(new RemoteFile(parts[0], Long.parseLong(parts[1])));
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * Downloads every log of the card that is not already in a directory
+	 * @param dir where the logs are saved
+	 * @param listener told about each file; its downloaded method runs on parser threads
+	 * @return how many files were downloaded
+	 * @throws IOException when the card cannot be listed
+	 */
+	public int downloadAll(File dir, DownloadListener listener) throws IOException {
+		int downloaded = 0;
+		ExecutorService parsers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		try {
+			for (RemoteFile remote : list()) {
+				if (!remote.name.matches(LOG_PATTERN)) {
+					continue;
+				}
+				File target = new File(dir, remote.name);
+				if (target.isFile() && target.length() == remote.size) {
+					listener.skipped(remote);
+					continue;
+				}
+				for (int attempt = 1; attempt <= ATTEMPTS; attempt++) {
+					try {
+						download(remote, target, parsers, listener);
+						downloaded++;
+						break;
+					} catch (IOException e) {
+						if (attempt == ATTEMPTS) {
+							listener.failed(remote, e);
+						}
+					}
+				}
+			}
+		} finally {
+			parsers.shutdown();
+			try {
+				parsers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return downloaded;
+	}
+
+	/**
+	 * Downloads one file, resuming its ".part" file if there is one, while a parser reads it
+	 * @param remote the file on the card
+	 * @param target where the file is saved
+	 * @param parsers runs the parsing of the file
+	 * @param listener told about the progress and given the parsed work-outs
+	 * @throws IOException when the transfer is interrupted (the ".part" file is kept)
+	 */
+	public void download(RemoteFile remote, final File target, ExecutorService parsers,
+			final DownloadListener listener) throws IOException {
+		final File part = new File(target.getPath() + PART);
+		long offset = part.isFile() ? part.length() : 0;
+		if (offset > remote.size) {
+			part.delete();
+			offset = 0;
+		}
+
+		PipedInputStream pipe = new PipedInputStream(PIPE_SIZE);
+		PipedOutputStream toParser = new PipedOutputStream(pipe);
+		// only the bytes already in the part file: the transfer appends to it what the pipe gives again
+		final InputStream parsed = offset > 0 ? new SequenceInputStream(limit(new FileInputStream(part), offset), pipe)
+				: pipe;
+		final AtomicBoolean complete = new AtomicBoolean();
+		final RemoteFile file = remote;
+		parsers.execute(new Runnable() {
+			public void run() {
+				try {
+					List<Workout> workouts;
+					try {
+						workouts = DataAnalizer.parseLog(parsed);
+					} catch (RuntimeException e) {
+						// the raw bytes are still saved: the rest of the transfer goes nowhere,
+						// and the failure is told once the file is complete
+						drain(parsed);
+						if (complete.get()) {
+							listener.failed(file, e);
+						}
+						return;
+					}
+					if (complete.get()) {
+						listener.downloaded(target, workouts);
+					}
+				} catch (IOException e) {
+					// only an interrupted transfer, which is reported by the transfer
+				} finally {
+					close(parsed);
+				}
+			}
+		});
+
+		OutputStream saved = new FileOutputStream(part, true);
+		try {
+			transfer(remote, offset, saved, toParser, listener);
+			saved.close();
+			target.delete();
+			if (!part.renameTo(target)) {
+				throw new IOException("cannot rename " + part);
+			}
+			complete.set(true);
+		} catch (IOException e) {
+			if (offset > 0 && e.getMessage() != null && e.getMessage().startsWith(OPEN_FAILED)) {
+				// firmware without resume: start over on the next attempt
+				close(saved);
+				part.delete();
+			}
+			throw e;
+		} finally {
+			close(saved);
+			// end of stream for the parser, complete or not
+			close(toParser);
+		}
+	}
+
+	/**
+	 * Receives a file from an offset, copying each block to the file and the parser
+	 */
+	private void transfer(RemoteFile remote, long offset, OutputStream saved, OutputStream parser,
+			DownloadListener listener) throws IOException {
+		if (offset == remote.size) {
+			return;
+		}
+		drain();
+		command(offset > 0 ? "o " + remote.name + " " + offset : "o " + remote.name);
+
+		// a refused request starts with the error message instead of the data
+		byte[] buffer = new byte[1024];
+		int head = (int) Math.min(OPEN_FAILED.length(), remote.size - offset);
+		int received = 0;
+		while (received < head) {
+			int read = read(buffer, received, head - received, TRANSFER_TIMEOUT);
+			if (read == 0) {
+				throw new IOException(remote.name + ": no answer");
+			}
+			received += read;
+		}
+		if (head == OPEN_FAILED.length() && new String(buffer, 0, head, "US-ASCII").equals(OPEN_FAILED)) {
+			throw new IOException(OPEN_FAILED + readLine(TRANSFER_TIMEOUT));
+		}
+
+		long done = offset;
+		int length = received;
+		while (true) {
+			saved.write(buffer, 0, length);
+			parser.write(buffer, 0, length);
+			// wakes the parser now rather than on its next poll
+			parser.flush();
+			done += length;
+			listener.progress(remote, done);
+			if (done >= remote.size) {
+				return;
+			}
+			length = read(buffer, 0, (int) Math.min(buffer.length, remote.size - done), TRANSFER_TIMEOUT);
+			if (length == 0) {
+				throw new IOException(remote.name + " interrupted at " + done + " of " + remote.size + " bytes");
+			}
+		}
+	}
+
+	private void command(String command) throws IOException {
+		out.write((command + "\n").getBytes("US-ASCII"));
+		out.flush();
+	}
+
+	/**
+	 * Reads what is available, waiting up to a timeout for the first byte
+	 * @return bytes read, 0 on timeout
+	 */
+	private int read(byte[] b, int off, int len, long timeout) throws IOException {
+		long deadline = System.currentTimeMillis() + timeout;
+		int available;
+		while ((available = in.available()) <= 0) {
+			if (System.currentTimeMillis() > deadline) {
+				return 0;
+			}
+			try {
+				Thread.sleep(POLL_INTERVAL);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("download interrupted");
+			}
+		}
+		int read = in.read(b, off, Math.min(len, available));
+		if (read < 0) {
+			throw new IOException("link closed");
+		}
+		return read;
+	}
+
+	/**
+	 * @return the next text line or null if nothing came before the timeout
+	 */
+	private String readLine(long timeout) throws IOException {
+		StringBuilder line = new StringBuilder();
+		byte[] b = new byte[1];
+		while (read(b, 0, 1, timeout) > 0) {
+			if (b[0] == '\n') {
+				return line.toString();
+			}
+			if (b[0] != '\r') {
+				line.append((char) (b[0] & 0xff));
+			}
+		}
+		return line.length() > 0 ? line.toString() : null;
+	}
+
+	/**
+	 * Reads a stream to its end, the bytes going nowhere
+	 */
+	private static void drain(InputStream stream) throws IOException {
+		byte[] b = new byte[8192];
+		while (stream.read(b) >= 0);
+	}
+
+	/**
+	 * Discards bytes left from an earlier command
+	 */
+	private void drain() throws IOException {
+		byte[] b = new byte[256];
+		while (read(b, 0, b.length, POLL_INTERVAL * 4) > 0);
+	}
+
+	/**
+	 * @return a stream ending after the first bytes of another, which it closes
+	 */
+	static InputStream limit(InputStream in, final long length) {
+		return new FilterInputStream(in) {
+			private long left = length;
+
+			@Override
+			public int read() throws IOException {
+				if (left <= 0) {
+					return -1;
+				}
+				int b = super.read();
+				if (b >= 0) {
+					left--;
+				}
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (left <= 0) {
+					return -1;
+				}
+				int read = super.read(b, off, (int) Math.min(len, left));
+				if (read > 0) {
+					left -= read;
+				}
+				return read;
+			}
+
+			@Override
+			public long skip(long n) throws IOException {
+				long skipped = super.skip(Math.min(n, left));
+				left -= skipped;
+				return skipped;
+			}
+
+			@Override
+			public int available() throws IOException {
+				return (int) Math.min(super.available(), left);
+			}
+		};
+	}
+
+	private static void close(Closeable c) {
+		try {
+			c.close();
+		} catch (IOException e) {
+		}
+	}
+}
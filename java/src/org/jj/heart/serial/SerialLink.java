@@ -0,0 +1,28 @@
+package org.jj.heart.serial;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Two way byte link to the heart rate monitor: a serial port or a stand-in replaying logs
+ * @author jjones
+ */
+public interface SerialLink {
+	/**
+	 * @return name shown to the user
+	 */
+	String getName();
+
+	/**
+	 * @return what the monitor sends
+	 */
+	InputStream getInputStream() throws IOException;
+
+	/**
+	 * @return where the commands for the monitor are written
+	 */
+	OutputStream getOutputStream() throws IOException;
+
+	void close();
+}
@@ -0,0 +1,238 @@
+package org.jj.heart.serial;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.RandomAccessFile;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stand-in for the monitor answering the SD card commands from a directory of logs:
+ * "l" lists the files like root.ls(LS_SIZE), "o file [offset]" dumps a file,
+ * "d" toggles the debug mode and "t" gives the time.<br/>
+ * The bytes can be throttled to a baud rate and a transfer can be cut after some bytes
+ * (cable pulled out) to try the download and its resume without the monitor.
+ * @author jjones
+ */
+public class SimulatedDevice implements SerialLink {
+	/** the name column of a listing */
+	static final int NAME_WIDTH = 14;
+	private static final byte[] END = { '\r', '\n' };
+
+	private final File card;
+	/** bytes per second sent, 0 or less for no limit */
+	private final int rate;
+	/** bytes of the next dump sent before the link goes quiet, -1 for all */
+	private volatile long failAfter = -1;
+	private volatile boolean closed;
+	private boolean debug;
+
+	static final int PIPE_SIZE = 4096;
+	private final PipedInputStream in = new PipedInputStream(PIPE_SIZE);
+	private final PipedOutputStream toHost;
+	private final BlockingQueue<String> commands = new LinkedBlockingQueue<String>();
+	private final OutputStream out = new OutputStream() {
+		private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+		@Override
+		public synchronized void write(int b) {
+			if (b == '\n') {
+				commands.add(new String(line.toByteArray()).trim());
+				line.reset();
+			} else {
+				line.write(b);
+			}
+		}
+	};
+	private final Thread device;
+
+	/**
+	 * @param card the directory holding the files of the SD card
+	 * @param baudRate the speed of the simulated serial port, 0 for no limit
+	 * @throws IOException
+	 */
+	public SimulatedDevice(File card, int baudRate) throws IOException {
+		this.card = card;
+		// 8N1 takes 10 bits per byte
+		rate = baudRate / 10;
+		toHost = new PipedOutputStream(in);
+		device = new Thread("simulated " + card.getName()) {
+			@Override
+			public void run() {
+				serve();
+			}
+		};
+		device.setDaemon(true);
+		device.start();
+	}
+
+	/**
+	 * Makes the next dump stop after some bytes, as if the cable was pulled out
+	 * @param bytes bytes sent before going quiet, -1 to send everything
+	 */
+	public void setFailAfter(long bytes) {
+		failAfter = bytes;
+	}
+
+	public String getName() {
+		return "simulated " + card.getName();
+	}
+
+	public InputStream getInputStream() {
+		return in;
+	}
+
+	public OutputStream getOutputStream() {
+		return out;
+	}
+
+	public void close() {
+		closed = true;
+		device.interrupt();
+		try {
+			device.join();
+			toHost.close();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+		}
+	}
+
+	private void serve() {
+		try {
+			while (!closed) {
+				String command = commands.poll(100, TimeUnit.MILLISECONDS);
+				if (command == null || command.length() == 0) {
+					continue;
+				}
+				String argument = command.length() > 2 ? command.substring(2) : "";
+				switch (command.charAt(0)) {
+				case 'd':
+					debug = !debug;
+					println("debug mode " + (debug ? "on" : "off"));
+					break;
+				case 'l':
+					list();
+					break;
+				case 'o':
+					dump(argument);
+					break;
+				case 't':
+					println("time " + new SimpleDateFormat("H:m:s").format(new Date()));
+					break;
+				default:
+					println("command unknown");
+				}
+			}
+		} catch (InterruptedException e) {
+			// closed
+		} catch (IOException e) {
+			// host side closed
+		}
+	}
+
+	private void list() throws IOException, InterruptedException {
+		File[] files = card.listFiles();
+		if (files != null) {
+			Arrays.sort(files);
+			for (File file : files) {
+				StringBuilder line = new StringBuilder(file.getName().toUpperCase());
+				if (file.isDirectory()) {
+					line.append('/');
+				}
+				while (line.length() < NAME_WIDTH) {
+					line.append(' ');
+				}
+				if (!file.isDirectory()) {
+					line.append(' ').append(file.length());
+				}
+				println(line.toString());
+			}
+		}
+		println("");
+	}
+
+	private void dump(String argument) throws IOException, InterruptedException {
+		String name = argument;
+		long offset = 0;
+		int space = argument.indexOf(' ');
+		if (space > 0) {
+			name = argument.substring(0, space);
+			try {
+				offset = Long.parseLong(argument.substring(space + 1).trim());
+			} catch (NumberFormatException e) {
+				offset = -1;
+			}
+		}
+		File file = find(name);
+		if (file == null || offset < 0) {
+			// a bad offset is refused like a missing file, the device keeps serving
+			println("couldn't open " + name);
+			return;
+		}
+		long limit = failAfter;
+		failAfter = -1;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			raf.seek(offset);
+			byte[] buffer = new byte[64];
+			long sent = 0;
+			int read;
+			while (!closed && 0 < (read = raf.read(buffer))) {
+				if (limit >= 0 && sent + read > limit) {
+					send(buffer, (int) (limit - sent));
+					return;
+				}
+				send(buffer, read);
+				sent += read;
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * The card names are upper case 8.3 names: the case of the directory files is ignored
+	 */
+	private File find(String name) {
+		File[] files = card.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.isFile() && file.getName().equalsIgnoreCase(name)) {
+					return file;
+				}
+			}
+		}
+		return null;
+	}
+
+	private void println(String line) throws IOException, InterruptedException {
+		byte[] bytes = line.getBytes("US-ASCII");
+		send(bytes, bytes.length);
+		send(END, END.length);
+	}
+
+	/**
+	 * Sends bytes at the rate of the simulated port
+	 */
+	private void send(byte[] bytes, int length) throws IOException, InterruptedException {
+		// a full pipe only wakes its writer once a second: wait for room instead
+		while (!closed && PIPE_SIZE - in.available() < length) {
+			Thread.sleep(1);
+		}
+		toHost.write(bytes, 0, length);
+		toHost.flush();
+		if (rate > 0) {
+			Thread.sleep(1000L * length / rate);
+		}
+	}
+}
@@ -0,0 +1,38 @@
+package org.jj.heart.serial;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * Link over a TCP connection: a serial to network bridge, or a stand-in simulating a monitor
+ * @author jjones
+ */
+public class SocketLink implements SerialLink {
+	private final Socket socket;
+
+	public SocketLink(Socket socket) throws IOException {
+		this.socket = socket;
+		socket.setTcpNoDelay(true);
+	}
+
+	public String getName() {
+		return "tcp " + socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+	}
+
+	public InputStream getInputStream() throws IOException {
+		return socket.getInputStream();
+	}
+
+	public OutputStream getOutputStream() throws IOException {
+		return socket.getOutputStream();
+	}
+
+	public void close() {
+		try {
+			socket.close();
+		} catch (IOException e) {
+		}
+	}
+}